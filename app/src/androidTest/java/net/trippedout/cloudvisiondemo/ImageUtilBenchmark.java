@@ -0,0 +1,111 @@
+package net.trippedout.cloudvisiondemo;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.test.InstrumentationTestCase;
+import android.util.Log;
+
+import net.trippedout.cloudvisionlib.ImageSource;
+import net.trippedout.cloudvisionlib.ImageUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compares uploading the original file as is against decoding and re-encoding it, on the bundled
+ * people.jpg and on a generated camera sized JPEG. Results are logged, run with:
+ *
+ * ./gradlew :app:connectedAndroidTest
+ */
+public class ImageUtilBenchmark extends InstrumentationTestCase {
+    private static final String TAG = ImageUtilBenchmark.class.getSimpleName();
+
+    private static final int ITERATIONS = 5;
+
+    // 12MP, 4:3 like most phone cameras
+    private static final int CAMERA_WIDTH = 4032;
+    private static final int CAMERA_HEIGHT = 3024;
+
+    private File mPeopleFile;
+    private File mCameraFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        File dir = getInstrumentation().getTargetContext().getCacheDir();
+        mPeopleFile = new File(dir, "people.jpg");
+        mCameraFile = new File(dir, "camera.jpg");
+
+        InputStream in = getInstrumentation().getTargetContext().getResources().openRawResource(R.drawable.people);
+        OutputStream out = new FileOutputStream(mPeopleFile);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+
+        // scale people.jpg up to a full camera frame, saved at a typical camera quality
+        Bitmap people = BitmapFactory.decodeFile(mPeopleFile.getPath());
+        Bitmap camera = Bitmap.createBitmap(CAMERA_WIDTH, CAMERA_HEIGHT, Bitmap.Config.ARGB_8888);
+        new Canvas(camera).drawBitmap(people, null, new Rect(0, 0, CAMERA_WIDTH, CAMERA_HEIGHT), null);
+        out = new FileOutputStream(mCameraFile);
+        try {
+            camera.compress(Bitmap.CompressFormat.JPEG, 92, out);
+        } finally {
+            out.close();
+        }
+        people.recycle();
+        camera.recycle();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mPeopleFile.delete();
+        mCameraFile.delete();
+        super.tearDown();
+    }
+
+    public void testPeople() throws IOException {
+        benchmark(mPeopleFile);
+    }
+
+    public void testCameraFrame() throws IOException {
+        benchmark(mCameraFile);
+    }
+
+    private void benchmark(File file) throws IOException {
+        long passThroughBytes = 0;
+        long passThroughNanos = 0;
+        long reencodeBytes = 0;
+        long reencodeNanos = 0;
+
+        for (int i = 0; i < ITERATIONS; i++) {
+            long start = System.nanoTime();
+            ImageSource source = ImageUtil.getImageSource(file.getPath(), ImageUtil.DEFAULT_BUDGET);
+            passThroughNanos += System.nanoTime() - start;
+            passThroughBytes = source.byteCount();
+
+            start = System.nanoTime();
+            source = ImageUtil.getImageSource(file.getPath(), 2);
+            reencodeNanos += System.nanoTime() - start;
+            reencodeBytes = source.byteCount();
+        }
+
+        Log.i(TAG, file.getName() + " (" + file.length() + " bytes)"
+                + " pass through: " + passThroughNanos / ITERATIONS / 1000 + "us, " + passThroughBytes + " bytes"
+                + " | decode/re-encode: " + reencodeNanos / ITERATIONS / 1000 + "us, " + reencodeBytes + " bytes");
+
+        assertEquals(file.length(), passThroughBytes);
+    }
+}
@@ -53,7 +53,7 @@ public class ImageActivity extends AppCompatActivity implements View.OnClickList
         mCloudVisionService.getAnnotations(
                 Secret.API_KEY,
                 CloudVisionApi.getTestRequestAllFeatures(
-                        ImageUtil.getEncodedImageData(((BitmapDrawable) mFaceFeaturesView.getDrawable()).getBitmap())
+                        ImageUtil.getImageSource(((BitmapDrawable) mFaceFeaturesView.getDrawable()).getBitmap())
                 )
         ).enqueue(new VisionCallback(CloudVisionApi.getRetrofit()) {
             @Override
@@ -6,9 +6,12 @@ import android.util.Log;
 
 import com.example.android.camera2basic.Camera2BasicFragment;
 
+import net.trippedout.cloudvisionlib.CachingService;
 import net.trippedout.cloudvisionlib.CloudVisionApi;
 import net.trippedout.cloudvisionlib.CloudVisionService;
+import net.trippedout.cloudvisionlib.ImageSource;
 import net.trippedout.cloudvisionlib.ImageUtil;
+import net.trippedout.cloudvisionlib.NearDuplicateIndex;
 import net.trippedout.cloudvisionlib.VisionCallback;
 
 import org.greenrobot.eventbus.EventBus;
@@ -28,7 +31,10 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_camera);
 
-        mVisionService = CloudVisionApi.getCloudVisionService();
+        // consecutive shots of the same scene reuse the last result instead of calling the API again
+        mVisionService = new CachingService(CloudVisionApi.getCloudVisionService(), null,
+                new NearDuplicateIndex(), CloudVisionApi.getRetrofit());
+        mRetrofit = CloudVisionApi.getRetrofit();
 
         mCameraFragment = Camera2BasicFragment.newInstance();
 
@@ -54,10 +60,10 @@ public class MainActivity extends AppCompatActivity {
     @Subscribe
     public void onEvent(Camera2BasicFragment.OnPictureTakenEvent event) {
 
-        String encodedImage = ImageUtil.getEncodedImageData(event.getFile().getPath());
+        ImageSource imageSource = ImageUtil.getImageSource(event.getFile().getPath(), CloudVisionApi.ALL_FEATURES);
 
         // We can use a very basic callback wrapper to just get the data we need and handle error responses automatically
-        mVisionService.getAnnotations(Secret.API_KEY, CloudVisionApi.getTestRequestAllFeatures(encodedImage))
+        mVisionService.getAnnotations(Secret.API_KEY, CloudVisionApi.getTestRequestAllFeatures(imageSource))
                 .enqueue(new VisionCallback(mRetrofit) {
                     @Override
                     public void onApiResponse(CloudVisionApi.VisionResponse response) {
@@ -74,7 +80,7 @@ public class MainActivity extends AppCompatActivity {
 
         // Or of course you could handle it all yourself, like normal Retrofit2 handling:
 
-//        mVisionService.getAnnotations(Secret.API_KEY, CloudVisionApi.getTestRequestAllFeatures(encodedImage))
+//        mVisionService.getAnnotations(Secret.API_KEY, CloudVisionApi.getTestRequestAllFeatures(imageSource))
 //                .enqueue(new Callback<CloudVisionApi.VisionResponse>() {
 //                    @Override
 //                    public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
@@ -93,6 +99,12 @@ public class MainActivity extends AppCompatActivity {
 //                        Log.d(TAG, "failure: " + t.getMessage());
 //                    }
 //        });
+
+        // Or, to keep capturing at full speed, journal the photo and let a JournalWorker upload it in batches later.
+        // Jobs survive crashes and time offline:
+
+//        mJournal.append(event.getFile().getPath(), CloudVisionApi.ALL_FEATURES);
+//        mJournalWorker.wakeUp();
     }
 
 }
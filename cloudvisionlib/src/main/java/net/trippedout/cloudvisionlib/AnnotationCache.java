@@ -0,0 +1,23 @@
+package net.trippedout.cloudvisionlib;
+
+/**
+ * Store of per image results, keyed by {@link CacheKey}, that a {@link CachingService} answers requests
+ * from. The service keeps each feature's result for an image under its own key, see
+ * {@link CacheKey#forFeature}, so any mix of features can be put together from it. Implementations have to be
+ * safe to use from several threads.
+ */
+public interface AnnotationCache {
+
+    /**
+     * @return the cached response, or null if there's none. Callers own what they get back and may change
+     * it, e.g. scaling faces in place, so every hit has to be a fresh instance.
+     */
+    CloudVisionApi.AnnotateImageResponse get(CacheKey key);
+
+    /**
+     * Stores a successful response. Responses carrying an error status are never passed in, but ones
+     * without any typed responses are: the feature simply found nothing in the image. The caller keeps
+     * using the response afterwards, so it mustn't be held on to as is.
+     */
+    void put(CacheKey key, CloudVisionApi.AnnotateImageResponse response);
+}
@@ -0,0 +1,412 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary form of an {@link CloudVisionApi.AnnotateImageResponse}, for caching on disk. Typically a
+ * fraction of the JSON's size, and decoded straight out of a (memory mapped) {@link ByteBuffer} without any
+ * parsing or reflection.
+ *
+ * Layout: a version byte, then the typed responses, each a {@link CloudVisionApi.FeatureType} tag followed
+ * by its fields in declaration order. Counts and string lengths are varints, floats are 4 bytes and strings
+ * are UTF-8. Nulls are written as a count or length of 0, with everything else shifted up by one.
+ */
+class AnnotationCodec {
+
+    static final int VERSION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final CloudVisionApi.FeatureType[] TYPES = CloudVisionApi.FeatureType.values();
+
+    static byte[] encode(CloudVisionApi.AnnotateImageResponse response) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+        Writer out = new Writer(bytes);
+
+        EnumMap<CloudVisionApi.FeatureType, CloudVisionApi.Response> responses = response.getResponses();
+        out.writeByte(VERSION);
+        out.writeVarint(responses.size());
+        for (Map.Entry<CloudVisionApi.FeatureType, CloudVisionApi.Response> entry : responses.entrySet()) {
+            out.writeByte(entry.getKey().ordinal());
+            writeResponse(out, entry.getValue());
+        }
+
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the bytes are truncated, corrupt or from another version
+     */
+    static CloudVisionApi.AnnotateImageResponse decode(ByteBuffer buffer) throws IOException {
+        try {
+            int version = buffer.get();
+            if (version != VERSION) {
+                throw new IOException("Unknown version " + version);
+            }
+
+            EnumMap<CloudVisionApi.FeatureType, CloudVisionApi.Response> responses
+                    = new EnumMap<>(CloudVisionApi.FeatureType.class);
+            int count = readVarint(buffer);
+            for (int i = 0; i < count; i++) {
+                int ordinal = buffer.get();
+                if (ordinal < 0 || ordinal >= TYPES.length) {
+                    throw new IOException("Unknown feature type " + ordinal);
+                }
+                responses.put(TYPES[ordinal], readResponse(buffer, TYPES[ordinal]));
+            }
+            if (buffer.hasRemaining()) {
+                throw new IOException("Trailing bytes after annotation");
+            }
+            return new CloudVisionApi.AnnotateImageResponse(responses, null);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt annotation", e);
+        }
+    }
+
+    private static void writeResponse(Writer out, CloudVisionApi.Response response) throws IOException {
+        switch (response.getFeatureType()) {
+            case LABEL_DETECTION:
+                writeEntities(out, ((CloudVisionApi.LabelResponse) response).labelAnnotations);
+                break;
+            case LANDMARK_DETECTION:
+                writeEntities(out, ((CloudVisionApi.LandmarkResponse) response).landmarkAnnotations);
+                break;
+            case LOGO_DETECTION:
+                writeEntities(out, ((CloudVisionApi.LogoResponse) response).logoAnnotations);
+                break;
+            case TEXT_DETECTION:
+                writeEntities(out, ((CloudVisionApi.TextResponse) response).textAnnotations);
+                break;
+            case FACE_DETECTION:
+                writeFaces(out, ((CloudVisionApi.FaceDetectResponse) response).faceAnnotations);
+                break;
+            case SAFE_SEARCH_DETECTION:
+                CloudVisionApi.SafeSearchResponse.SafeSearchAnnotation safeSearch
+                        = ((CloudVisionApi.SafeSearchResponse) response).safeSearchAnnotation;
+                out.writeBoolean(safeSearch != null);
+                if (safeSearch != null) {
+                    out.writeString(safeSearch.adult);
+                    out.writeString(safeSearch.spoof);
+                    out.writeString(safeSearch.medical);
+                    out.writeString(safeSearch.violence);
+                }
+                break;
+            case IMAGE_PROPERTIES:
+                ImagePropsFeature.ImagePropsAnnotation props
+                        = ((CloudVisionApi.ImagePropsResponse) response).imagePropertiesAnnotation;
+                List<ImagePropsFeature.ColorInfo> colors = props == null || props.dominantColors == null
+                        ? null
+                        : props.dominantColors.colors;
+                out.writeCount(colors);
+                if (colors != null) {
+                    for (ImagePropsFeature.ColorInfo info : colors) {
+                        out.writeBoolean(info.color != null);
+                        if (info.color != null) {
+                            out.writeVarint(info.color.red);
+                            out.writeVarint(info.color.blue);
+                            out.writeVarint(info.color.green);
+                        }
+                        out.writeFloat(info.score);
+                        out.writeFloat(info.pixelFraction);
+                    }
+                }
+                break;
+        }
+    }
+
+    private static CloudVisionApi.Response readResponse(ByteBuffer in, CloudVisionApi.FeatureType type) throws IOException {
+        switch (type) {
+            case LABEL_DETECTION:
+                return new CloudVisionApi.LabelResponse(readEntities(in));
+            case LANDMARK_DETECTION:
+                return new CloudVisionApi.LandmarkResponse(readEntities(in));
+            case LOGO_DETECTION:
+                return new CloudVisionApi.LogoResponse(readEntities(in));
+            case TEXT_DETECTION:
+                return new CloudVisionApi.TextResponse(readEntities(in));
+            case FACE_DETECTION:
+                return new CloudVisionApi.FaceDetectResponse(readFaces(in));
+            case SAFE_SEARCH_DETECTION:
+                CloudVisionApi.SafeSearchResponse.SafeSearchAnnotation safeSearch = null;
+                if (readBoolean(in)) {
+                    safeSearch = new CloudVisionApi.SafeSearchResponse.SafeSearchAnnotation(
+                            readString(in), readString(in), readString(in), readString(in));
+                }
+                return new CloudVisionApi.SafeSearchResponse(safeSearch);
+            case IMAGE_PROPERTIES:
+                int count = readCount(in);
+                if (count < 0) {
+                    return new CloudVisionApi.ImagePropsResponse(null);
+                }
+                List<ImagePropsFeature.ColorInfo> colors = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    ImagePropsFeature.Color color = null;
+                    if (readBoolean(in)) {
+                        int red = readVarint(in);
+                        int blue = readVarint(in);
+                        int green = readVarint(in);
+                        color = new ImagePropsFeature.Color(red, blue, green);
+                    }
+                    colors.add(new ImagePropsFeature.ColorInfo(color, in.getFloat(), in.getFloat()));
+                }
+                return new CloudVisionApi.ImagePropsResponse(new ImagePropsFeature.ImagePropsAnnotation(
+                        new ImagePropsFeature.DominantColorsAnnotation(colors)));
+            default:
+                throw new IOException("Unknown feature type " + type);
+        }
+    }
+
+    private static void writeEntities(Writer out, List<Shared.EntityAnnotation> entities) throws IOException {
+        out.writeCount(entities);
+        if (entities == null) {
+            return;
+        }
+
+        for (Shared.EntityAnnotation entity : entities) {
+            out.writeString(entity.mid);
+            out.writeString(entity.locale);
+            out.writeString(entity.description);
+            out.writeFloat(entity.score);
+            out.writeFloat(entity.confidence);
+            out.writeFloat(entity.topicality);
+            writePoly(out, entity.boundingPoly);
+
+            out.writeCount(entity.locations);
+            if (entity.locations != null) {
+                for (Shared.LocationInfo location : entity.locations) {
+                    out.writeBoolean(location.latLng != null);
+                    if (location.latLng != null) {
+                        out.writeFloat(location.latLng.latitude);
+                        out.writeFloat(location.latLng.longitude);
+                    }
+                }
+            }
+
+            out.writeCount(entity.properties);
+            if (entity.properties != null) {
+                for (Shared.Property property : entity.properties) {
+                    out.writeString(property.name);
+                    out.writeString(property.value);
+                }
+            }
+        }
+    }
+
+    private static List<Shared.EntityAnnotation> readEntities(ByteBuffer in) {
+        int count = readCount(in);
+        if (count < 0) {
+            return null;
+        }
+
+        List<Shared.EntityAnnotation> entities = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String mid = readString(in);
+            String locale = readString(in);
+            String description = readString(in);
+            float score = in.getFloat();
+            float confidence = in.getFloat();
+            float topicality = in.getFloat();
+            Shared.BoundingPoly boundingPoly = readPoly(in);
+
+            List<Shared.LocationInfo> locations = null;
+            int locationCount = readCount(in);
+            if (locationCount >= 0) {
+                locations = new ArrayList<>(locationCount);
+                for (int j = 0; j < locationCount; j++) {
+                    Shared.LatLng latLng = readBoolean(in) ? new Shared.LatLng(in.getFloat(), in.getFloat()) : null;
+                    locations.add(new Shared.LocationInfo(latLng));
+                }
+            }
+
+            List<Shared.Property> properties = null;
+            int propertyCount = readCount(in);
+            if (propertyCount >= 0) {
+                properties = new ArrayList<>(propertyCount);
+                for (int j = 0; j < propertyCount; j++) {
+                    properties.add(new Shared.Property(readString(in), readString(in)));
+                }
+            }
+
+            entities.add(new Shared.EntityAnnotation(mid, locale, description, score, confidence, topicality,
+                    boundingPoly, locations, properties));
+        }
+        return entities;
+    }
+
+    private static void writeFaces(Writer out, List<FacesFeature.FaceAnnotations> faces) throws IOException {
+        out.writeCount(faces);
+        if (faces == null) {
+            return;
+        }
+
+        for (FacesFeature.FaceAnnotations face : faces) {
+            writePoly(out, face.boundingPoly);
+            writePoly(out, face.fdBoundingPoly);
+
+            out.writeCount(face.landmarks);
+            if (face.landmarks != null) {
+                for (FacesFeature.Landmark landmark : face.landmarks) {
+                    out.writeString(landmark.type);
+                    out.writeBoolean(landmark.position != null);
+                    if (landmark.position != null) {
+                        out.writeFloat(landmark.position.x);
+                        out.writeFloat(landmark.position.y);
+                        out.writeFloat(landmark.position.z);
+                    }
+                }
+            }
+
+            out.writeFloat(face.rollAngle);
+            out.writeFloat(face.panAngle);
+            out.writeFloat(face.tiltAngle);
+            out.writeFloat(face.detectionConfidence);
+            out.writeFloat(face.landmarkingConfidence);
+            out.writeString(face.joyLikelihood);
+            out.writeString(face.sorrowLikelihood);
+            out.writeString(face.angerLikelihood);
+            out.writeString(face.surpriseLikelihood);
+            out.writeString(face.underExposedLikelihood);
+            out.writeString(face.blurredLikelihood);
+            out.writeString(face.headwearLikelihood);
+        }
+    }
+
+    private static List<FacesFeature.FaceAnnotations> readFaces(ByteBuffer in) {
+        int count = readCount(in);
+        if (count < 0) {
+            return null;
+        }
+
+        List<FacesFeature.FaceAnnotations> faces = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Shared.BoundingPoly boundingPoly = readPoly(in);
+            Shared.BoundingPoly fdBoundingPoly = readPoly(in);
+
+            List<FacesFeature.Landmark> landmarks = null;
+            int landmarkCount = readCount(in);
+            if (landmarkCount >= 0) {
+                landmarks = new ArrayList<>(landmarkCount);
+                for (int j = 0; j < landmarkCount; j++) {
+                    String type = readString(in);
+                    Shared.Position position = readBoolean(in)
+                            ? new Shared.Position(in.getFloat(), in.getFloat(), in.getFloat())
+                            : null;
+                    landmarks.add(new FacesFeature.Landmark(type, position));
+                }
+            }
+
+            faces.add(new FacesFeature.FaceAnnotations(boundingPoly, fdBoundingPoly, landmarks,
+                    in.getFloat(), in.getFloat(), in.getFloat(), in.getFloat(), in.getFloat(),
+                    readString(in), readString(in), readString(in), readString(in),
+                    readString(in), readString(in), readString(in)));
+        }
+        return faces;
+    }
+
+    private static void writePoly(Writer out, Shared.BoundingPoly poly) throws IOException {
+        List<Shared.Vertex> vertices = poly == null ? null : poly.vertices;
+        // a poly without a vertex list comes back as null
+        out.writeCount(vertices);
+        if (vertices != null) {
+            for (Shared.Vertex vertex : vertices) {
+                out.writeFloat(vertex.x);
+                out.writeFloat(vertex.y);
+            }
+        }
+    }
+
+    private static Shared.BoundingPoly readPoly(ByteBuffer in) {
+        int count = readCount(in);
+        if (count < 0) {
+            return null;
+        }
+
+        List<Shared.Vertex> vertices = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            vertices.add(new Shared.Vertex(in.getFloat(), in.getFloat()));
+        }
+        return new Shared.BoundingPoly(vertices);
+    }
+
+    private static boolean readBoolean(ByteBuffer in) {
+        return in.get() != 0;
+    }
+
+    /**
+     * @return a list's size or a string's length, or -1 for null. Every element takes at least a byte, so
+     * anything past what's left of the buffer is corrupt, and rejected before it's allocated.
+     */
+    private static int readCount(ByteBuffer in) {
+        int count = readVarint(in) - 1;
+        if (count < -1 || count > in.remaining()) {
+            throw new IllegalArgumentException("Bad count " + count);
+        }
+        return count;
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = readCount(in);
+        if (length < 0) {
+            return null;
+        }
+
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Counterpart to the read methods above
+     */
+    private static class Writer extends DataOutputStream {
+
+        Writer(ByteArrayOutputStream out) {
+            super(out);
+        }
+
+        void writeCount(List<?> list) throws IOException {
+            writeVarint(list == null ? 0 : list.size() + 1);
+        }
+
+        void writeString(String s) throws IOException {
+            if (s == null) {
+                writeVarint(0);
+                return;
+            }
+
+            byte[] bytes = s.getBytes(UTF8);
+            writeVarint(bytes.length + 1);
+            write(bytes);
+        }
+
+        void writeVarint(int value) throws IOException {
+            while ((value & ~0x7f) != 0) {
+                writeByte((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+    }
+}
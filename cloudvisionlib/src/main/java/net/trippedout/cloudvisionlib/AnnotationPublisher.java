@@ -0,0 +1,281 @@
+package net.trippedout.cloudvisionlib;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Streams a {@link VisionFlow.Publisher} of single image requests through an {@link ImageAnnotator}, publishing
+ * a {@link Result} for every image as soon as it's annotated.
+ *
+ * Backpressure goes all the way through: images are only pulled from upstream while fewer than maxInFlight
+ * are being annotated or waiting to be delivered, and never more than the subscriber has asked for. Memory
+ * stays bounded no matter how many images go through, as long as the upstream loads them lazily.
+ *
+ * A failed image doesn't end the stream, its {@link Result} carries the error instead. Results arrive in
+ * completion order, which isn't necessarily the order the images came in.
+ *
+ * <code>
+ *   VisionFlow.Publisher&lt;CloudVisionApi.Request&gt; images = VisionFlow.fromIterable(lazilyEncodedRequests);
+ *   new AnnotationPublisher(images, new AsyncVisionService(service, retrofit, apiKey), 8).subscribe(subscriber);
+ * </code>
+ */
+public class AnnotationPublisher implements VisionFlow.Publisher<AnnotationPublisher.Result> {
+
+    /**
+     * Outcome for one image
+     */
+    public static class Result {
+        public final CloudVisionApi.Request request;
+
+        /**
+         * null if the call failed
+         */
+        public final CloudVisionApi.AnnotateImageResponse response;
+
+        /**
+         * Why the call failed, or null if it didn't. Per image error statuses are in the response instead.
+         */
+        public final Throwable error;
+
+        public Result(CloudVisionApi.Request request, CloudVisionApi.AnnotateImageResponse response, Throwable error) {
+            this.request = request;
+            this.response = response;
+            this.error = error;
+        }
+
+        public boolean isSuccessful() {
+            return error == null && !response.hasError();
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "request=" + request +
+                    ", response=" + response +
+                    ", error=" + error +
+                    '}';
+        }
+    }
+
+    private final VisionFlow.Publisher<CloudVisionApi.Request> mImages;
+    private final ImageAnnotator mAnnotator;
+    private final int mMaxInFlight;
+
+    /**
+     * @param maxInFlight most images being annotated or waiting for the subscriber at once
+     */
+    public AnnotationPublisher(VisionFlow.Publisher<CloudVisionApi.Request> images, ImageAnnotator annotator, int maxInFlight) {
+        mImages = images;
+        mAnnotator = annotator;
+        mMaxInFlight = maxInFlight;
+    }
+
+    @Override
+    public void subscribe(VisionFlow.Subscriber<? super Result> subscriber) {
+        mImages.subscribe(new Pipeline(subscriber));
+    }
+
+    /**
+     * Subscribes to the images on one side and is the subscription for results on the other. Every signal
+     * just updates state under the lock and then drains, and only one thread drains at a time so downstream
+     * signals never overlap.
+     */
+    private class Pipeline implements VisionFlow.Subscriber<CloudVisionApi.Request>, VisionFlow.Subscription {
+        private final VisionFlow.Subscriber<? super Result> mDownstream;
+        private VisionFlow.Subscription mUpstream;
+
+        private final Set<VisionFuture<CloudVisionApi.AnnotateImageResponse>> mInFlight = new HashSet<>();
+        private final ArrayDeque<Result> mReady = new ArrayDeque<>();
+
+        private long mDemand;
+        private long mRequested;
+        private boolean mUpstreamDone;
+        private Throwable mUpstreamError;
+        private Throwable mRequestError;
+        private boolean mCancelled;
+        private boolean mTerminated;
+        private boolean mDraining;
+
+        Pipeline(VisionFlow.Subscriber<? super Result> downstream) {
+            mDownstream = downstream;
+        }
+
+        @Override
+        public void onSubscribe(VisionFlow.Subscription subscription) {
+            synchronized (this) {
+                mUpstream = subscription;
+            }
+            mDownstream.onSubscribe(this);
+        }
+
+        @Override
+        public void onNext(final CloudVisionApi.Request request) {
+            synchronized (this) {
+                mRequested--;
+                if (mCancelled) {
+                    return;
+                }
+            }
+
+            final VisionFuture<CloudVisionApi.AnnotateImageResponse> future = mAnnotator.submit(request);
+            boolean cancelled;
+            synchronized (this) {
+                // cancel() may have run while submitting, it won't have seen this one
+                cancelled = mCancelled;
+                if (!cancelled) {
+                    mInFlight.add(future);
+                }
+            }
+            if (cancelled) {
+                future.cancel(false);
+                return;
+            }
+
+            future.addListener(new VisionFuture.Listener<CloudVisionApi.AnnotateImageResponse>() {
+                @Override
+                public void onSuccess(CloudVisionApi.AnnotateImageResponse response) {
+                    finish(future, new Result(request, response, null));
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    finish(future, new Result(request, null, t));
+                }
+            });
+        }
+
+        private void finish(VisionFuture<CloudVisionApi.AnnotateImageResponse> future, Result result) {
+            synchronized (this) {
+                if (!mInFlight.remove(future)) {
+                    // cancelled
+                    return;
+                }
+                mReady.add(result);
+            }
+            drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            synchronized (this) {
+                mUpstreamDone = true;
+                mUpstreamError = t;
+            }
+            drain();
+        }
+
+        @Override
+        public void onComplete() {
+            synchronized (this) {
+                mUpstreamDone = true;
+            }
+            drain();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                synchronized (this) {
+                    if (mCancelled) {
+                        return;
+                    }
+                    mRequestError = new IllegalArgumentException("request(n) needs a positive n, got " + n);
+                }
+                // stops everything, then the drain signals the error without overlapping an onNext
+                cancel();
+                drain();
+                return;
+            }
+
+            synchronized (this) {
+                mDemand = VisionFlow.addDemand(mDemand, n);
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            List<VisionFuture<CloudVisionApi.AnnotateImageResponse>> inFlight;
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                mCancelled = true;
+                inFlight = new ArrayList<>(mInFlight);
+                mInFlight.clear();
+                mReady.clear();
+            }
+
+            mUpstream.cancel();
+            for (VisionFuture<CloudVisionApi.AnnotateImageResponse> future : inFlight) {
+                future.cancel(false);
+            }
+        }
+
+        private void drain() {
+            synchronized (this) {
+                if (mDraining) {
+                    return;
+                }
+                mDraining = true;
+            }
+
+            while (true) {
+                Result next = null;
+                boolean terminate = false;
+                Throwable error = null;
+                long toRequest = 0;
+
+                synchronized (this) {
+                    if (mTerminated || (mCancelled && mRequestError == null)) {
+                        mDraining = false;
+                        return;
+                    }
+
+                    if (mRequestError != null) {
+                        mTerminated = true;
+                        terminate = true;
+                        error = mRequestError;
+                    } else if (mDemand > 0 && !mReady.isEmpty()) {
+                        next = mReady.poll();
+                        if (mDemand != Long.MAX_VALUE) {
+                            mDemand--;
+                        }
+                    } else if (mUpstreamDone && mInFlight.isEmpty() && mReady.isEmpty()) {
+                        mTerminated = true;
+                        terminate = true;
+                        error = mUpstreamError;
+                    } else if (!mUpstreamDone) {
+                        // everything pulled but not yet delivered counts against both the demand and the bound
+                        long outstanding = mRequested + mInFlight.size() + mReady.size();
+                        toRequest = Math.min(mMaxInFlight, mDemand) - outstanding;
+                        if (toRequest > 0) {
+                            mRequested += toRequest;
+                        }
+                    }
+
+                    if (next == null && !terminate && toRequest <= 0) {
+                        mDraining = false;
+                        return;
+                    }
+                }
+
+                if (next != null) {
+                    mDownstream.onNext(next);
+                } else if (terminate) {
+                    if (error != null) {
+                        mDownstream.onError(error);
+                    } else {
+                        mDownstream.onComplete();
+                    }
+                    return;
+                } else {
+                    mUpstream.request(toRequest);
+                }
+            }
+        }
+    }
+}
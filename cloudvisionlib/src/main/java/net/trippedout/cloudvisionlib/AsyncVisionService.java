@@ -0,0 +1,85 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import retrofit2.Call;
+import retrofit2.Retrofit;
+
+/**
+ * Future based front for a {@link CloudVisionService}, for composing calls instead of nesting callbacks.
+ *
+ * API error statuses fail the future with a {@link VisionException}, and cancelling the future cancels the
+ * call. Any decorated service works, so retries, limits and deadlines all still apply.
+ *
+ * <code>
+ *   AsyncVisionService vision = new AsyncVisionService(CloudVisionApi.getCloudVisionService(), CloudVisionApi.getRetrofit(), apiKey);
+ *   List&lt;VisionFuture&lt;AnnotateImageResponse&gt;&gt; futures = new ArrayList&lt;&gt;();
+ *   for (ImageSource source : sources) {
+ *       futures.add(vision.submit(new CloudVisionApi.Request(new CloudVisionApi.Image(source), CloudVisionApi.ALL_FEATURES)));
+ *   }
+ *   VisionFuture&lt;List&lt;AnnotateImageResponse&gt;&gt; all = VisionFuture.allAsList(futures);
+ * </code>
+ *
+ * See {@link AnnotationPublisher} for streaming large numbers of images with backpressure.
+ */
+public class AsyncVisionService implements ImageAnnotator {
+
+    private final CloudVisionService mService;
+    private final Retrofit mRetrofit;
+    private final String mApiKey;
+
+    public AsyncVisionService(CloudVisionService service, Retrofit retrofit, String apiKey) {
+        mService = service;
+        mRetrofit = retrofit;
+        mApiKey = apiKey;
+    }
+
+    /**
+     * Sends the request right away
+     */
+    public VisionFuture<CloudVisionApi.VisionResponse> annotate(CloudVisionApi.VisionRequest request) {
+        final Call<CloudVisionApi.VisionResponse> call = mService.getAnnotations(mApiKey, request);
+        final VisionFuture<CloudVisionApi.VisionResponse> future = new VisionFuture<CloudVisionApi.VisionResponse>() {
+            @Override
+            protected void onCancelled() {
+                call.cancel();
+            }
+        };
+
+        call.enqueue(new VisionCallback(mRetrofit) {
+            @Override
+            public void onApiResponse(CloudVisionApi.VisionResponse response) {
+                future.set(response);
+            }
+
+            @Override
+            public void onApiError(CloudVisionApi.Error error) {
+                future.setException(new VisionException(error));
+            }
+
+            @Override
+            public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                future.setException(t);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Sends a call for this one image right away
+     */
+    @Override
+    public VisionFuture<CloudVisionApi.AnnotateImageResponse> submit(CloudVisionApi.Request request) {
+        return annotate(new CloudVisionApi.VisionRequest(Collections.singletonList(request)))
+                .transform(new VisionFuture.Function<CloudVisionApi.VisionResponse, CloudVisionApi.AnnotateImageResponse>() {
+                    @Override
+                    public CloudVisionApi.AnnotateImageResponse apply(CloudVisionApi.VisionResponse response) throws Exception {
+                        if (response.size() != 1) {
+                            throw new IOException("Expected 1 response but got " + response.size());
+                        }
+                        return response.getImageResponse(0);
+                    }
+                });
+    }
+}
@@ -0,0 +1,164 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Identity of a single {@link CloudVisionApi.Request}: a hash of its image's bytes and its normalised
+ * features, so the same image asked about in the same way always gets the same key. A key for just one of
+ * the features, see {@link #forFeature}, identifies that feature's result for the image.
+ *
+ * The hash is MD5, fast and plenty to tell images apart when nobody is forging collisions. An
+ * {@link ImageSource} is hashed by streaming its raw bytes through the digest, the same way it's written
+ * into a request, so no copy of the image is made. Already encoded content is hashed as its Base64
+ * characters, which means the same image sent both ways gets two different keys.
+ *
+ * Features are sorted by type and duplicates merged, keeping the highest maxResults.
+ */
+public class CacheKey {
+
+    private static final int CHUNK_SIZE = 8192;
+
+    public final String contentHash;
+    public final String features;
+
+    public CacheKey(String contentHash, String features) {
+        this.contentHash = contentHash;
+        this.features = features;
+    }
+
+    /**
+     * Hashes the request's image, reading it in full
+     */
+    public static CacheKey of(CloudVisionApi.Request request) throws IOException {
+        return new CacheKey(hash(request.image), normalize(request.features));
+    }
+
+    /**
+     * @return the key for one feature's result for the image with the given hash
+     */
+    public static CacheKey forFeature(String contentHash, CloudVisionApi.Feature feature) {
+        return new CacheKey(contentHash, feature.type + ':' + feature.maxResults);
+    }
+
+    /**
+     * @return the hex MD5 of the image's raw bytes, or of its Base64 content
+     */
+    public static String hash(CloudVisionApi.Image image) throws IOException {
+        final MessageDigest digest = newDigest();
+
+        if (image.getSource() != null) {
+            image.getSource().writeTo(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    digest.update((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    digest.update(b, off, len);
+                }
+            });
+        } else if (image.content != null) {
+            // Base64 is all ASCII, so each char is one byte
+            String content = image.content;
+            char[] chars = new char[CHUNK_SIZE];
+            byte[] bytes = new byte[CHUNK_SIZE];
+            for (int start = 0; start < content.length(); start += CHUNK_SIZE) {
+                int end = Math.min(start + CHUNK_SIZE, content.length());
+                content.getChars(start, end, chars, 0);
+                for (int i = 0; i < end - start; i++) {
+                    bytes[i] = (byte) chars[i];
+                }
+                digest.update(bytes, 0, end - start);
+            }
+        } else {
+            throw new IOException("Image has neither content nor a source");
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * @return the features sorted by type with duplicates merged, e.g. "FACE_DETECTION:10,LABEL_DETECTION:5"
+     */
+    public static String normalize(List<CloudVisionApi.Feature> features) {
+        StringBuilder builder = new StringBuilder();
+        for (CloudVisionApi.Feature feature : normalizeFeatures(features)) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            builder.append(feature.type).append(':').append(feature.maxResults);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * @return the features sorted by type, with only the highest maxResults kept for a type given twice
+     */
+    public static List<CloudVisionApi.Feature> normalizeFeatures(List<CloudVisionApi.Feature> features) {
+        List<CloudVisionApi.Feature> sorted = new ArrayList<>(features);
+        Collections.sort(sorted, new Comparator<CloudVisionApi.Feature>() {
+            @Override
+            public int compare(CloudVisionApi.Feature a, CloudVisionApi.Feature b) {
+                int byType = a.type.compareTo(b.type);
+                // highest maxResults first, so it's the one kept below
+                return byType != 0 ? byType : b.maxResults - a.maxResults;
+            }
+        });
+
+        List<CloudVisionApi.Feature> normalized = new ArrayList<>(sorted.size());
+        for (CloudVisionApi.Feature feature : sorted) {
+            if (normalized.isEmpty() || !feature.type.equals(normalized.get(normalized.size() - 1).type)) {
+                normalized.add(feature);
+            }
+        }
+        return normalized;
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // every Java platform has to have MD5
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(hex);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        CacheKey cacheKey = (CacheKey) o;
+        return contentHash.equals(cacheKey.contentHash) && features.equals(cacheKey.features);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * contentHash.hashCode() + features.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "CacheKey{" +
+                "contentHash='" + contentHash + '\'' +
+                ", features='" + features + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,384 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.Request;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+/**
+ * {@link CloudVisionService} that answers images it has seen before from an {@link AnnotationCache}.
+ *
+ * Results are cached per image and feature, see {@link CacheKey#forFeature}, so an image that was asked
+ * for labels before and now for labels and faces only goes out for faces. If every feature of every image
+ * is cached the call never goes out; otherwise only the missing images are sent, each with just its missing
+ * features, and the fresh results are stored and merged with the cached ones into one response per image,
+ * in the original order. Images that come back with an error status aren't cached, and their error is
+ * passed on as is. Feature types this library doesn't know are always sent.
+ *
+ * With a {@link NearDuplicateIndex}, images the cache doesn't have are also matched against the latest
+ * results by {@link PerceptualHash}, so the next frame of a burst reuses the one before it. That only
+ * matches an earlier image asked for the very same features. Results found that way aren't copied into the
+ * cache, which only ever holds an image's own results.
+ *
+ * Looking up means reading and hashing every image, so enqueued calls do it on a background thread and
+ * deliver cache hits on Retrofit's callback executor, the main thread on Android, like any other response.
+ *
+ * <code>
+ *   CloudVisionService service = new CachingService(CloudVisionApi.getCloudVisionService(),
+ *           new MemoryAnnotationCache(2 * 1024 * 1024), CloudVisionApi.getRetrofit());
+ *
+ *   // for continuous capture
+ *   CloudVisionService service = new CachingService(CloudVisionApi.getCloudVisionService(),
+ *           null, new NearDuplicateIndex(), CloudVisionApi.getRetrofit());
+ * </code>
+ */
+public class CachingService implements CloudVisionService {
+    private static final String TAG = CachingService.class.getSimpleName();
+
+    private final CloudVisionService mDelegate;
+    private final AnnotationCache mCache;
+    private final NearDuplicateIndex mNearDuplicates;
+    private final Retrofit mRetrofit;
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(Threads.daemonFactory(TAG));
+
+    /**
+     * @param retrofit the Retrofit behind the delegate, whose callback executor cache hits are delivered on
+     */
+    public CachingService(CloudVisionService delegate, AnnotationCache cache, Retrofit retrofit) {
+        this(delegate, cache, null, retrofit);
+    }
+
+    /**
+     * @param cache          exact matches, or null for none
+     * @param nearDuplicates near identical recent images, or null for none
+     * @param retrofit       the Retrofit behind the delegate, whose callback executor cache hits are delivered on
+     */
+    public CachingService(CloudVisionService delegate, AnnotationCache cache, NearDuplicateIndex nearDuplicates,
+                          Retrofit retrofit) {
+        mDelegate = delegate;
+        mCache = cache;
+        mNearDuplicates = nearDuplicates;
+        mRetrofit = retrofit;
+    }
+
+    @Override
+    public Call<CloudVisionApi.VisionResponse> getAnnotations(String apiKey, CloudVisionApi.VisionRequest request) {
+        return new CachingCall(apiKey, request);
+    }
+
+    public AnnotationCache getCache() {
+        return mCache;
+    }
+
+    public NearDuplicateIndex getNearDuplicates() {
+        return mNearDuplicates;
+    }
+
+    /**
+     * What the cache had for one request: a response per image, with gaps for the images still to be sent,
+     * and the features cached so far for those
+     */
+    private class Lookup {
+        final CloudVisionApi.VisionRequest request;
+        final String[] contentHashes;
+        final Long[] perceptualHashes;
+        final CloudVisionApi.AnnotateImageResponse[] responses;
+        final List<EnumMap<CloudVisionApi.FeatureType, CloudVisionApi.Response>> cached = new ArrayList<>();
+        final List<CloudVisionApi.Request> missing = new ArrayList<>();
+        boolean anyCached;
+
+        Lookup(CloudVisionApi.VisionRequest request) throws IOException {
+            this.request = request;
+
+            int count = request.requests.size();
+            contentHashes = new String[count];
+            perceptualHashes = new Long[count];
+            responses = new CloudVisionApi.AnnotateImageResponse[count];
+            for (int i = 0; i < count; i++) {
+                CloudVisionApi.Request image = request.requests.get(i);
+                EnumMap<CloudVisionApi.FeatureType, CloudVisionApi.Response> found =
+                        new EnumMap<>(CloudVisionApi.FeatureType.class);
+                List<CloudVisionApi.Feature> wanted = image.features;
+
+                if (mCache != null) {
+                    contentHashes[i] = CacheKey.hash(image.image);
+                    wanted = new ArrayList<>();
+                    for (CloudVisionApi.Feature feature : CacheKey.normalizeFeatures(image.features)) {
+                        CloudVisionApi.AnnotateImageResponse hit = CloudVisionApi.FeatureType.fromString(feature.type) != null
+                                ? mCache.get(CacheKey.forFeature(contentHashes[i], feature))
+                                : null;
+                        if (hit != null) {
+                            found.putAll(hit.getResponses());
+                        } else {
+                            wanted.add(feature);
+                        }
+                    }
+                    if (wanted.isEmpty()) {
+                        responses[i] = new CloudVisionApi.AnnotateImageResponse(found, null);
+                        anyCached = true;
+                        continue;
+                    }
+                }
+
+                if (mNearDuplicates != null) {
+                    perceptualHashes[i] = perceptualHash(image.image);
+                    if (perceptualHashes[i] != null) {
+                        responses[i] = mNearDuplicates.find(perceptualHashes[i],
+                                CacheKey.normalize(image.features), encodedBytes(image.image));
+                    }
+                    if (responses[i] != null) {
+                        anyCached = true;
+                        continue;
+                    }
+                }
+
+                cached.add(found);
+                if (found.isEmpty() && wanted.size() == CacheKey.normalizeFeatures(image.features).size()) {
+                    missing.add(image);
+                } else {
+                    missing.add(new CloudVisionApi.Request(image.image, wanted));
+                    anyCached = true;
+                }
+            }
+        }
+
+        boolean isComplete() {
+            return missing.isEmpty();
+        }
+
+        /**
+         * @return the original request if nothing was cached, otherwise one with just the missing images,
+         * each asking for just its missing features
+         */
+        CloudVisionApi.VisionRequest getMissingRequest() {
+            return anyCached
+                    ? new CloudVisionApi.VisionRequest(missing, request.getDeadline())
+                    : request;
+        }
+
+        /**
+         * Caches the fresh results and merges them with the cached ones. Errors, and responses that don't
+         * line up with what was sent, are passed through untouched.
+         */
+        Response<CloudVisionApi.VisionResponse> complete(Response<CloudVisionApi.VisionResponse> response) {
+            if (!response.isSuccessful() || response.body().size() != missing.size()) {
+                return response;
+            }
+
+            int next = 0;
+            for (int i = 0; i < responses.length; i++) {
+                if (responses[i] != null) {
+                    continue;
+                }
+
+                EnumMap<CloudVisionApi.FeatureType, CloudVisionApi.Response> merged = cached.get(next);
+                CloudVisionApi.AnnotateImageResponse fresh = response.body().getImageResponse(next);
+                List<CloudVisionApi.Feature> sent = missing.get(next++).features;
+                if (fresh.hasError()) {
+                    responses[i] = fresh;
+                    continue;
+                }
+
+                if (mCache != null) {
+                    for (CloudVisionApi.Feature feature : CacheKey.normalizeFeatures(sent)) {
+                        CloudVisionApi.FeatureType type = CloudVisionApi.FeatureType.fromString(feature.type);
+                        if (type == null) {
+                            continue;
+                        }
+                        // cached even when empty, an image without faces still has none next time
+                        EnumMap<CloudVisionApi.FeatureType, CloudVisionApi.Response> single =
+                                new EnumMap<>(CloudVisionApi.FeatureType.class);
+                        if (fresh.getResponse(type) != null) {
+                            single.put(type, fresh.getResponse(type));
+                        }
+                        mCache.put(CacheKey.forFeature(contentHashes[i], feature),
+                                new CloudVisionApi.AnnotateImageResponse(single, null));
+                    }
+                }
+
+                merged.putAll(fresh.getResponses());
+                responses[i] = new CloudVisionApi.AnnotateImageResponse(merged, null);
+                if (perceptualHashes[i] != null) {
+                    mNearDuplicates.add(perceptualHashes[i],
+                            CacheKey.normalize(request.requests.get(i).features), responses[i]);
+                }
+            }
+            return Response.success(toVisionResponse(), response.raw());
+        }
+
+        CloudVisionApi.VisionResponse toVisionResponse() {
+            List<CloudVisionApi.AnnotateImageResponse> list = new ArrayList<>(responses.length);
+            for (CloudVisionApi.AnnotateImageResponse response : responses) {
+                list.add(response);
+            }
+            return new CloudVisionApi.VisionResponse(list);
+        }
+    }
+
+    /**
+     * @return the image's hash, or null if it can't be decoded, in which case it's simply sent
+     */
+    private static Long perceptualHash(CloudVisionApi.Image image) {
+        try {
+            return PerceptualHash.dHash(image);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "couldn't hash image: " + e);
+            return null;
+        }
+    }
+
+    /**
+     * @return how many bytes the image takes up in a request once Base64 encoded
+     */
+    private static long encodedBytes(CloudVisionApi.Image image) {
+        if (image.getSource() != null) {
+            long raw = image.getSource().byteCount();
+            return raw < 0 ? 0 : (raw + 2) / 3 * 4;
+        }
+        return image.content != null ? image.content.length() : 0;
+    }
+
+    private class CachingCall implements Call<CloudVisionApi.VisionResponse> {
+        private final String mApiKey;
+        private final CloudVisionApi.VisionRequest mRequest;
+
+        private volatile boolean mExecuted;
+        private volatile boolean mCanceled;
+        private Call<CloudVisionApi.VisionResponse> mCurrent;
+
+        CachingCall(String apiKey, CloudVisionApi.VisionRequest request) {
+            mApiKey = apiKey;
+            mRequest = request;
+        }
+
+        @Override
+        public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+            mExecuted = true;
+            if (mCanceled) {
+                throw new IOException("Canceled");
+            }
+
+            Lookup lookup = new Lookup(mRequest);
+            if (lookup.isComplete()) {
+                return Response.success(lookup.toVisionResponse());
+            }
+
+            Call<CloudVisionApi.VisionResponse> call = mDelegate.getAnnotations(mApiKey, lookup.getMissingRequest());
+            setCurrent(call);
+            return lookup.complete(call.execute());
+        }
+
+        @Override
+        public void enqueue(final Callback<CloudVisionApi.VisionResponse> callback) {
+            mExecuted = true;
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final Lookup lookup;
+                    try {
+                        if (mCanceled) {
+                            throw new IOException("Canceled");
+                        }
+                        lookup = new Lookup(mRequest);
+                    } catch (final IOException | RuntimeException e) {
+                        // e.g. an ImageSource that was released, the callback has to hear about it either way
+                        deliver(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onFailure(CachingCall.this, e);
+                            }
+                        });
+                        return;
+                    }
+
+                    if (lookup.isComplete()) {
+                        deliver(new Runnable() {
+                            @Override
+                            public void run() {
+                                callback.onResponse(CachingCall.this, Response.success(lookup.toVisionResponse()));
+                            }
+                        });
+                        return;
+                    }
+
+                    Call<CloudVisionApi.VisionResponse> call = mDelegate.getAnnotations(mApiKey, lookup.getMissingRequest());
+                    setCurrent(call);
+                    call.enqueue(new Callback<CloudVisionApi.VisionResponse>() {
+                        @Override
+                        public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
+                            callback.onResponse(CachingCall.this, lookup.complete(response));
+                        }
+
+                        @Override
+                        public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                            callback.onFailure(CachingCall.this, t);
+                        }
+                    });
+                }
+            });
+        }
+
+        private void deliver(Runnable runnable) {
+            Executor executor = mRetrofit.callbackExecutor();
+            if (executor != null) {
+                executor.execute(runnable);
+            } else {
+                runnable.run();
+            }
+        }
+
+        private void setCurrent(Call<CloudVisionApi.VisionResponse> call) {
+            synchronized (this) {
+                mCurrent = call;
+            }
+            if (mCanceled) {
+                call.cancel();
+            }
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return mExecuted;
+        }
+
+        @Override
+        public void cancel() {
+            Call<CloudVisionApi.VisionResponse> current;
+            synchronized (this) {
+                mCanceled = true;
+                current = mCurrent;
+            }
+
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        @Override
+        public Request request() {
+            return mDelegate.getAnnotations(mApiKey, mRequest).request();
+        }
+
+        @Override
+        public Call<CloudVisionApi.VisionResponse> clone() {
+            return new CachingCall(mApiKey, mRequest);
+        }
+    }
+}
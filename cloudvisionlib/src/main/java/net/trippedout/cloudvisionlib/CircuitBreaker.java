@@ -0,0 +1,204 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Log;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stops sending calls to an API that's failing or crawling, so callers fail fast instead of each waiting out
+ * a full timeout.
+ *
+ * While CLOSED, the outcomes of the last windowSize calls are kept. Once at least minimumCalls are in and
+ * either the failure rate or the slow call rate reaches its threshold, the circuit goes OPEN and every call
+ * is refused for openMillis. After that it goes HALF_OPEN and lets halfOpenCalls trial calls through: if
+ * they're healthy it closes again, otherwise it opens for another openMillis.
+ *
+ * Every state change starts a new epoch, and each call's permit is the epoch it was let through in. Outcomes
+ * are only counted in that same epoch, so a call let through while CLOSED that finishes during HALF_OPEN is
+ * not taken for a trial call.
+ *
+ * See {@link CircuitBreakerService} for putting this in front of a {@link CloudVisionService}.
+ */
+public class CircuitBreaker {
+    private static final String TAG = CircuitBreaker.class.getSimpleName();
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    public final int windowSize;
+    public final int minimumCalls;
+    public final double failureRateThreshold;
+    public final long slowCallMillis;
+    public final double slowCallRateThreshold;
+    public final long openMillis;
+    public final int halfOpenCalls;
+
+    // ring buffers of the last windowSize outcomes
+    private final boolean[] mFailed;
+    private final boolean[] mSlow;
+    private int mCount;
+    private int mNext;
+    private int mFailures;
+    private int mSlowCalls;
+
+    private State mState = State.CLOSED;
+    private long mEpoch;
+    private long mOpenedAtNanos;
+    private int mHalfOpenPermits;
+
+    /**
+     * Opens at 50% failures or 80% of calls slower than 10s, over the last 20 calls with at least 10 in,
+     * for 30s at a time, trying 3 calls before closing again.
+     */
+    public CircuitBreaker() {
+        this(20, 10, 0.5, 10000, 0.8, 30000, 3);
+    }
+
+    /**
+     * @param windowSize            how many of the latest calls the rates are over
+     * @param minimumCalls          calls needed in the window before the circuit can open
+     * @param failureRateThreshold  fraction of failed calls that opens the circuit, e.g. 0.5
+     * @param slowCallMillis        calls taking longer than this count as slow
+     * @param slowCallRateThreshold fraction of slow calls that opens the circuit
+     * @param openMillis            how long calls are refused before trying again
+     * @param halfOpenCalls         trial calls let through, all of which have to finish before deciding
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, long slowCallMillis,
+                          double slowCallRateThreshold, long openMillis, int halfOpenCalls) {
+        this.windowSize = windowSize;
+        this.minimumCalls = Math.min(minimumCalls, windowSize);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallMillis = slowCallMillis;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.openMillis = openMillis;
+        this.halfOpenCalls = Math.min(halfOpenCalls, windowSize);
+
+        mFailed = new boolean[windowSize];
+        mSlow = new boolean[windowSize];
+    }
+
+    /**
+     * @return a permit if a call may go ahead, -1 if not. The call's outcome has to be reported with that
+     * permit through {@link #onSuccess(long, long)}, {@link #onFailure(long, long)} or {@link #onIgnored(long)}.
+     */
+    public synchronized long tryAcquire() {
+        if (mState == State.OPEN) {
+            if (getRemainingOpenMillis() > 0) {
+                return -1;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+
+        if (mState == State.HALF_OPEN) {
+            if (mHalfOpenPermits == 0) {
+                return -1;
+            }
+            mHalfOpenPermits--;
+        }
+        return mEpoch;
+    }
+
+    public synchronized void onSuccess(long permit, long durationNanos) {
+        record(permit, false, durationNanos);
+    }
+
+    public synchronized void onFailure(long permit, long durationNanos) {
+        record(permit, true, durationNanos);
+    }
+
+    /**
+     * Reports a call whose outcome says nothing about the API's health, like a cancelled one
+     */
+    public synchronized void onIgnored(long permit) {
+        if (permit == mEpoch && mState == State.HALF_OPEN) {
+            mHalfOpenPermits = Math.min(halfOpenCalls, mHalfOpenPermits + 1);
+        }
+    }
+
+    private void record(long permit, boolean failed, long durationNanos) {
+        if (permit != mEpoch) {
+            // let through in an earlier state, its outcome is already out of date
+            return;
+        }
+
+        boolean slow = TimeUnit.NANOSECONDS.toMillis(durationNanos) > slowCallMillis;
+        if (mCount == windowSize) {
+            mFailures -= mFailed[mNext] ? 1 : 0;
+            mSlowCalls -= mSlow[mNext] ? 1 : 0;
+        } else {
+            mCount++;
+        }
+        mFailed[mNext] = failed;
+        mSlow[mNext] = slow;
+        mFailures += failed ? 1 : 0;
+        mSlowCalls += slow ? 1 : 0;
+        mNext = (mNext + 1) % windowSize;
+
+        if (mState == State.HALF_OPEN) {
+            if (mCount >= halfOpenCalls) {
+                transitionTo(isUnhealthy() ? State.OPEN : State.CLOSED);
+            }
+        } else if (mCount >= minimumCalls && isUnhealthy()) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    private boolean isUnhealthy() {
+        return getFailureRate() >= failureRateThreshold || getSlowCallRate() >= slowCallRateThreshold;
+    }
+
+    private void transitionTo(State state) {
+        Log.w(TAG, mState + " -> " + state + " at failure rate " + getFailureRate() + ", slow call rate " + getSlowCallRate());
+
+        mState = state;
+        mEpoch++;
+        if (state == State.OPEN) {
+            mOpenedAtNanos = System.nanoTime();
+        } else if (state == State.HALF_OPEN) {
+            mHalfOpenPermits = halfOpenCalls;
+        }
+
+        // every state judges its own calls
+        mCount = 0;
+        mNext = 0;
+        mFailures = 0;
+        mSlowCalls = 0;
+    }
+
+    public synchronized State getState() {
+        if (mState == State.OPEN && getRemainingOpenMillis() == 0) {
+            return State.HALF_OPEN;
+        }
+        return mState;
+    }
+
+    public synchronized double getFailureRate() {
+        return mCount == 0 ? 0 : (double) mFailures / mCount;
+    }
+
+    public synchronized double getSlowCallRate() {
+        return mCount == 0 ? 0 : (double) mSlowCalls / mCount;
+    }
+
+    /**
+     * @return how long until calls are tried again, or 0 if the circuit isn't open
+     */
+    public synchronized long getRemainingOpenMillis() {
+        if (mState != State.OPEN) {
+            return 0;
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mOpenedAtNanos);
+        return Math.max(0, openMillis - elapsed);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{" +
+                "state=" + mState +
+                ", failureRate=" + getFailureRate() +
+                ", slowCallRate=" + getSlowCallRate() +
+                ", remainingOpenMillis=" + getRemainingOpenMillis() +
+                '}';
+    }
+}
@@ -0,0 +1,122 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * {@link CloudVisionService} that checks a {@link CircuitBreaker} before every call and reports every call's
+ * outcome and duration back to it.
+ *
+ * While the circuit is open calls fail right away with a {@link CircuitOpenException}, through
+ * {@link VisionCallback#onFailure} for enqueued calls. I/O errors, 429s and 5xxs count as failures,
+ * cancellations don't count at all.
+ *
+ * <code>
+ *   CircuitBreaker breaker = new CircuitBreaker();
+ *   CloudVisionService service = new CircuitBreakerService(CloudVisionApi.getCloudVisionService(), breaker);
+ * </code>
+ *
+ * Put it outside a {@link RetryingService} so a failing API doesn't also get retried, or inside one to judge
+ * each attempt on its own; {@link RetryPolicy} never retries a {@link CircuitOpenException}.
+ */
+public class CircuitBreakerService implements CloudVisionService {
+
+    private final CloudVisionService mDelegate;
+    private final CircuitBreaker mBreaker;
+
+    public CircuitBreakerService(CloudVisionService delegate, CircuitBreaker breaker) {
+        mDelegate = delegate;
+        mBreaker = breaker;
+    }
+
+    public CircuitBreaker getBreaker() {
+        return mBreaker;
+    }
+
+    @Override
+    public Call<CloudVisionApi.VisionResponse> getAnnotations(String apiKey, CloudVisionApi.VisionRequest request) {
+        return new BreakerCall(mDelegate.getAnnotations(apiKey, request));
+    }
+
+    private void report(long permit, long start, int code) {
+        long duration = System.nanoTime() - start;
+        if (code == 429 || code >= 500) {
+            mBreaker.onFailure(permit, duration);
+        } else {
+            mBreaker.onSuccess(permit, duration);
+        }
+    }
+
+    private void report(long permit, long start, Call<CloudVisionApi.VisionResponse> call) {
+        if (call.isCanceled()) {
+            mBreaker.onIgnored(permit);
+        } else {
+            mBreaker.onFailure(permit, System.nanoTime() - start);
+        }
+    }
+
+    private class BreakerCall extends ForwardingCall {
+        private volatile boolean mExecuted;
+
+        BreakerCall(Call<CloudVisionApi.VisionResponse> delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+            mExecuted = true;
+            long permit = mBreaker.tryAcquire();
+            if (permit < 0) {
+                throw new CircuitOpenException(mBreaker.getRemainingOpenMillis());
+            }
+
+            long start = System.nanoTime();
+            try {
+                Response<CloudVisionApi.VisionResponse> response = mDelegate.execute();
+                report(permit, start, response.code());
+                return response;
+            } catch (IOException | RuntimeException e) {
+                report(permit, start, mDelegate);
+                throw e;
+            }
+        }
+
+        @Override
+        public void enqueue(final Callback<CloudVisionApi.VisionResponse> callback) {
+            mExecuted = true;
+            final long permit = mBreaker.tryAcquire();
+            if (permit < 0) {
+                callback.onFailure(this, new CircuitOpenException(mBreaker.getRemainingOpenMillis()));
+                return;
+            }
+
+            final long start = System.nanoTime();
+            mDelegate.enqueue(new Callback<CloudVisionApi.VisionResponse>() {
+                @Override
+                public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
+                    report(permit, start, response.code());
+                    callback.onResponse(BreakerCall.this, response);
+                }
+
+                @Override
+                public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                    report(permit, start, call);
+                    callback.onFailure(BreakerCall.this, t);
+                }
+            });
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return mExecuted;
+        }
+
+        @Override
+        public Call<CloudVisionApi.VisionResponse> clone() {
+            return new BreakerCall(mDelegate.clone());
+        }
+    }
+}
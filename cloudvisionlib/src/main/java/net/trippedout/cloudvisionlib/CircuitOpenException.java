@@ -0,0 +1,22 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+
+/**
+ * Handed to {@link VisionCallback#onFailure} (or thrown from execute()) when a {@link CircuitBreakerService}
+ * refuses a call without sending it, because the API has been failing. Nothing was uploaded, so the work can
+ * be shed or deferred until {@link #retryAfterMillis} has passed.
+ */
+public class CircuitOpenException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * How long until the circuit lets calls through again, 0 if it's already trying some
+     */
+    public final long retryAfterMillis;
+
+    public CircuitOpenException(long retryAfterMillis) {
+        super("Circuit open, retry after " + retryAfterMillis + "ms");
+        this.retryAfterMillis = retryAfterMillis;
+    }
+}
@@ -1,24 +1,21 @@
 package net.trippedout.cloudvisionlib;
 
-import android.util.Log;
-
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonDeserializationContext;
-import com.google.gson.JsonDeserializer;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParseException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.List;
-import java.util.Map;
 
 import okhttp3.OkHttpClient;
-import okhttp3.logging.HttpLoggingInterceptor;
 import retrofit2.Retrofit;
 import retrofit2.converter.gson.GsonConverterFactory;
 
@@ -29,11 +26,19 @@ import retrofit2.converter.gson.GsonConverterFactory;
  */
 public class CloudVisionApi {
 
-    private static final String BASE_URL = "https://vision.googleapis.com";
+    public static final String BASE_URL = "https://vision.googleapis.com";
+
+    // one connection pool and dispatcher for the default clients, whatever their logging
+    private static OkHttpClient mSharedHttpClient;
+
+    private static CloudVisionClient mLoggingClient;
 
-    private static Retrofit mRetrofit;
+    private static CloudVisionClient mQuietClient;
 
-    private static CloudVisionService mCloudVisionService;
+    // the client getRetrofit() answers for: the first one created, or the one set by the app
+    private static CloudVisionClient mDefaultClient;
+
+    private static boolean mDefaultClientSet;
 
     /**
      * Gets the {@link CloudVisionService} with logging enabled by default.
@@ -45,54 +50,98 @@ public class CloudVisionApi {
     /**
      * Gets the {@link CloudVisionService} used to make calls to the Cloud Vision API.
      *
-     * @param useLogging whether or not to print out all of OkHttp's calls
+     * If the app has set its own client with {@link #setDefaultClient(CloudVisionClient)} that one is
+     * returned, with whatever logging it was built with.
+     *
+     * @param useLogging whether or not to log a summary of every call, see {@link VisionLoggingInterceptor}
      * @return {@link CloudVisionService} instance
      */
-    public static CloudVisionService getCloudVisionService(boolean useLogging) {
-        if (mCloudVisionService == null) {
-            OkHttpClient client = null;
+    public static synchronized CloudVisionService getCloudVisionService(boolean useLogging) {
+        if (mDefaultClientSet) {
+            return mDefaultClient.getService();
+        }
+
+        if (mSharedHttpClient == null) {
+            mSharedHttpClient = new OkHttpClient();
+        }
+
+        CloudVisionClient client = useLogging ? mLoggingClient : mQuietClient;
+        if (client == null) {
+            client = new CloudVisionClient.Builder()
+                    .httpClient(mSharedHttpClient)
+                    .logging(useLogging)
+                    .build();
 
             if (useLogging) {
-                HttpLoggingInterceptor interceptor = new HttpLoggingInterceptor();
-                interceptor.setLevel(HttpLoggingInterceptor.Level.BODY);
-                client = new OkHttpClient.Builder().addInterceptor(interceptor).build();
+                mLoggingClient = client;
+            } else {
+                mQuietClient = client;
+            }
+            if (mDefaultClient == null) {
+                mDefaultClient = client;
             }
-
-            mRetrofit = getRetrofit(client);
-            mCloudVisionService = mRetrofit.create(CloudVisionService.class);
         }
 
-        return mCloudVisionService;
+        return client.getService();
     }
 
-    protected static Retrofit getRetrofit(OkHttpClient client) {
-        if (mRetrofit == null) {
-            // handle custom return type
-            Gson gson = new GsonBuilder()
-                    .setPrettyPrinting()
-                    .registerTypeAdapter(CloudVisionApi.ResponseList.class, new CloudVisionApi.ResponseDeserializer())
-                    .create();
-
-            // add client if needed
-            Retrofit.Builder builder = new Retrofit.Builder();
-            if (client != null)
-                builder.client(client);
-
-            mRetrofit = builder
-                    .addConverterFactory(GsonConverterFactory.create(gson))
-                    .baseUrl(BASE_URL)
-                    .build();
+    /**
+     * Makes the static accessors use the given client, e.g. one tuned with {@link CloudVisionClient.Builder}.
+     * Services handed out before keep working with the client they came from.
+     */
+    public static synchronized void setDefaultClient(CloudVisionClient client) {
+        mDefaultClient = client;
+        mDefaultClientSet = client != null;
+        if (client == null) {
+            mLoggingClient = null;
+            mQuietClient = null;
         }
+    }
+
+    /**
+     * @return Retrofit for the given client, set up like the default one. A new one every time, so the client
+     * is never swapped for a cached one.
+     */
+    protected static Retrofit getRetrofit(OkHttpClient client) {
+        return buildRetrofit(BASE_URL, client);
+    }
+
+    /**
+     * Creates a separate {@link CloudVisionService} for another endpoint, like a regional one, set up the
+     * same way as the default one. See {@link LoadBalancedService} for spreading calls across several.
+     *
+     * @param client OkHttp client to use, or null for a default one. Share one between services so they
+     *               share a connection pool.
+     */
+    public static CloudVisionService createService(String baseUrl, OkHttpClient client) {
+        return buildRetrofit(baseUrl, client).create(CloudVisionService.class);
+    }
 
-        return mRetrofit;
+    static Retrofit buildRetrofit(String baseUrl, OkHttpClient client) {
+        // handle custom return type
+        Gson gson = new GsonBuilder()
+                .setPrettyPrinting()
+                .registerTypeAdapter(CloudVisionApi.AnnotateImageResponse.class, new CloudVisionApi.AnnotateImageResponseAdapter(new Gson()))
+                .create();
+
+        // add client if needed
+        Retrofit.Builder builder = new Retrofit.Builder();
+        if (client != null)
+            builder.client(client);
+
+        return builder
+                .addConverterFactory(new VisionRequestBody.Factory(new Gson()))
+                .addConverterFactory(GsonConverterFactory.create(gson))
+                .baseUrl(baseUrl)
+                .build();
     }
 
-    public static Retrofit getRetrofit() {
-        if (mRetrofit == null) {
+    public static synchronized Retrofit getRetrofit() {
+        if (mDefaultClient == null) {
             throw new NullPointerException("Retrofit is null. Please call CloudVisionApi.getCloudVisionService() first to initialize everything.");
         }
 
-        return mRetrofit;
+        return mDefaultClient.getRetrofit();
     }
 
     /**
@@ -106,8 +155,41 @@ public class CloudVisionApi {
     public static class VisionRequest {
         public final List<Request> requests;
 
+        private final transient Deadline mDeadline;
+
         public VisionRequest(List<Request> requests) {
+            this(requests, Deadline.none());
+        }
+
+        public VisionRequest(List<Request> requests, Deadline deadline) {
             this.requests = requests;
+            this.mDeadline = deadline;
+        }
+
+        /**
+         * @return a copy of this request with the same images, bound by the given deadline
+         */
+        public VisionRequest withDeadline(Deadline deadline) {
+            return new VisionRequest(requests, deadline);
+        }
+
+        public Deadline getDeadline() {
+            return mDeadline;
+        }
+
+        /**
+         * Drops the references to every image's bytes, for when the request won't be sent (again).
+         * Writing the request afterwards fails.
+         *
+         * @see ImageSource#release()
+         */
+        public void release() {
+            for (Request request : requests) {
+                ImageSource source = request.image.getSource();
+                if (source != null) {
+                    source.release();
+                }
+            }
         }
 
         @Override
@@ -144,7 +226,13 @@ public class CloudVisionApi {
     }
 
     /**
-     * A single images content, which is {@link android.util.Base64} encoded data.
+     * A single images content, which is either {@link android.util.Base64} encoded data or an
+     * {@link ImageSource} holding the raw bytes.
+     * <p>
+     * Prefer an {@link ImageSource} (see {@link ImageUtil#getImageSource(String, int)}); its bytes are
+     * Base64 encoded straight into the request by {@link VisionRequestBody}, so no encoded copy
+     * of the image is ever held in memory.
+     * </p>
      * <p>
      * <code>
      *   Bitmap bitmap = BitmapFactory.decodeFile("imagePath|resId", options);
@@ -157,14 +245,31 @@ public class CloudVisionApi {
     public static class Image {
         public final String content;
 
+        private final transient ImageSource mSource;
+
         public Image(String content) {
             this.content = content;
+            this.mSource = null;
+        }
+
+        public Image(ImageSource source) {
+            this.content = null;
+            this.mSource = source;
+        }
+
+        /**
+         * @return the raw image bytes, or null if this image was created with already encoded content
+         */
+        public ImageSource getSource() {
+            return mSource;
         }
 
         @Override
         public String toString() {
+            // the content is the whole image, never worth printing
             return "Image{" +
-                    "content='" + content + '\'' +
+                    "content=" + (content != null ? "<" + content.length() + " chars>" : null) +
+                    ", source=" + mSource +
                     '}';
         }
     }
@@ -181,6 +286,37 @@ public class CloudVisionApi {
     public static final String FEATURE_TYPE_SAFE_SEARCH_DETECTION  = "SAFE_SEARCH_DETECTION";
     public static final String FEATURE_TYPE_IMAGE_PROPERTIES       = "IMAGE_PROPERTIES";
 
+    /**
+     * Typed version of the feature types above (minus {@link #FEATURE_TYPE_TYPE_UNSPECIFIED}), used to key
+     * responses without any string hashing.
+     */
+    public enum FeatureType {
+        FACE_DETECTION(FEATURE_TYPE_FACE_DETECTION),
+        LANDMARK_DETECTION(FEATURE_TYPE_LANDMARK_DETECTION),
+        LOGO_DETECTION(FEATURE_TYPE_LOGO_DETECTION),
+        LABEL_DETECTION(FEATURE_TYPE_LABEL_DETECTION),
+        TEXT_DETECTION(FEATURE_TYPE_TEXT_DETECTION),
+        SAFE_SEARCH_DETECTION(FEATURE_TYPE_SAFE_SEARCH_DETECTION),
+        IMAGE_PROPERTIES(FEATURE_TYPE_IMAGE_PROPERTIES);
+
+        public final String type;
+
+        FeatureType(String type) {
+            this.type = type;
+        }
+
+        /**
+         * @return the matching FeatureType, or null for {@link #FEATURE_TYPE_TYPE_UNSPECIFIED} or unknown types
+         */
+        public static FeatureType fromString(String type) {
+            for (FeatureType featureType : values()) {
+                if (featureType.type.equals(type))
+                    return featureType;
+            }
+            return null;
+        }
+    }
+
     private static final int DEFAULT_MAX_RESULTS = 10;
 
     public static class Feature {
@@ -220,10 +356,18 @@ public class CloudVisionApi {
      * Returns a simple VisionRequest dealing with label detection
      */
     public static VisionRequest getTestRequest(String base64Image) {
+        return getTestRequest(new Image(base64Image));
+    }
+
+    public static VisionRequest getTestRequest(ImageSource source) {
+        return getTestRequest(new Image(source));
+    }
+
+    public static VisionRequest getTestRequest(Image image) {
         List<CloudVisionApi.Request> list = new ArrayList<>();
         list.add(
                 new Request(
-                        new Image(base64Image),
+                        image,
                         Arrays.asList(new CloudVisionApi.Feature(FEATURE_TYPE_LABEL_DETECTION, DEFAULT_MAX_RESULTS))
                 )
         );
@@ -231,10 +375,18 @@ public class CloudVisionApi {
     }
 
     public static VisionRequest getTestRequestAllFeatures(String base64Image) {
+        return getTestRequestAllFeatures(new Image(base64Image));
+    }
+
+    public static VisionRequest getTestRequestAllFeatures(ImageSource source) {
+        return getTestRequestAllFeatures(new Image(source));
+    }
+
+    public static VisionRequest getTestRequestAllFeatures(Image image) {
         List<CloudVisionApi.Request> list = new ArrayList<>();
         list.add(
                 new Request(
-                        new Image(base64Image),
+                        image,
                         ALL_FEATURES
                 )
         );
@@ -244,70 +396,131 @@ public class CloudVisionApi {
     /**
      * Base class for the responses we expect back from the Vision API service.
      *
-     * Because of a somewhat strange API design, our {@link ResponseList} only returns one object,
-     * which is then further broken up into separate Response objects by key. Our {@link ResponseDeserializer}
-     * handles breaking these in to the proper list, but will need updating if the API changes.
-     *
-     * For now, we map the responses to their proper types for easier access while using this API.
+     * There is one {@link AnnotateImageResponse} per {@link Request} that was sent, in the same order, each
+     * holding the typed responses for its own image. {@link #getResponseByType(String)} is kept as a shortcut
+     * for the common single image case.
      */
     public static class VisionResponse {
-        private static final String TAG = VisionResponse.class.getSimpleName();
+        private List<AnnotateImageResponse> responses;
 
-        private ResponseList responses;
+        public VisionResponse(List<AnnotateImageResponse> responses) {
+            this.responses = responses;
+        }
 
         @Override
         public String toString() {
             return "VisionResponse{" +
-                    "mResponseMap=" + getResponseMap() +
                     "responses=" + responses +
                     '}';
         }
 
-        private Map<String, Response> mResponseMap;
-
-        private void mapResponses() {
-            mResponseMap = new HashMap<>(NUMBER_OF_RESPONSE_TYPES);
-            for(Response response : responses) {
-                if (response instanceof LabelResponse)
-                    mResponseMap.put(FEATURE_TYPE_LABEL_DETECTION, response);
-                if (response instanceof LandmarkResponse)
-                    mResponseMap.put(FEATURE_TYPE_LANDMARK_DETECTION, response);
-                if (response instanceof LogoResponse)
-                    mResponseMap.put(FEATURE_TYPE_LOGO_DETECTION, response);
-                if (response instanceof TextResponse)
-                    mResponseMap.put(FEATURE_TYPE_TEXT_DETECTION, response);
-                if (response instanceof ImagePropsResponse)
-                    mResponseMap.put(FEATURE_TYPE_IMAGE_PROPERTIES, response);
-                if (response instanceof FaceDetectResponse)
-                    mResponseMap.put(FEATURE_TYPE_FACE_DETECTION, response);
-                if (response instanceof SafeSearchResponse)
-                    mResponseMap.put(FEATURE_TYPE_SAFE_SEARCH_DETECTION, response);
-            }
+        /**
+         * @return the number of per image responses, which matches the number of requests sent
+         */
+        public int size() {
+            return responses == null ? 0 : responses.size();
         }
 
-        private Map<String, Response> getResponseMap() {
-            if(mResponseMap == null) {
-                mapResponses();
-            }
-            return mResponseMap;
+        /**
+         * @param index index of the {@link Request} in the {@link VisionRequest} that was sent
+         */
+        public AnnotateImageResponse getImageResponse(int index) {
+            return responses.get(index);
+        }
+
+        public List<AnnotateImageResponse> getImageResponses() {
+            return responses == null ? Collections.<AnnotateImageResponse>emptyList() : responses;
         }
 
         /**
-         * Gets the response for the specified feature type. Pass in a
+         * Gets the response for the specified feature type of the first image. Pass in a
          * feature like {@link #FEATURE_TYPE_FACE_DETECTION} to see results.
          *
+         * Use {@link #getImageResponse(int)} when more than one image was sent.
          *
          * @return a {@link Response} you can cast to the proper type, or null if it doesn't exist.
          */
         public Response getResponseByType(String featureType) {
-            return getResponseMap().get(featureType);
+            return size() == 0 ? null : responses.get(0).getResponseByType(featureType);
+        }
+    }
+
+    /**
+     * All the responses for a single image, along with its error status if that image failed.
+     */
+    public static class AnnotateImageResponse {
+        public final Status error;
+
+        private final EnumMap<FeatureType, Response> mResponses;
+
+        public AnnotateImageResponse(EnumMap<FeatureType, Response> responses, Status error) {
+            this.mResponses = responses;
+            this.error = error;
+        }
+
+        public boolean hasError() {
+            return error != null;
+        }
+
+        /**
+         * Gets the response for the specified feature type, like {@link #FEATURE_TYPE_FACE_DETECTION}.
+         *
+         * @return a {@link Response} you can cast to the proper type, or null if it doesn't exist.
+         */
+        public Response getResponseByType(String featureType) {
+            FeatureType type = FeatureType.fromString(featureType);
+            return type == null ? null : mResponses.get(type);
+        }
+
+        public Response getResponse(FeatureType featureType) {
+            return mResponses.get(featureType);
+        }
+
+        /**
+         * @return a copy of all the typed responses for this image
+         */
+        public EnumMap<FeatureType, Response> getResponses() {
+            return new EnumMap<>(mResponses);
+        }
+
+        /**
+         * @return the typed responses as a {@link ResponseList}
+         */
+        public ResponseList getResponseList() {
+            ResponseList list = new ResponseList();
+            list.addAll(mResponses.values());
+            return list;
+        }
+
+        @Override
+        public String toString() {
+            return "AnnotateImageResponse{" +
+                    "responses=" + mResponses.values() +
+                    ", error=" + error +
+                    '}';
         }
     }
 
     /**
-     * Static int for the total number of response types below
+     * Error status for a single image that couldn't be annotated
      */
-    private static final int NUMBER_OF_RESPONSE_TYPES = 7;
+    public static class Status {
+        public final int code;
+        public final String message;
+
+        public Status(int code, String message) {
+            this.code = code;
+            this.message = message;
+        }
+
+        @Override
+        public String toString() {
+            return "Status{" +
+                    "code=" + code +
+                    ", message='" + message + '\'' +
+                    '}';
+        }
+    }
 
     /**
      * labelAnnotations as a part of a response from {@link #FEATURE_TYPE_LABEL_DETECTION}
@@ -319,6 +532,11 @@ public class CloudVisionApi {
             this.labelAnnotations = labelAnnotations;
         }
 
+        @Override
+        public FeatureType getFeatureType() {
+            return FeatureType.LABEL_DETECTION;
+        }
+
         @Override
         public String toString() {
             return "LabelResponse{" +
@@ -337,6 +555,11 @@ public class CloudVisionApi {
             this.landmarkAnnotations = landmarkAnnotations;
         }
 
+        @Override
+        public FeatureType getFeatureType() {
+            return FeatureType.LANDMARK_DETECTION;
+        }
+
         @Override
         public String toString() {
             return "LandmarkResponse{" +
@@ -355,6 +578,11 @@ public class CloudVisionApi {
             this.logoAnnotations = logoAnnotations;
         }
 
+        @Override
+        public FeatureType getFeatureType() {
+            return FeatureType.LOGO_DETECTION;
+        }
+
         @Override
         public String toString() {
             return "LogoResponse{" +
@@ -373,6 +601,11 @@ public class CloudVisionApi {
             this.textAnnotations = textAnnotations;
         }
 
+        @Override
+        public FeatureType getFeatureType() {
+            return FeatureType.TEXT_DETECTION;
+        }
+
         @Override
         public String toString() {
             return "TextResponse{" +
@@ -391,6 +624,11 @@ public class CloudVisionApi {
             this.imagePropertiesAnnotation = imagePropertiesAnnotation;
         }
 
+        @Override
+        public FeatureType getFeatureType() {
+            return FeatureType.IMAGE_PROPERTIES;
+        }
+
         @Override
         public String toString() {
             return "ImagePropsResponse{" +
@@ -409,6 +647,11 @@ public class CloudVisionApi {
             this.faceAnnotations = faceAnnotations;
         }
 
+        @Override
+        public FeatureType getFeatureType() {
+            return FeatureType.FACE_DETECTION;
+        }
+
         @Override
         public String toString() {
             return "FaceDetectResponse{" +
@@ -427,6 +670,11 @@ public class CloudVisionApi {
             this.safeSearchAnnotation = safeSearchAnnotation;
         }
 
+        @Override
+        public FeatureType getFeatureType() {
+            return FeatureType.SAFE_SEARCH_DETECTION;
+        }
+
         @Override
         public String toString() {
             return "SafeSearchResponse{" +
@@ -439,7 +687,7 @@ public class CloudVisionApi {
         public String getMedicalLikelihood() { return safeSearchAnnotation.medical; }
         public String getViolenceLikelihood() { return safeSearchAnnotation.violence; }
 
-        class SafeSearchAnnotation {
+        static class SafeSearchAnnotation {
             public final String adult;
             public final String spoof;
             public final String medical;
@@ -498,15 +746,19 @@ public class CloudVisionApi {
 
 
     /**
-     * Base class that all possible feature responses extend from. It's empty but its mainly for our deserializer to
+     * Base class that all possible feature responses extend from. It's mainly for our adapter to
      * make our lives easier.
      */
-    protected static class Response {
+    protected static abstract class Response {
 
+        /**
+         * @return the feature this is a response to
+         */
+        public abstract FeatureType getFeatureType();
     }
 
     /**
-     * Base class for the ease of use in our deserializer
+     * Plain list of typed responses, see {@link AnnotateImageResponse#getResponseList()}
      */
     public static class ResponseList extends ArrayList<Response> {
 
@@ -514,68 +766,144 @@ public class CloudVisionApi {
 
 
     /**
-     * The information returned by the Vision API is structured slightly awkward, so we needed to create
-     * a custom Deserializer to handle this input
+     * The information returned by the Vision API is structured slightly awkward, so we need a custom
+     * adapter to handle this input.
+     *
+     * Each image's response object is streamed through once with a {@link JsonReader}; we dispatch on the field
+     * name and only build the typed {@link Response}s that are actually present, instead of re-parsing
+     * the whole tree once per response type.
      */
-    public static class ResponseDeserializer implements JsonDeserializer<ResponseList> {
-        private static final String TAG = ResponseDeserializer.class.getSimpleName();
+    public static class AnnotateImageResponseAdapter extends TypeAdapter<AnnotateImageResponse> {
+        private static final String FIELD_FACE_ANNOTATIONS        = "faceAnnotations";
+        private static final String FIELD_LANDMARK_ANNOTATIONS    = "landmarkAnnotations";
+        private static final String FIELD_LOGO_ANNOTATIONS        = "logoAnnotations";
+        private static final String FIELD_LABEL_ANNOTATIONS       = "labelAnnotations";
+        private static final String FIELD_TEXT_ANNOTATIONS        = "textAnnotations";
+        private static final String FIELD_SAFE_SEARCH_ANNOTATION  = "safeSearchAnnotation";
+        private static final String FIELD_IMAGE_PROPS_ANNOTATION  = "imagePropertiesAnnotation";
+        private static final String FIELD_ERROR                   = "error";
+
+        private final TypeAdapter<List<FacesFeature.FaceAnnotations>> mFacesAdapter;
+        private final TypeAdapter<List<Shared.EntityAnnotation>> mEntityAdapter;
+        private final TypeAdapter<SafeSearchResponse.SafeSearchAnnotation> mSafeSearchAdapter;
+        private final TypeAdapter<ImagePropsFeature.ImagePropsAnnotation> mImagePropsAdapter;
+        private final TypeAdapter<Status> mStatusAdapter;
 
-        @Override
-        public ResponseList deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context) throws JsonParseException {
-            ResponseList list = new ResponseList();
+        /**
+         * @param gson plain {@link Gson} instance used to read the annotation POJOs themselves
+         */
+        public AnnotateImageResponseAdapter(Gson gson) {
+            mFacesAdapter = gson.getAdapter(new TypeToken<List<FacesFeature.FaceAnnotations>>() {});
+            mEntityAdapter = gson.getAdapter(new TypeToken<List<Shared.EntityAnnotation>>() {});
+            mSafeSearchAdapter = gson.getAdapter(SafeSearchResponse.SafeSearchAnnotation.class);
+            mImagePropsAdapter = gson.getAdapter(ImagePropsFeature.ImagePropsAnnotation.class);
+            mStatusAdapter = gson.getAdapter(Status.class);
+        }
 
-            JsonArray jsonArray = json.getAsJsonArray();
-            Gson gson = new Gson();
+        @Override
+        public AnnotateImageResponse read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
 
-            for(int i = 0; i < jsonArray.size(); i++) {
-                // for some reason this is always one object even tho there are many potential results, so
-                // just to future proof, gonna treat is as an array and hope for the best
-                JsonElement responses = jsonArray.get(i);
+            EnumMap<FeatureType, Response> responses = new EnumMap<>(FeatureType.class);
+            Status error = null;
 
-                FaceDetectResponse faces = gson.fromJson(responses, FaceDetectResponse.class);
-                if (faces != null && faces.faceAnnotations != null) {
-                    Log.d(TAG, "add faces: " + faces);
-                    list.add(faces);
-                }
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
 
-                LandmarkResponse landmarks = gson.fromJson(responses, LandmarkResponse.class);
-                if (landmarks != null && landmarks.landmarkAnnotations != null) {
-                    Log.d(TAG, "add landmarks: " + landmarks);
-                    list.add(landmarks);
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
                 }
 
-                LogoResponse logos = gson.fromJson(responses, LogoResponse.class);
-                if (logos != null && logos.logoAnnotations != null) {
-                    Log.d(TAG, "add logos: " + logos);
-                    list.add(logos);
+                Response response = null;
+                switch (name) {
+                    case FIELD_FACE_ANNOTATIONS:
+                        response = new FaceDetectResponse(mFacesAdapter.read(in));
+                        break;
+                    case FIELD_LANDMARK_ANNOTATIONS:
+                        response = new LandmarkResponse(mEntityAdapter.read(in));
+                        break;
+                    case FIELD_LOGO_ANNOTATIONS:
+                        response = new LogoResponse(mEntityAdapter.read(in));
+                        break;
+                    case FIELD_LABEL_ANNOTATIONS:
+                        response = new LabelResponse(mEntityAdapter.read(in));
+                        break;
+                    case FIELD_TEXT_ANNOTATIONS:
+                        response = new TextResponse(mEntityAdapter.read(in));
+                        break;
+                    case FIELD_SAFE_SEARCH_ANNOTATION:
+                        response = new SafeSearchResponse(mSafeSearchAdapter.read(in));
+                        break;
+                    case FIELD_IMAGE_PROPS_ANNOTATION:
+                        response = new ImagePropsResponse(mImagePropsAdapter.read(in));
+                        break;
+                    case FIELD_ERROR:
+                        error = mStatusAdapter.read(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
                 }
 
-                LabelResponse labels = gson.fromJson(responses, LabelResponse.class);
-                if (labels != null && labels.labelAnnotations != null) {
-                    Log.d(TAG, "add labels: " + labels);
-                    list.add(labels);
+                if (response != null) {
+                    responses.put(response.getFeatureType(), response);
                 }
+            }
+            in.endObject();
 
-                TextResponse text = gson.fromJson(responses, TextResponse.class);
-                if (text != null && text.textAnnotations != null) {
-                    Log.d(TAG, "add text: " + text);
-                    list.add(text);
-                }
+            return new AnnotateImageResponse(responses, error);
+        }
 
-                SafeSearchResponse safeSearch = gson.fromJson(responses, SafeSearchResponse.class);
-                if (safeSearch != null && safeSearch.safeSearchAnnotation != null) {
-                    Log.d(TAG, "add safeSearch: " + safeSearch);
-                    list.add(safeSearch);
-                }
+        @Override
+        public void write(JsonWriter out, AnnotateImageResponse value) throws IOException {
+            if (value == null) {
+                out.nullValue();
+                return;
+            }
 
-                ImagePropsResponse imageProps = gson.fromJson(responses, ImagePropsResponse.class);
-                if (imageProps != null && imageProps.imagePropertiesAnnotation != null) {
-                    Log.d(TAG, "add imageProps: " + imageProps);
-                    list.add(imageProps);
+            out.beginObject();
+            for (Response response : value.mResponses.values()) {
+                switch (response.getFeatureType()) {
+                    case FACE_DETECTION:
+                        out.name(FIELD_FACE_ANNOTATIONS);
+                        mFacesAdapter.write(out, ((FaceDetectResponse) response).faceAnnotations);
+                        break;
+                    case LANDMARK_DETECTION:
+                        out.name(FIELD_LANDMARK_ANNOTATIONS);
+                        mEntityAdapter.write(out, ((LandmarkResponse) response).landmarkAnnotations);
+                        break;
+                    case LOGO_DETECTION:
+                        out.name(FIELD_LOGO_ANNOTATIONS);
+                        mEntityAdapter.write(out, ((LogoResponse) response).logoAnnotations);
+                        break;
+                    case LABEL_DETECTION:
+                        out.name(FIELD_LABEL_ANNOTATIONS);
+                        mEntityAdapter.write(out, ((LabelResponse) response).labelAnnotations);
+                        break;
+                    case TEXT_DETECTION:
+                        out.name(FIELD_TEXT_ANNOTATIONS);
+                        mEntityAdapter.write(out, ((TextResponse) response).textAnnotations);
+                        break;
+                    case SAFE_SEARCH_DETECTION:
+                        out.name(FIELD_SAFE_SEARCH_ANNOTATION);
+                        mSafeSearchAdapter.write(out, ((SafeSearchResponse) response).safeSearchAnnotation);
+                        break;
+                    case IMAGE_PROPERTIES:
+                        out.name(FIELD_IMAGE_PROPS_ANNOTATION);
+                        mImagePropsAdapter.write(out, ((ImagePropsResponse) response).imagePropertiesAnnotation);
+                        break;
                 }
             }
-
-            return list;
+            if (value.error != null) {
+                out.name(FIELD_ERROR);
+                mStatusAdapter.write(out, value.error);
+            }
+            out.endObject();
         }
     }
 }
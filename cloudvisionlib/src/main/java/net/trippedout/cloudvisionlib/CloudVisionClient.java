@@ -0,0 +1,303 @@
+package net.trippedout.cloudvisionlib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import retrofit2.Retrofit;
+
+/**
+ * One configured connection to the Cloud Vision API: its own OkHttp client, {@link Retrofit} and decorated
+ * {@link CloudVisionService}. Instances are immutable, and several differently tuned ones can live side by
+ * side, e.g. a low latency one for the camera and a high throughput one for a photo backlog.
+ *
+ * <code>
+ *   CloudVisionClient bulk = new CloudVisionClient.Builder()
+ *           .readTimeout(60000)
+ *           .maxRequestsPerHost(16)
+ *           .addDecorator(new CloudVisionClient.Decorator() {
+ *               public CloudVisionService decorate(CloudVisionService service) {
+ *                   return new RetryingService(service, RetryPolicy.DEFAULT);
+ *               }
+ *           })
+ *           .build();
+ *   bulk.getService().getAnnotations(apiKey, request).enqueue(new VisionCallback(bulk.getRetrofit()) { ... });
+ * </code>
+ *
+ * The static {@link CloudVisionApi#getCloudVisionService()} and {@link CloudVisionApi#getRetrofit()} use a
+ * default instance, see {@link CloudVisionApi#setDefaultClient(CloudVisionClient)}.
+ */
+public class CloudVisionClient {
+
+    /**
+     * Wraps the service in one of the library's decorators, like {@link RetryingService}
+     */
+    public interface Decorator {
+        CloudVisionService decorate(CloudVisionService service);
+    }
+
+    private final OkHttpClient mHttpClient;
+    private final Retrofit mRetrofit;
+    private final CloudVisionService mService;
+
+    private CloudVisionClient(Builder builder) {
+        OkHttpClient.Builder http = builder.mHttpClient != null
+                ? builder.mHttpClient.newBuilder()
+                : new OkHttpClient.Builder();
+
+        if (builder.mConnectTimeoutMillis >= 0)
+            http.connectTimeout(builder.mConnectTimeoutMillis, TimeUnit.MILLISECONDS);
+        if (builder.mReadTimeoutMillis >= 0)
+            http.readTimeout(builder.mReadTimeoutMillis, TimeUnit.MILLISECONDS);
+        if (builder.mWriteTimeoutMillis >= 0)
+            http.writeTimeout(builder.mWriteTimeoutMillis, TimeUnit.MILLISECONDS);
+        if (builder.mConnectionPool != null)
+            http.connectionPool(builder.mConnectionPool);
+        if (builder.mProtocols != null)
+            http.protocols(builder.mProtocols);
+        if (builder.mRetryOnConnectionFailure != null)
+            http.retryOnConnectionFailure(builder.mRetryOnConnectionFailure);
+
+        if (builder.mMaxRequests > 0 || builder.mMaxRequestsPerHost > 0) {
+            // our own dispatcher, so limits don't leak into a client we were handed
+            Dispatcher dispatcher = new Dispatcher();
+            if (builder.mMaxRequests > 0)
+                dispatcher.setMaxRequests(builder.mMaxRequests);
+            if (builder.mMaxRequestsPerHost > 0)
+                dispatcher.setMaxRequestsPerHost(builder.mMaxRequestsPerHost);
+            http.dispatcher(dispatcher);
+        }
+
+        for (Interceptor interceptor : builder.mInterceptors) {
+            http.addInterceptor(interceptor);
+        }
+        for (Interceptor interceptor : builder.mNetworkInterceptors) {
+            http.addNetworkInterceptor(interceptor);
+        }
+        if (builder.mLogging) {
+            http.addInterceptor(new VisionLoggingInterceptor());
+        }
+
+        mHttpClient = http.build();
+        mRetrofit = CloudVisionApi.buildRetrofit(builder.mBaseUrl, mHttpClient);
+
+        CloudVisionService service = mRetrofit.create(CloudVisionService.class);
+        for (Decorator decorator : builder.mDecorators) {
+            service = decorator.decorate(service);
+        }
+        if (builder.mCache != null || builder.mNearDuplicates != null) {
+            // outermost, so cache hits skip every other decorator
+            service = new CachingService(service, builder.mCache, builder.mNearDuplicates, mRetrofit);
+        }
+        if (builder.mSingleFlight) {
+            // outside the cache too, so identical calls share a single lookup as well
+            service = new SingleFlightService(service, mRetrofit);
+        }
+        mService = service;
+    }
+
+    /**
+     * @return the service with every decorator applied
+     */
+    public CloudVisionService getService() {
+        return mService;
+    }
+
+    /**
+     * @return the Retrofit instance behind the service, e.g. for a {@link VisionCallback}
+     */
+    public Retrofit getRetrofit() {
+        return mRetrofit;
+    }
+
+    public OkHttpClient getHttpClient() {
+        return mHttpClient;
+    }
+
+    /**
+     * Collects settings for a {@link CloudVisionClient}. Safe to use from several threads; every build()
+     * gets a snapshot of the settings at that point. Anything not set keeps OkHttp's default.
+     */
+    public static class Builder {
+        private String mBaseUrl = CloudVisionApi.BASE_URL;
+        private OkHttpClient mHttpClient;
+        private long mConnectTimeoutMillis = -1;
+        private long mReadTimeoutMillis = -1;
+        private long mWriteTimeoutMillis = -1;
+        private ConnectionPool mConnectionPool;
+        private List<Protocol> mProtocols;
+        private Boolean mRetryOnConnectionFailure;
+        private int mMaxRequests;
+        private int mMaxRequestsPerHost;
+        private boolean mLogging;
+        private AnnotationCache mCache;
+        private NearDuplicateIndex mNearDuplicates;
+        private boolean mSingleFlight;
+        private List<Interceptor> mInterceptors = new ArrayList<>();
+        private List<Interceptor> mNetworkInterceptors = new ArrayList<>();
+        private List<Decorator> mDecorators = new ArrayList<>();
+
+        public synchronized Builder baseUrl(String baseUrl) {
+            mBaseUrl = baseUrl;
+            return this;
+        }
+
+        /**
+         * Starts from an existing client's settings, sharing its connection pool and threads
+         */
+        public synchronized Builder httpClient(OkHttpClient client) {
+            mHttpClient = client;
+            return this;
+        }
+
+        public synchronized Builder connectTimeout(long millis) {
+            mConnectTimeoutMillis = millis;
+            return this;
+        }
+
+        /**
+         * How long to wait for the response, which for big images includes the API's processing time
+         */
+        public synchronized Builder readTimeout(long millis) {
+            mReadTimeoutMillis = millis;
+            return this;
+        }
+
+        /**
+         * How long a single write of the request body may take
+         */
+        public synchronized Builder writeTimeout(long millis) {
+            mWriteTimeoutMillis = millis;
+            return this;
+        }
+
+        /**
+         * @param maxIdleConnections connections kept open between calls
+         * @param keepAliveMillis    how long an idle connection is kept
+         */
+        public synchronized Builder connectionPool(int maxIdleConnections, long keepAliveMillis) {
+            mConnectionPool = new ConnectionPool(maxIdleConnections, keepAliveMillis, TimeUnit.MILLISECONDS);
+            return this;
+        }
+
+        /**
+         * Whether to negotiate HTTP/2, which multiplexes concurrent calls over one connection. On by default.
+         */
+        public synchronized Builder http2(boolean enabled) {
+            mProtocols = enabled
+                    ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                    : Collections.singletonList(Protocol.HTTP_1_1);
+            return this;
+        }
+
+        public synchronized Builder retryOnConnectionFailure(boolean retry) {
+            mRetryOnConnectionFailure = retry;
+            return this;
+        }
+
+        /**
+         * Most enqueued calls OkHttp runs at once, across all hosts
+         */
+        public synchronized Builder maxRequests(int maxRequests) {
+            mMaxRequests = maxRequests;
+            return this;
+        }
+
+        /**
+         * Most enqueued calls OkHttp runs at once to the API. Raise it to at least the limit of any
+         * {@link ConcurrencyLimitedService} in front, OkHttp's default is 5.
+         */
+        public synchronized Builder maxRequestsPerHost(int maxRequestsPerHost) {
+            mMaxRequestsPerHost = maxRequestsPerHost;
+            return this;
+        }
+
+        /**
+         * Logs a summary of every call to logcat with a {@link VisionLoggingInterceptor}. Add one yourself
+         * with {@link #addInterceptor(Interceptor)} to log more of the response bodies.
+         */
+        public synchronized Builder logging(boolean logging) {
+            mLogging = logging;
+            return this;
+        }
+
+        public synchronized Builder addInterceptor(Interceptor interceptor) {
+            mInterceptors.add(interceptor);
+            return this;
+        }
+
+        public synchronized Builder addNetworkInterceptor(Interceptor interceptor) {
+            mNetworkInterceptors.add(interceptor);
+            return this;
+        }
+
+        /**
+         * Decorators wrap the service in the order they're added, so the first one added ends up innermost,
+         * closest to the network
+         */
+        public synchronized Builder addDecorator(Decorator decorator) {
+            mDecorators.add(decorator);
+            return this;
+        }
+
+        /**
+         * Answers images seen before from the cache, see {@link CachingService}
+         */
+        public synchronized Builder cache(AnnotationCache cache) {
+            mCache = cache;
+            return this;
+        }
+
+        /**
+         * Lets near identical images reuse recent results, see {@link CachingService}
+         */
+        public synchronized Builder nearDuplicates(NearDuplicateIndex index) {
+            mNearDuplicates = index;
+            return this;
+        }
+
+        /**
+         * Folds concurrent identical requests into one, see {@link SingleFlightService}
+         */
+        public synchronized Builder singleFlight(boolean enabled) {
+            mSingleFlight = enabled;
+            return this;
+        }
+
+        public synchronized CloudVisionClient build() {
+            return new CloudVisionClient(copy());
+        }
+
+        /**
+         * @return a snapshot of this builder, so the client never sees settings change under it
+         */
+        private Builder copy() {
+            Builder copy = new Builder();
+            copy.mBaseUrl = mBaseUrl;
+            copy.mHttpClient = mHttpClient;
+            copy.mConnectTimeoutMillis = mConnectTimeoutMillis;
+            copy.mReadTimeoutMillis = mReadTimeoutMillis;
+            copy.mWriteTimeoutMillis = mWriteTimeoutMillis;
+            copy.mConnectionPool = mConnectionPool;
+            copy.mProtocols = mProtocols;
+            copy.mRetryOnConnectionFailure = mRetryOnConnectionFailure;
+            copy.mMaxRequests = mMaxRequests;
+            copy.mMaxRequestsPerHost = mMaxRequestsPerHost;
+            copy.mLogging = mLogging;
+            copy.mCache = mCache;
+            copy.mNearDuplicates = mNearDuplicates;
+            copy.mSingleFlight = mSingleFlight;
+            copy.mInterceptors = new ArrayList<>(mInterceptors);
+            copy.mNetworkInterceptors = new ArrayList<>(mNetworkInterceptors);
+            copy.mDecorators = new ArrayList<>(mDecorators);
+            return copy;
+        }
+    }
+}
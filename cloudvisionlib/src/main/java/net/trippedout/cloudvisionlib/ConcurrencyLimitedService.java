@@ -0,0 +1,185 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * {@link CloudVisionService} that only lets as many calls through to the wrapped service as its
+ * {@link ConcurrencyLimiter} allows, feeding every call's round trip time and status back into it.
+ *
+ * All calls made through one instance share a {@link ConcurrencyLimiter.Priority}. Use {@link #withPriority}
+ * to get services for interactive and bulk traffic that share the same limiter:
+ *
+ * <code>
+ *   ConcurrencyLimiter limiter = new ConcurrencyLimiter(new ConcurrencyLimiter.AimdLimit(4, 1, 32, 0.9, 30000));
+ *   ConcurrencyLimitedService interactive = new ConcurrencyLimitedService(CloudVisionApi.getCloudVisionService(), limiter);
+ *   CloudVisionService bulk = interactive.withPriority(ConcurrencyLimiter.Priority.BULK);
+ * </code>
+ *
+ * Make sure OkHttp's own dispatcher allows at least the max limit per host, or calls will just queue up there.
+ */
+public class ConcurrencyLimitedService implements CloudVisionService {
+
+    private final CloudVisionService mDelegate;
+    private final ConcurrencyLimiter mLimiter;
+    private final ConcurrencyLimiter.Priority mPriority;
+
+    /**
+     * Makes {@link ConcurrencyLimiter.Priority#INTERACTIVE} calls
+     */
+    public ConcurrencyLimitedService(CloudVisionService delegate, ConcurrencyLimiter limiter) {
+        this(delegate, limiter, ConcurrencyLimiter.Priority.INTERACTIVE);
+    }
+
+    public ConcurrencyLimitedService(CloudVisionService delegate, ConcurrencyLimiter limiter,
+                                     ConcurrencyLimiter.Priority priority) {
+        mDelegate = delegate;
+        mLimiter = limiter;
+        mPriority = priority;
+    }
+
+    /**
+     * @return a service calling the same delegate through the same limiter, but with the given priority
+     */
+    public ConcurrencyLimitedService withPriority(ConcurrencyLimiter.Priority priority) {
+        return new ConcurrencyLimitedService(mDelegate, mLimiter, priority);
+    }
+
+    public ConcurrencyLimiter getLimiter() {
+        return mLimiter;
+    }
+
+    public ConcurrencyLimiter.Priority getPriority() {
+        return mPriority;
+    }
+
+    @Override
+    public Call<CloudVisionApi.VisionResponse> getAnnotations(String apiKey, CloudVisionApi.VisionRequest request) {
+        return new LimitedCall(mDelegate.getAnnotations(apiKey, request));
+    }
+
+    private class LimitedCall extends ForwardingCall {
+        private volatile boolean mExecuted;
+        private volatile boolean mCanceled;
+
+        private Runnable mWaiting;
+        private Callback<CloudVisionApi.VisionResponse> mCallback;
+
+        LimitedCall(Call<CloudVisionApi.VisionResponse> delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+            mExecuted = true;
+            try {
+                mLimiter.acquireBlocking(mPriority);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting for a permit");
+            }
+
+            long start = System.nanoTime();
+            try {
+                Response<CloudVisionApi.VisionResponse> response = mDelegate.execute();
+                mLimiter.release(System.nanoTime() - start, ConcurrencyLimiter.isOverloadStatus(response.code()));
+                return response;
+            } catch (IOException | RuntimeException e) {
+                // a converter or image source blowing up mustn't keep the permit for good
+                releaseForFailure(start, e);
+                throw e;
+            }
+        }
+
+        @Override
+        public void enqueue(final Callback<CloudVisionApi.VisionResponse> callback) {
+            mExecuted = true;
+
+            Runnable waiting = new Runnable() {
+                @Override
+                public void run() {
+                    if (mCanceled) {
+                        mLimiter.releaseWithoutSample();
+                        callback.onFailure(LimitedCall.this, new IOException("Canceled"));
+                        return;
+                    }
+                    start(callback);
+                }
+            };
+
+            synchronized (this) {
+                mWaiting = waiting;
+                mCallback = callback;
+            }
+            mLimiter.acquire(waiting, mPriority);
+        }
+
+        private void start(final Callback<CloudVisionApi.VisionResponse> callback) {
+            final long start = System.nanoTime();
+            try {
+                mDelegate.enqueue(new Callback<CloudVisionApi.VisionResponse>() {
+                    @Override
+                    public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
+                        mLimiter.release(System.nanoTime() - start, ConcurrencyLimiter.isOverloadStatus(response.code()));
+                        callback.onResponse(LimitedCall.this, response);
+                    }
+
+                    @Override
+                    public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                        releaseForFailure(start, t);
+                        callback.onFailure(LimitedCall.this, t);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // e.g. the delegate was already executed, so it never took the permit over
+                mLimiter.releaseWithoutSample();
+                callback.onFailure(LimitedCall.this, e);
+            }
+        }
+
+        private void releaseForFailure(long start, Throwable t) {
+            if (t instanceof SocketTimeoutException) {
+                mLimiter.release(System.nanoTime() - start, true);
+            } else {
+                mLimiter.releaseWithoutSample();
+            }
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return mExecuted;
+        }
+
+        @Override
+        public void cancel() {
+            mCanceled = true;
+
+            Runnable waiting;
+            Callback<CloudVisionApi.VisionResponse> callback;
+            synchronized (this) {
+                waiting = mWaiting;
+                callback = mCallback;
+            }
+
+            if (waiting != null && mLimiter.remove(waiting)) {
+                callback.onFailure(this, new IOException("Canceled"));
+            } else {
+                mDelegate.cancel();
+            }
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mCanceled || mDelegate.isCanceled();
+        }
+
+        @Override
+        public Call<CloudVisionApi.VisionResponse> clone() {
+            return new LimitedCall(mDelegate.clone());
+        }
+    }
+}
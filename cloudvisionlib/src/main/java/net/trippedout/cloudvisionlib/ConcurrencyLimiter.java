@@ -0,0 +1,349 @@
+package net.trippedout.cloudvisionlib;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caps the number of Cloud Vision calls in flight, with a limit that adapts to observed round trip
+ * times and overload responses (429/503) through a pluggable {@link Limit} algorithm.
+ *
+ * Calls over the limit wait until a permit frees up. Waiting {@link Priority#INTERACTIVE} calls always go
+ * ahead of {@link Priority#BULK} ones, and bulk calls leave a number of permits free for interactive traffic.
+ * A bulk call that has waited longer than the max bulk wait goes next regardless, so bulk work can only
+ * be starved for a bounded time. See {@link ConcurrencyLimitedService} for putting this in front of a
+ * {@link CloudVisionService}.
+ */
+public class ConcurrencyLimiter {
+
+    /**
+     * Algorithm deciding how many calls can be in flight. Only ever called while the limiter is locked,
+     * so implementations don't need to be thread safe.
+     */
+    public interface Limit {
+        int getLimit();
+
+        /**
+         * @param rttNanos round trip time of the call that just finished
+         * @param inFlight number of calls in flight when it finished, including itself
+         * @param dropped  whether the call was throttled or timed out
+         */
+        void onSample(long rttNanos, int inFlight, boolean dropped);
+    }
+
+    public enum Priority {
+        /**
+         * Someone is waiting on the result, like a photo that was just taken
+         */
+        INTERACTIVE,
+
+        /**
+         * Background work, like scanning a photo library
+         */
+        BULK
+    }
+
+    public static final long DEFAULT_MAX_BULK_WAIT_MILLIS = 10000;
+
+    private final Limit mLimit;
+    private final long mMaxBulkWaitNanos;
+    private final int mInteractiveReserve;
+
+    private final ArrayDeque<Waiter> mInteractive = new ArrayDeque<>();
+    private final ArrayDeque<Waiter> mBulk = new ArrayDeque<>();
+
+    private int mInFlight;
+
+    /**
+     * Keeps one permit free for interactive calls and makes bulk calls wait at most
+     * {@link #DEFAULT_MAX_BULK_WAIT_MILLIS} behind them.
+     */
+    public ConcurrencyLimiter(Limit limit) {
+        this(limit, 1, DEFAULT_MAX_BULK_WAIT_MILLIS);
+    }
+
+    /**
+     * @param interactiveReserve permits bulk calls can't use, so interactive calls don't have to wait for them
+     * @param maxBulkWaitMillis  how long a bulk call can be held back behind interactive ones
+     */
+    public ConcurrencyLimiter(Limit limit, int interactiveReserve, long maxBulkWaitMillis) {
+        mLimit = limit;
+        mInteractiveReserve = interactiveReserve;
+        mMaxBulkWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxBulkWaitMillis);
+    }
+
+    /**
+     * Same as {@link #acquire(Runnable, Priority)} with {@link Priority#INTERACTIVE}
+     */
+    public void acquire(Runnable onAcquired) {
+        acquire(onAcquired, Priority.INTERACTIVE);
+    }
+
+    /**
+     * Runs onAcquired once a permit is available, right away if one is free. The permit has to be handed
+     * back with {@link #release(long, boolean)} or {@link #releaseWithoutSample()}.
+     */
+    public void acquire(Runnable onAcquired, Priority priority) {
+        List<Runnable> ready;
+        synchronized (this) {
+            (priority == Priority.BULK ? mBulk : mInteractive).add(new Waiter(onAcquired, System.nanoTime()));
+            ready = dispatch();
+        }
+
+        for (Runnable runnable : ready) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Blocks until a permit is available.
+     */
+    public void acquireBlocking(Priority priority) throws InterruptedException {
+        final CountDownLatch acquired = new CountDownLatch(1);
+        Runnable onAcquired = new Runnable() {
+            @Override
+            public void run() {
+                acquired.countDown();
+            }
+        };
+
+        acquire(onAcquired, priority);
+        try {
+            acquired.await();
+        } catch (InterruptedException e) {
+            if (!remove(onAcquired)) {
+                // got the permit just as we were interrupted
+                releaseWithoutSample();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Removes a callback still waiting for a permit.
+     *
+     * @return false if it already got its permit
+     */
+    public synchronized boolean remove(Runnable onAcquired) {
+        return remove(mInteractive, onAcquired) || remove(mBulk, onAcquired);
+    }
+
+    private static boolean remove(ArrayDeque<Waiter> queue, Runnable onAcquired) {
+        Iterator<Waiter> iterator = queue.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().onAcquired == onAcquired) {
+                iterator.remove();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands back a permit and feeds the call's outcome to the {@link Limit}
+     */
+    public void release(long rttNanos, boolean dropped) {
+        release(true, rttNanos, dropped);
+    }
+
+    /**
+     * Hands back a permit for a call whose outcome says nothing about load, like a cancelled one
+     */
+    public void releaseWithoutSample() {
+        release(false, 0, false);
+    }
+
+    private void release(boolean sample, long rttNanos, boolean dropped) {
+        List<Runnable> ready;
+        synchronized (this) {
+            if (sample) {
+                mLimit.onSample(rttNanos, mInFlight, dropped);
+            }
+            mInFlight--;
+            ready = dispatch();
+        }
+
+        for (Runnable onAcquired : ready) {
+            onAcquired.run();
+        }
+    }
+
+    /**
+     * Hands out as many free permits as the queues and priorities allow. Must hold the lock.
+     *
+     * @return callbacks to run once the lock is released
+     */
+    private List<Runnable> dispatch() {
+        List<Runnable> ready = new ArrayList<>();
+        int limit = mLimit.getLimit();
+
+        while (mInFlight < limit) {
+            Waiter bulk = mBulk.peek();
+            boolean bulkOverdue = bulk != null && System.nanoTime() - bulk.enqueuedAt >= mMaxBulkWaitNanos;
+
+            Waiter next;
+            if (bulkOverdue) {
+                next = mBulk.poll();
+            } else if (!mInteractive.isEmpty()) {
+                next = mInteractive.poll();
+            } else if (bulk != null && mInFlight < Math.max(1, limit - mInteractiveReserve)) {
+                next = mBulk.poll();
+            } else {
+                break;
+            }
+
+            mInFlight++;
+            ready.add(next.onAcquired);
+        }
+        return ready;
+    }
+
+    public synchronized int getLimit() {
+        return mLimit.getLimit();
+    }
+
+    public synchronized int getInFlight() {
+        return mInFlight;
+    }
+
+    public synchronized int getQueueDepth() {
+        return mInteractive.size() + mBulk.size();
+    }
+
+    public synchronized int getQueueDepth(Priority priority) {
+        return priority == Priority.BULK ? mBulk.size() : mInteractive.size();
+    }
+
+    /**
+     * @return whether a response code means the API is throttling us or overloaded
+     */
+    public static boolean isOverloadStatus(int code) {
+        return code == 429 || code == 503;
+    }
+
+    /**
+     * Additive increase, multiplicative decrease. Grows the limit by one for every successful call made
+     * while we're actually using the limit, and cuts it by backoffRatio on every drop or timeout.
+     */
+    public static class AimdLimit implements Limit {
+        private final int mMinLimit;
+        private final int mMaxLimit;
+        private final double mBackoffRatio;
+        private final long mTimeoutNanos;
+
+        private int mLimit;
+
+        /**
+         * @param backoffRatio what the limit gets multiplied by on a drop, between 0.5 and 1
+         * @param timeoutMillis calls slower than this count as dropped
+         */
+        public AimdLimit(int initialLimit, int minLimit, int maxLimit, double backoffRatio, long timeoutMillis) {
+            mLimit = initialLimit;
+            mMinLimit = Math.max(1, minLimit);
+            mMaxLimit = maxLimit;
+            mBackoffRatio = backoffRatio;
+            mTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        }
+
+        @Override
+        public int getLimit() {
+            return mLimit;
+        }
+
+        @Override
+        public void onSample(long rttNanos, int inFlight, boolean dropped) {
+            if (dropped || rttNanos > mTimeoutNanos) {
+                mLimit = Math.max(mMinLimit, (int) (mLimit * mBackoffRatio));
+            } else if (inFlight * 2 >= mLimit) {
+                // only grow when we're using at least half of what we have
+                mLimit = Math.min(mMaxLimit, mLimit + 1);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "AimdLimit{" +
+                    "limit=" + mLimit +
+                    '}';
+        }
+    }
+
+    /**
+     * Compares each call's round trip time to a long term average and shrinks the limit as latency grows
+     * (the requests are queueing somewhere), growing it again while latency stays flat. Drops halve the limit.
+     */
+    public static class GradientLimit implements Limit {
+        private static final int LONG_WINDOW = 100;
+
+        private final int mMinLimit;
+        private final int mMaxLimit;
+        private final double mSmoothing;
+        private final double mRttTolerance;
+
+        private double mEstimatedLimit;
+        private double mLongRttNanos;
+
+        /**
+         * @param smoothing    how quickly the limit moves toward each new estimate, between 0 and 1
+         * @param rttTolerance how much slower than the long term average a call can be before we back off, e.g. 1.5
+         */
+        public GradientLimit(int initialLimit, int minLimit, int maxLimit, double smoothing, double rttTolerance) {
+            mEstimatedLimit = initialLimit;
+            mMinLimit = Math.max(1, minLimit);
+            mMaxLimit = maxLimit;
+            mSmoothing = smoothing;
+            mRttTolerance = rttTolerance;
+        }
+
+        @Override
+        public int getLimit() {
+            return (int) mEstimatedLimit;
+        }
+
+        @Override
+        public void onSample(long rttNanos, int inFlight, boolean dropped) {
+            if (dropped) {
+                mEstimatedLimit = Math.max(mMinLimit, mEstimatedLimit / 2);
+                return;
+            }
+
+            if (mLongRttNanos == 0) {
+                mLongRttNanos = rttNanos;
+            } else {
+                mLongRttNanos += (rttNanos - mLongRttNanos) * 2 / (LONG_WINDOW + 1);
+            }
+
+            // don't grow while most of the limit sits unused
+            if (inFlight * 2 < mEstimatedLimit) {
+                return;
+            }
+
+            double gradient = Math.max(0.5, Math.min(1.0, mRttTolerance * mLongRttNanos / rttNanos));
+            double newLimit = mEstimatedLimit * gradient + Math.sqrt(mEstimatedLimit);
+            newLimit = mEstimatedLimit * (1 - mSmoothing) + newLimit * mSmoothing;
+
+            mEstimatedLimit = Math.max(mMinLimit, Math.min(mMaxLimit, newLimit));
+        }
+
+        @Override
+        public String toString() {
+            return "GradientLimit{" +
+                    "limit=" + getLimit() +
+                    ", longRttMillis=" + TimeUnit.NANOSECONDS.toMillis((long) mLongRttNanos) +
+                    '}';
+        }
+    }
+
+    private static class Waiter {
+        final Runnable onAcquired;
+        final long enqueuedAt;
+
+        Waiter(Runnable onAcquired, long enqueuedAt) {
+            this.onAcquired = onAcquired;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline and cancel signal for one annotate request, checked by every stage it goes through: scaling and
+ * compressing in {@link ImageUtil}, streaming the body in {@link VisionRequestBody}, waiting on retries in
+ * {@link RetryingService} and the network call itself through {@link DeadlineService}.
+ *
+ * Once a deadline expires or is cancelled it's done for good, and every stage drops its work as soon as it
+ * notices, throwing an {@link InterruptedIOException}.
+ *
+ * <code>
+ *   Deadline deadline = Deadline.after(2000);
+ *   ImageSource source = ImageUtil.getImageSource(path, ImageUtil.DEFAULT_BUDGET, deadline);
+ *   service.getAnnotations(apiKey, CloudVisionApi.getTestRequest(source).withDeadline(deadline)).enqueue(callback);
+ *
+ *   // the user moved on to the next frame
+ *   deadline.cancel();
+ * </code>
+ */
+public class Deadline {
+    private static final String TAG = Deadline.class.getSimpleName();
+
+    private static ScheduledExecutorService sScheduler;
+
+    private final long mDeadlineNanos;
+    private final boolean mHasDeadline;
+
+    private final List<Runnable> mListeners = new ArrayList<>();
+    private ScheduledFuture<?> mExpiry;
+    private boolean mCancelled;
+    private boolean mNotified;
+
+    private Deadline(long deadlineNanos, boolean hasDeadline) {
+        mDeadlineNanos = deadlineNanos;
+        mHasDeadline = hasDeadline;
+    }
+
+    /**
+     * @return a deadline the given time from now
+     */
+    public static Deadline after(long millis) {
+        return new Deadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), true);
+    }
+
+    /**
+     * @return a handle that never expires, but can still be cancelled
+     */
+    public static Deadline none() {
+        return new Deadline(0, false);
+    }
+
+    public void cancel() {
+        synchronized (this) {
+            if (mCancelled) {
+                return;
+            }
+            mCancelled = true;
+        }
+        notifyListeners();
+    }
+
+    public synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    public boolean isExpired() {
+        return mHasDeadline && System.nanoTime() - mDeadlineNanos >= 0;
+    }
+
+    /**
+     * @return whether the work this deadline covers should be dropped
+     */
+    public boolean isDone() {
+        return isCancelled() || isExpired();
+    }
+
+    /**
+     * @return how long is left, 0 once done, or {@link Long#MAX_VALUE} if this handle has no deadline
+     */
+    public long remainingMillis() {
+        if (isCancelled()) {
+            return 0;
+        }
+        if (!mHasDeadline) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(mDeadlineNanos - System.nanoTime()));
+    }
+
+    /**
+     * Called by each stage before doing more work
+     *
+     * @throws InterruptedIOException if cancelled or expired
+     */
+    public void throwIfDone() throws InterruptedIOException {
+        if (isCancelled()) {
+            // same message OkHttp uses, so nothing retries it
+            throw new InterruptedIOException("Canceled");
+        }
+        if (isExpired()) {
+            throw new InterruptedIOException("Deadline exceeded");
+        }
+    }
+
+    /**
+     * Runs the listener once this is cancelled or expires, on whichever thread notices first. Runs it right
+     * away if that already happened.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!mNotified && !isDone()) {
+                mListeners.add(listener);
+                if (mHasDeadline && mExpiry == null) {
+                    mExpiry = getScheduler().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            notifyListeners();
+                        }
+                    }, mDeadlineNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     * Removes a listener once its work is finished, so it no longer keeps anything alive until the deadline
+     */
+    public synchronized void removeListener(Runnable listener) {
+        mListeners.remove(listener);
+        if (mListeners.isEmpty() && mExpiry != null) {
+            mExpiry.cancel(false);
+            mExpiry = null;
+        }
+    }
+
+    private void notifyListeners() {
+        List<Runnable> listeners;
+        synchronized (this) {
+            if (mNotified) {
+                return;
+            }
+            mNotified = true;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+            if (mExpiry != null) {
+                mExpiry.cancel(false);
+                mExpiry = null;
+            }
+        }
+
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (sScheduler == null) {
+            sScheduler = Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory(TAG));
+        }
+        return sScheduler;
+    }
+
+    @Override
+    public String toString() {
+        return "Deadline{" +
+                "remainingMillis=" + (mHasDeadline ? remainingMillis() : "none") +
+                ", cancelled=" + isCancelled() +
+                '}';
+    }
+}
@@ -0,0 +1,137 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * {@link CloudVisionService} that holds each call to its request's {@link Deadline}.
+ *
+ * Calls whose deadline is already done fail without being sent. Once the deadline expires or is cancelled
+ * mid-flight, the call is cancelled, which stops the upload and aborts parsing the response. A response
+ * that only arrives after the deadline is dropped rather than delivered.
+ *
+ * The request's {@link ImageSource}s belong to the caller, who may clone the call or resend the request,
+ * so they're left alone; call {@link CloudVisionApi.VisionRequest#release()} once you're done with it.
+ *
+ * Put this outermost, so cancelling reaches every decorator below it:
+ *
+ * <code>
+ *   CloudVisionService service = new DeadlineService(new RetryingService(CloudVisionApi.getCloudVisionService(), RetryPolicy.DEFAULT));
+ *   service.getAnnotations(apiKey, request.withDeadline(Deadline.after(2000))).enqueue(callback);
+ * </code>
+ */
+public class DeadlineService implements CloudVisionService {
+
+    private final CloudVisionService mDelegate;
+
+    public DeadlineService(CloudVisionService delegate) {
+        mDelegate = delegate;
+    }
+
+    @Override
+    public Call<CloudVisionApi.VisionResponse> getAnnotations(String apiKey, CloudVisionApi.VisionRequest request) {
+        return new DeadlineCall(mDelegate.getAnnotations(apiKey, request), request);
+    }
+
+    private class DeadlineCall extends ForwardingCall {
+        private final CloudVisionApi.VisionRequest mRequest;
+        private final Deadline mDeadline;
+
+        private volatile boolean mExecuted;
+
+        private final Runnable mOnDone = new Runnable() {
+            @Override
+            public void run() {
+                mDelegate.cancel();
+            }
+        };
+
+        DeadlineCall(Call<CloudVisionApi.VisionResponse> delegate, CloudVisionApi.VisionRequest request) {
+            super(delegate);
+            mRequest = request;
+            mDeadline = request.getDeadline();
+        }
+
+        @Override
+        public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+            mExecuted = true;
+            mDeadline.throwIfDone();
+
+            mDeadline.addListener(mOnDone);
+            Response<CloudVisionApi.VisionResponse> response;
+            try {
+                response = mDelegate.execute();
+            } catch (IOException e) {
+                // report why we cancelled rather than OkHttp's plain "Canceled"
+                mDeadline.throwIfDone();
+                throw e;
+            } finally {
+                mDeadline.removeListener(mOnDone);
+            }
+
+            dropIfDone(response);
+            return response;
+        }
+
+        @Override
+        public void enqueue(final Callback<CloudVisionApi.VisionResponse> callback) {
+            mExecuted = true;
+            try {
+                mDeadline.throwIfDone();
+            } catch (IOException e) {
+                callback.onFailure(this, e);
+                return;
+            }
+
+            mDeadline.addListener(mOnDone);
+            mDelegate.enqueue(new Callback<CloudVisionApi.VisionResponse>() {
+                @Override
+                public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
+                    mDeadline.removeListener(mOnDone);
+                    try {
+                        dropIfDone(response);
+                    } catch (IOException e) {
+                        callback.onFailure(DeadlineCall.this, e);
+                        return;
+                    }
+                    callback.onResponse(DeadlineCall.this, response);
+                }
+
+                @Override
+                public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                    mDeadline.removeListener(mOnDone);
+                    try {
+                        mDeadline.throwIfDone();
+                    } catch (IOException e) {
+                        t = e;
+                    }
+                    callback.onFailure(DeadlineCall.this, t);
+                }
+            });
+        }
+
+        private void dropIfDone(Response<CloudVisionApi.VisionResponse> response) throws IOException {
+            if (mDeadline.isDone()) {
+                ResponseBody errorBody = response.errorBody();
+                if (errorBody != null) {
+                    errorBody.close();
+                }
+                mDeadline.throwIfDone();
+            }
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return mExecuted;
+        }
+
+        @Override
+        public Call<CloudVisionApi.VisionResponse> clone() {
+            return new DeadlineCall(mDelegate.clone(), mRequest);
+        }
+    }
+}
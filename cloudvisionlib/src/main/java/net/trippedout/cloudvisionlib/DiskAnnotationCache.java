@@ -0,0 +1,401 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+/**
+ * {@link AnnotationCache} on disk, so results survive across sessions. One file per entry in its own
+ * directory, holding the response in {@link AnnotationCodec}'s binary form behind a small header.
+ *
+ * <ul>
+ *     <li>Entries older than ttlMillis are treated as missing and deleted when next looked up.</li>
+ *     <li>Past maxBytes the least recently used entries are deleted. Recency is kept in the files' modified
+ *     times, so it carries over to the next session.</li>
+ *     <li>Writes happen on a background thread, into a temp file that's synced and then renamed into place,
+ *     so a crash never leaves a half written entry. Each entry is checksummed as well.</li>
+ *     <li>Reads memory map the entry and decode it in place.</li>
+ * </ul>
+ *
+ * Put a {@link MemoryAnnotationCache} in front of it with a {@link TieredAnnotationCache}:
+ *
+ * <code>
+ *   AnnotationCache cache = new TieredAnnotationCache(new MemoryAnnotationCache(1024 * 1024),
+ *           new DiskAnnotationCache(new File(getCacheDir(), "annotations"), 10 * 1024 * 1024, TimeUnit.DAYS.toMillis(30)));
+ * </code>
+ */
+public class DiskAnnotationCache implements AnnotationCache {
+    private static final String TAG = DiskAnnotationCache.class.getSimpleName();
+
+    private static final int MAGIC = 0x56434143;
+
+    // magic, written at, payload length, payload checksum
+    private static final int HEADER_BYTES = 4 + 8 + 4 + 8;
+
+    private static final String SUFFIX = ".ann";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private static final int CHECKSUM_CHUNK_BYTES = 4096;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+    private final long mTtlMillis;
+
+    // file name to entry, least recently used first
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor(Threads.daemonFactory(TAG));
+
+    private long mSizeBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private long mExpiredCount;
+
+    /**
+     * One file in the directory. Rewriting it makes a new Entry, which is how a reader that found a bad file
+     * tells whether it's still the one in place.
+     */
+    private static class Entry {
+        final long size;
+
+        Entry(long size) {
+            this.size = size;
+        }
+    }
+
+    /**
+     * A file found when opening the cache, with its modified time read once for sorting
+     */
+    private static class Listed {
+        final File file;
+        final long modified;
+
+        Listed(File file) {
+            this.file = file;
+            this.modified = file.lastModified();
+        }
+    }
+
+    /**
+     * Opens the cache in directory, creating it if needed, and indexes the entries already there.
+     *
+     * @param maxBytes  most bytes the entries may take up on disk
+     * @param ttlMillis how long an entry is good for, 0 for forever
+     */
+    public DiskAnnotationCache(File directory, long maxBytes, long ttlMillis) throws IOException {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        mTtlMillis = ttlMillis;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Couldn't create " + directory);
+        }
+
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Couldn't list " + directory);
+        }
+
+        // a stat per comparison would be slow, and a file touched mid-sort would break the comparator
+        Listed[] listed = new Listed[files.length];
+        for (int i = 0; i < files.length; i++) {
+            listed[i] = new Listed(files[i]);
+        }
+        Arrays.sort(listed, new Comparator<Listed>() {
+            @Override
+            public int compare(Listed a, Listed b) {
+                return a.modified < b.modified ? -1 : (a.modified > b.modified ? 1 : 0);
+            }
+        });
+
+        for (Listed entry : listed) {
+            File file = entry.file;
+            if (file.getName().endsWith(TEMP_SUFFIX)) {
+                // a write that crashed before its rename
+                delete(file);
+            } else if (file.getName().endsWith(SUFFIX)) {
+                long length = file.length();
+                mEntries.put(file.getName(), new Entry(length));
+                mSizeBytes += length;
+            }
+        }
+
+        synchronized (this) {
+            trimTo(mMaxBytes);
+        }
+    }
+
+    @Override
+    public CloudVisionApi.AnnotateImageResponse get(CacheKey key) {
+        String name = getFileName(key);
+        Entry entry;
+        synchronized (this) {
+            // also bumps it in the access order, a bad entry is dropped below anyway
+            entry = mEntries.get(name);
+            if (entry == null) {
+                mMissCount++;
+                return null;
+            }
+        }
+
+        File file = new File(mDirectory, name);
+        CloudVisionApi.AnnotateImageResponse response = null;
+        boolean expired = false;
+        try {
+            ByteBuffer buffer = map(file);
+            if (buffer.remaining() < HEADER_BYTES) {
+                throw new IOException("Truncated header");
+            }
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException("Not a cache entry");
+            }
+
+            long writtenAt = buffer.getLong();
+            if (mTtlMillis > 0 && System.currentTimeMillis() - writtenAt > mTtlMillis) {
+                expired = true;
+            } else {
+                int length = buffer.getInt();
+                long checksum = buffer.getLong();
+                if (length != buffer.remaining() || checksum(buffer) != checksum) {
+                    throw new IOException("Torn or corrupt entry");
+                }
+                response = AnnotationCodec.decode(buffer);
+            }
+        } catch (IOException | RuntimeException e) {
+            // a bad entry is a miss, never a failed lookup
+            Log.w(TAG, "dropping " + name + ": " + e.getMessage());
+        }
+
+        synchronized (this) {
+            if (response == null) {
+                mMissCount++;
+                mExpiredCount += expired ? 1 : 0;
+                // unless the writer replaced it while we were reading
+                if (mEntries.get(name) == entry) {
+                    remove(name);
+                }
+                return null;
+            }
+
+            mHitCount++;
+        }
+
+        if (!file.setLastModified(System.currentTimeMillis())) {
+            Log.d(TAG, "couldn't touch " + name);
+        }
+        return response;
+    }
+
+    /**
+     * Encodes the response right away and writes it out in the background
+     */
+    @Override
+    public void put(CacheKey key, CloudVisionApi.AnnotateImageResponse response) {
+        final String name = getFileName(key);
+        final byte[] payload;
+        try {
+            payload = AnnotationCodec.encode(response);
+        } catch (IOException e) {
+            Log.w(TAG, "couldn't encode " + key, e);
+            return;
+        }
+
+        if (HEADER_BYTES + payload.length > mMaxBytes) {
+            return;
+        }
+
+        try {
+            mWriter.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(name, payload);
+                    } catch (IOException e) {
+                        Log.w(TAG, "couldn't write " + name, e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed, and a cache can always do without an entry
+            Log.d(TAG, "closed, dropping " + name);
+        }
+    }
+
+    private void write(String name, byte[] payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES + payload.length);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(MAGIC);
+        data.writeLong(System.currentTimeMillis());
+        data.writeInt(payload.length);
+        data.writeLong(checksum(ByteBuffer.wrap(payload)));
+        data.write(payload);
+
+        File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(bytes.toByteArray());
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        File file = new File(mDirectory, name);
+        synchronized (this) {
+            if (!temp.renameTo(file)) {
+                delete(temp);
+                throw new IOException("Couldn't rename " + temp);
+            }
+
+            long length = file.length();
+            Entry previous = mEntries.put(name, new Entry(length));
+            mSizeBytes += length - (previous != null ? previous.size : 0);
+            trimTo(mMaxBytes);
+        }
+    }
+
+    /**
+     * Waits for every write handed to {@link #put} so far to land on disk
+     */
+    public void flush() throws InterruptedException {
+        try {
+            mWriter.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public synchronized void clear() {
+        Iterator<String> iterator = mEntries.keySet().iterator();
+        while (iterator.hasNext()) {
+            delete(new File(mDirectory, iterator.next()));
+            iterator.remove();
+        }
+        mSizeBytes = 0;
+    }
+
+    /**
+     * Finishes pending writes in the background and stops taking new ones, later puts are dropped
+     */
+    public void close() {
+        mWriter.shutdown();
+    }
+
+    private void trimTo(long maxBytes) {
+        Iterator<Map.Entry<String, Entry>> iterator = mEntries.entrySet().iterator();
+        while (mSizeBytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<String, Entry> eldest = iterator.next();
+            delete(new File(mDirectory, eldest.getKey()));
+            mSizeBytes -= eldest.getValue().size;
+            iterator.remove();
+            mEvictionCount++;
+        }
+    }
+
+    private void remove(String name) {
+        Entry entry = mEntries.remove(name);
+        if (entry != null) {
+            mSizeBytes -= entry.size;
+            delete(new File(mDirectory, name));
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return how many lookups found an entry past its ttl, also counted as misses
+     */
+    public synchronized long getExpiredCount() {
+        return mExpiredCount;
+    }
+
+    private static String getFileName(CacheKey key) {
+        // the features can be long and the hash is enough of an identity
+        byte[] name = CacheKey.newDigest().digest((key.contentHash + '|' + key.features).getBytes());
+        return CacheKey.toHex(name) + SUFFIX;
+    }
+
+    private static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            // the mapping stays valid after the file is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the CRC32 of the buffer's remaining bytes, leaving its position where it was
+     */
+    private static long checksum(ByteBuffer buffer) {
+        ByteBuffer slice = buffer.slice();
+        byte[] chunk = new byte[Math.min(CHECKSUM_CHUNK_BYTES, slice.remaining())];
+        CRC32 crc = new CRC32();
+        while (slice.hasRemaining()) {
+            int length = Math.min(chunk.length, slice.remaining());
+            slice.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return crc.getValue();
+    }
+
+    private static void delete(File file) {
+        if (!file.delete() && file.exists()) {
+            Log.w(TAG, "couldn't delete " + file);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "DiskAnnotationCache{" +
+                "size=" + mEntries.size() +
+                ", sizeBytes=" + mSizeBytes +
+                ", maxBytes=" + mMaxBytes +
+                ", hits=" + mHitCount +
+                ", misses=" + mMissCount +
+                ", evictions=" + mEvictionCount +
+                ", expired=" + mExpiredCount +
+                '}';
+    }
+}
@@ -0,0 +1,54 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+
+import okhttp3.Request;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * Base for the {@link Call}s our {@link CloudVisionService} decorators hand out. Forwards everything to
+ * the wrapped call; subclasses override whatever they need to hook into.
+ */
+abstract class ForwardingCall implements Call<CloudVisionApi.VisionResponse> {
+
+    protected final Call<CloudVisionApi.VisionResponse> mDelegate;
+
+    ForwardingCall(Call<CloudVisionApi.VisionResponse> delegate) {
+        mDelegate = delegate;
+    }
+
+    @Override
+    public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+        return mDelegate.execute();
+    }
+
+    @Override
+    public void enqueue(Callback<CloudVisionApi.VisionResponse> callback) {
+        mDelegate.enqueue(callback);
+    }
+
+    @Override
+    public boolean isExecuted() {
+        return mDelegate.isExecuted();
+    }
+
+    @Override
+    public void cancel() {
+        mDelegate.cancel();
+    }
+
+    @Override
+    public boolean isCanceled() {
+        return mDelegate.isCanceled();
+    }
+
+    @Override
+    public Request request() {
+        return mDelegate.request();
+    }
+
+    @Override
+    public abstract Call<CloudVisionApi.VisionResponse> clone();
+}
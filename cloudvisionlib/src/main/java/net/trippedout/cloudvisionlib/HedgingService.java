@@ -0,0 +1,315 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * {@link CloudVisionService} that cuts tail latency by hedging: if a call hasn't answered within the given
+ * percentile of recent latencies, a duplicate of it is sent, the first successful answer wins and the
+ * other call is cancelled.
+ *
+ * The duplicate re-sends the same {@link CloudVisionApi.VisionRequest}, streaming its images from the same
+ * {@link ImageSource}s. Hedges are capped at a fraction of all calls so they can't eat through quota.
+ *
+ * <code>
+ *   // hedge after the p95 latency, on at most 5% of calls
+ *   CloudVisionService service = new HedgingService(CloudVisionApi.getCloudVisionService(), 0.95, 500, 0.05);
+ * </code>
+ */
+public class HedgingService implements CloudVisionService {
+    private static final String TAG = HedgingService.class.getSimpleName();
+
+    /**
+     * Latencies needed before we trust the percentile, until then we wait at least ten times the minimum delay
+     */
+    private static final int MIN_SAMPLES = 20;
+
+    /**
+     * Most unused hedges that can pile up while traffic is quiet
+     */
+    private static final double MAX_HEDGE_CREDITS = 10;
+
+    private final CloudVisionService mDelegate;
+    private final double mPercentile;
+    private final long mMinDelayMillis;
+    private final double mMaxHedgeRatio;
+
+    private final LatencyTracker mLatencies = new LatencyTracker(200);
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory(TAG));
+
+    private final AtomicLong mHedges = new AtomicLong();
+    private final AtomicLong mHedgeWins = new AtomicLong();
+    private double mHedgeCredits;
+
+    /**
+     * @param percentile     latency percentile to wait for before hedging, e.g. 0.95
+     * @param minDelayMillis never hedge sooner than this
+     * @param maxHedgeRatio  most hedges as a fraction of all calls, e.g. 0.05
+     */
+    public HedgingService(CloudVisionService delegate, double percentile, long minDelayMillis, double maxHedgeRatio) {
+        mDelegate = delegate;
+        mPercentile = percentile;
+        mMinDelayMillis = minDelayMillis;
+        mMaxHedgeRatio = maxHedgeRatio;
+    }
+
+    @Override
+    public Call<CloudVisionApi.VisionResponse> getAnnotations(String apiKey, CloudVisionApi.VisionRequest request) {
+        return new HedgedCall(mDelegate.getAnnotations(apiKey, request));
+    }
+
+    /**
+     * @return how many duplicate calls have been sent
+     */
+    public long getHedgeCount() {
+        return mHedges.get();
+    }
+
+    /**
+     * @return how many times the duplicate answered first
+     */
+    public long getHedgeWins() {
+        return mHedgeWins.get();
+    }
+
+    /**
+     * @return how long calls currently wait before being hedged
+     */
+    public long getHedgeDelayMillis() {
+        if (mLatencies.size() < MIN_SAMPLES) {
+            return mMinDelayMillis * 10;
+        }
+        return Math.max(mMinDelayMillis, mLatencies.percentile(mPercentile));
+    }
+
+    private synchronized void addHedgeCredit() {
+        mHedgeCredits = Math.min(MAX_HEDGE_CREDITS, mHedgeCredits + mMaxHedgeRatio);
+    }
+
+    private synchronized boolean takeHedgeCredit() {
+        if (mHedgeCredits < 1) {
+            return false;
+        }
+        mHedgeCredits--;
+        return true;
+    }
+
+    private class HedgedCall extends ForwardingCall {
+        private volatile boolean mExecuted;
+        private volatile boolean mCanceled;
+
+        private Callback<CloudVisionApi.VisionResponse> mCallback;
+        private Call<CloudVisionApi.VisionResponse> mHedge;
+        private ScheduledFuture<?> mScheduledHedge;
+        private boolean mDone;
+        private int mOutstanding;
+        private long mStart;
+
+        HedgedCall(Call<CloudVisionApi.VisionResponse> delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+            final CountDownLatch done = new CountDownLatch(1);
+            final Response<?>[] response = new Response<?>[1];
+            final Throwable[] error = new Throwable[1];
+
+            enqueue(new Callback<CloudVisionApi.VisionResponse>() {
+                @Override
+                public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> r) {
+                    response[0] = r;
+                    done.countDown();
+                }
+
+                @Override
+                public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                    error[0] = t;
+                    done.countDown();
+                }
+            });
+
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                cancel();
+                throw new InterruptedIOException("Interrupted waiting for response");
+            }
+
+            if (error[0] instanceof IOException) {
+                throw (IOException) error[0];
+            } else if (error[0] != null) {
+                throw new IOException(error[0]);
+            }
+
+            @SuppressWarnings("unchecked")
+            Response<CloudVisionApi.VisionResponse> result = (Response<CloudVisionApi.VisionResponse>) response[0];
+            return result;
+        }
+
+        @Override
+        public void enqueue(Callback<CloudVisionApi.VisionResponse> callback) {
+            mExecuted = true;
+            addHedgeCredit();
+
+            synchronized (this) {
+                mCallback = callback;
+                mOutstanding = 1;
+                mStart = System.nanoTime();
+                mScheduledHedge = mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        hedge();
+                    }
+                }, getHedgeDelayMillis(), TimeUnit.MILLISECONDS);
+            }
+
+            send(mDelegate, false);
+        }
+
+        private void hedge() {
+            Call<CloudVisionApi.VisionResponse> hedge;
+            synchronized (this) {
+                if (mDone || mCanceled || !takeHedgeCredit()) {
+                    return;
+                }
+                hedge = mDelegate.clone();
+                mHedge = hedge;
+                mOutstanding++;
+            }
+
+            mHedges.incrementAndGet();
+            send(hedge, true);
+        }
+
+        private void send(Call<CloudVisionApi.VisionResponse> call, final boolean isHedge) {
+            call.enqueue(new Callback<CloudVisionApi.VisionResponse>() {
+                @Override
+                public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
+                    if (finish(isHedge, response.isSuccessful())) {
+                        mCallback.onResponse(HedgedCall.this, response);
+                    } else if (response.errorBody() != null) {
+                        // nobody will read it, but it holds the connection until closed
+                        response.errorBody().close();
+                    }
+                }
+
+                @Override
+                public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                    if (finish(isHedge, false)) {
+                        mCallback.onFailure(HedgedCall.this, t);
+                    }
+                }
+            });
+        }
+
+        /**
+         * @return whether this outcome is the one to hand to the callback. A success always wins if we're not
+         * done yet, a failure only if the other call isn't still running.
+         */
+        private boolean finish(boolean isHedge, boolean success) {
+            Call<CloudVisionApi.VisionResponse> loser;
+            synchronized (this) {
+                mOutstanding--;
+                if (mDone || (!success && mOutstanding > 0)) {
+                    return false;
+                }
+
+                mDone = true;
+                mScheduledHedge.cancel(false);
+                loser = mOutstanding > 0 ? (isHedge ? mDelegate : mHedge) : null;
+            }
+
+            if (success) {
+                // what the caller waited, from the primary's start. When the hedge won this is also a lower
+                // bound on the cancelled primary, which is still a truer sample than leaving it out.
+                mLatencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mStart));
+            }
+
+            if (isHedge) {
+                mHedgeWins.incrementAndGet();
+            }
+            if (loser != null) {
+                loser.cancel();
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return mExecuted;
+        }
+
+        @Override
+        public void cancel() {
+            Call<CloudVisionApi.VisionResponse> hedge;
+            synchronized (this) {
+                mCanceled = true;
+                hedge = mHedge;
+                if (mScheduledHedge != null) {
+                    mScheduledHedge.cancel(false);
+                }
+            }
+
+            mDelegate.cancel();
+            if (hedge != null) {
+                hedge.cancel();
+            }
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        @Override
+        public Call<CloudVisionApi.VisionResponse> clone() {
+            return new HedgedCall(mDelegate.clone());
+        }
+    }
+
+    /**
+     * Keeps the most recent latencies in a ring buffer for percentile lookups
+     */
+    static class LatencyTracker {
+        private final long[] mSamples;
+        private int mCount;
+        private int mNext;
+
+        LatencyTracker(int size) {
+            mSamples = new long[size];
+        }
+
+        synchronized void add(long millis) {
+            mSamples[mNext] = millis;
+            mNext = (mNext + 1) % mSamples.length;
+            mCount = Math.min(mCount + 1, mSamples.length);
+        }
+
+        synchronized int size() {
+            return mCount;
+        }
+
+        synchronized long percentile(double percentile) {
+            if (mCount == 0) {
+                return 0;
+            }
+
+            long[] sorted = Arrays.copyOf(mSamples, mCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * mCount) - 1;
+            return sorted[Math.max(0, Math.min(mCount - 1, index))];
+        }
+    }
+}
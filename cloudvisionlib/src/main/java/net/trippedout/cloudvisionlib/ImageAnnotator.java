@@ -0,0 +1,13 @@
+package net.trippedout.cloudvisionlib;
+
+/**
+ * Anything that can annotate one image at a time and hand back its result as a {@link VisionFuture}, like
+ * {@link AsyncVisionService} calling the API for every image or {@link VisionBatcher} batching them up.
+ */
+public interface ImageAnnotator {
+
+    /**
+     * @return a future for this image's own response, which may carry a per image error status
+     */
+    VisionFuture<CloudVisionApi.AnnotateImageResponse> submit(CloudVisionApi.Request request);
+}
@@ -0,0 +1,234 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Raw (not yet Base64 encoded) image bytes for a {@link CloudVisionApi.Image}.
+ *
+ * Sources are only read when the request is actually written out by {@link VisionRequestBody}, which
+ * Base64 encodes them in chunks straight into the HTTP sink, so we never hold an encoded copy of the
+ * image on the heap. Every source can be written more than once.
+ */
+public abstract class ImageSource {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * @return the number of raw bytes this source will write, or -1 if unknown
+     */
+    public abstract long byteCount();
+
+    /**
+     * Writes the raw image bytes to the given stream. Does not close it.
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * Opens the raw image bytes for reading, e.g. to decode a thumbnail. The built in sources read straight
+     * from their file or memory; other subclasses get a copy made with {@link #writeTo(OutputStream)}.
+     */
+    public InputStream openStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(byteCount() > 0 ? (int) byteCount() : BUFFER_SIZE);
+        writeTo(out);
+        return new ByteArrayInputStream(out.toByteArray());
+    }
+
+    /**
+     * Lets go of the bytes held in memory as soon as they're no longer needed, e.g. when a request is
+     * cancelled, rather than whenever the request itself is collected. Writing afterwards fails.
+     */
+    public void release() {
+    }
+
+    public static ImageSource fromFile(File file) {
+        return new FileSource(file);
+    }
+
+    public static ImageSource fromBytes(byte[] bytes) {
+        return new BytesSource(bytes, 0, bytes.length);
+    }
+
+    public static ImageSource fromBytes(byte[] bytes, int offset, int length) {
+        return new BytesSource(bytes, offset, length);
+    }
+
+    /**
+     * Reads the remaining bytes of the buffer on every write, without touching its position. The buffer's
+     * position and limit must not change afterwards.
+     */
+    public static ImageSource fromByteBuffer(ByteBuffer buffer) {
+        return new ByteBufferSource(buffer);
+    }
+
+    private static class FileSource extends ImageSource {
+        private final File mFile;
+
+        FileSource(File file) {
+            mFile = file;
+        }
+
+        @Override
+        public long byteCount() {
+            return mFile.length();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            InputStream in = new FileInputStream(mFile);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return new FileInputStream(mFile);
+        }
+
+        @Override
+        public String toString() {
+            return "FileSource{" +
+                    "file=" + mFile +
+                    '}';
+        }
+    }
+
+    private static class BytesSource extends ImageSource {
+        private volatile byte[] mBytes;
+        private final int mOffset;
+        private final int mLength;
+
+        BytesSource(byte[] bytes, int offset, int length) {
+            mBytes = bytes;
+            mOffset = offset;
+            mLength = length;
+        }
+
+        @Override
+        public long byteCount() {
+            return mLength;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            byte[] bytes = mBytes;
+            if (bytes == null) {
+                throw new IOException("ImageSource was released");
+            }
+            out.write(bytes, mOffset, mLength);
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            byte[] bytes = mBytes;
+            if (bytes == null) {
+                throw new IOException("ImageSource was released");
+            }
+            return new ByteArrayInputStream(bytes, mOffset, mLength);
+        }
+
+        @Override
+        public void release() {
+            mBytes = null;
+        }
+
+        @Override
+        public String toString() {
+            return "BytesSource{" +
+                    "length=" + mLength +
+                    '}';
+        }
+    }
+
+    private static class ByteBufferSource extends ImageSource {
+        private volatile ByteBuffer mBuffer;
+        private final int mRemaining;
+
+        ByteBufferSource(ByteBuffer buffer) {
+            mBuffer = buffer;
+            mRemaining = buffer.remaining();
+        }
+
+        @Override
+        public long byteCount() {
+            return mRemaining;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ByteBuffer source = mBuffer;
+            if (source == null) {
+                throw new IOException("ImageSource was released");
+            }
+
+            ByteBuffer buffer = source.duplicate();
+            if (buffer.hasArray()) {
+                out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+                return;
+            }
+
+            byte[] chunk = new byte[Math.min(BUFFER_SIZE, buffer.remaining())];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            ByteBuffer source = mBuffer;
+            if (source == null) {
+                throw new IOException("ImageSource was released");
+            }
+
+            final ByteBuffer buffer = source.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) {
+                    if (!buffer.hasRemaining()) {
+                        return -1;
+                    }
+                    int length = Math.min(len, buffer.remaining());
+                    buffer.get(b, off, length);
+                    return length;
+                }
+
+                @Override
+                public int available() {
+                    return buffer.remaining();
+                }
+            };
+        }
+
+        @Override
+        public void release() {
+            mBuffer = null;
+        }
+
+        @Override
+        public String toString() {
+            return "ByteBufferSource{" +
+                    "remaining=" + mRemaining +
+                    '}';
+        }
+    }
+}
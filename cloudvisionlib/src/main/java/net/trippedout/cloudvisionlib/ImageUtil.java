@@ -2,10 +2,16 @@ package net.trippedout.cloudvisionlib;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
 import android.util.Base64;
 import android.util.Log;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.List;
 
 /**
  * Helper to get the proper encoded data for use with the Cloud Vision API.
@@ -15,6 +21,60 @@ import java.io.ByteArrayOutputStream;
 public class ImageUtil {
     private static final String TAG = ImageUtil.class.getSimpleName();
 
+    /**
+     * Size and pixel limits an image has to fit within to be uploaded as-is.
+     */
+    public static class Budget {
+        public final long maxBytes;
+        public final long maxPixels;
+
+        /**
+         * @throws IllegalArgumentException unless both limits are positive
+         */
+        public Budget(long maxBytes, long maxPixels) {
+            if (maxBytes <= 0 || maxPixels <= 0) {
+                throw new IllegalArgumentException("Budget needs positive limits, got maxBytes=" + maxBytes
+                        + ", maxPixels=" + maxPixels);
+            }
+            this.maxBytes = maxBytes;
+            this.maxPixels = maxPixels;
+        }
+
+        public boolean fits(long bytes, long pixels) {
+            return bytes <= maxBytes && pixels <= maxPixels;
+        }
+
+        @Override
+        public String toString() {
+            return "Budget{" +
+                    "maxBytes=" + maxBytes +
+                    ", maxPixels=" + maxPixels +
+                    '}';
+        }
+    }
+
+    /**
+     * Default budget of 4MB (the API's per image limit) and 12 megapixels
+     */
+    public static final Budget DEFAULT_BUDGET = new Budget(4 * 1024 * 1024, 12 * 1000 * 1000);
+
+    /**
+     * Budgets per feature type, based on the API's recommended image sizes.
+     *
+     * https://cloud.google.com/vision/docs/supported-files#image_sizing
+     */
+    public static final Budget BUDGET_FACE_DETECTION    = new Budget(2 * 1024 * 1024, 1600 * 1200);
+    public static final Budget BUDGET_TEXT_DETECTION    = new Budget(1024 * 1024, 1024 * 768);
+    public static final Budget BUDGET_LABEL_DETECTION   = new Budget(512 * 1024, 640 * 480);
+    public static final Budget BUDGET_OTHER_DETECTION   = new Budget(512 * 1024, 640 * 480);
+
+    /**
+     * Image formats the Vision API accepts as they are
+     */
+    private static final String[] PASS_THROUGH_MIME_TYPES = {
+            "image/jpeg", "image/png", "image/gif", "image/bmp", "image/webp"
+    };
+
     /**
      * Returns encoded image data for with sample size set to 2 for half the
      * data of a full sized image. Easy to transfer/process, but less results
@@ -38,4 +98,357 @@ public class ImageUtil {
         bitmap.compress(Bitmap.CompressFormat.JPEG, 100, baos);
         return Base64.encodeToString(baos.toByteArray(), Base64.DEFAULT);
     }
+
+    /**
+     * Returns the file at path as is with the {@link #DEFAULT_BUDGET}.
+     *
+     * @see #getImageSource(String, Budget)
+     */
+    public static ImageSource getImageSource(String path) {
+        return getImageSource(path, DEFAULT_BUDGET);
+    }
+
+    /**
+     * Returns the file at path scaled to the largest budget any of the requested features needs.
+     *
+     * @see #getBudget(List)
+     */
+    public static ImageSource getImageSource(String path, List<CloudVisionApi.Feature> features) {
+        return getImageSource(path, getBudget(features));
+    }
+
+    /**
+     * Uploads the original file's bytes without decoding or re-encoding them, as long as the file
+     * already fits within the budget. Only the image bounds are read to check.
+     *
+     * Otherwise it falls back to {@link #decodeBitmap(String, long)} and re-compresses the result
+     * to fit the byte budget with {@link #compressToTarget(Bitmap, long)}.
+     */
+    public static ImageSource getImageSource(String path, Budget budget) {
+        try {
+            return getImageSource(path, budget, Deadline.none());
+        } catch (InterruptedIOException e) {
+            // nobody else holds this handle, so it can't be cancelled
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #getImageSource(String, Budget)}, but gives up between the decode, scale and compress
+     * steps once the deadline is done, recycling whatever bitmap it was working on.
+     *
+     * @throws InterruptedIOException if the deadline expired or was cancelled
+     */
+    public static ImageSource getImageSource(String path, Budget budget, Deadline deadline) throws InterruptedIOException {
+        deadline.throwIfDone();
+        File file = new File(path);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+
+        long pixels = (long) options.outWidth * options.outHeight;
+        if (isPassThroughType(options.outMimeType) && budget.fits(file.length(), pixels)) {
+            Log.d(TAG, "pass through: " + options.outWidth + ", " + options.outHeight + ", " + file.length() + " bytes");
+            return ImageSource.fromFile(file);
+        }
+
+        Bitmap bitmap = decodeBitmap(path, budget.maxPixels, deadline);
+        if (bitmap == null) {
+            throw new IllegalArgumentException("Couldn't decode image at " + path);
+        }
+
+        try {
+            return compressToTarget(bitmap, budget.maxBytes, deadline).source;
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    /**
+     * Returns the largest budget needed by any of the given features, so no feature gets
+     * less resolution than it needs.
+     */
+    public static Budget getBudget(List<CloudVisionApi.Feature> features) {
+        long maxBytes = 0;
+        long maxPixels = 0;
+        for (CloudVisionApi.Feature feature : features) {
+            Budget budget = getBudget(feature.type);
+            maxBytes = Math.max(maxBytes, budget.maxBytes);
+            maxPixels = Math.max(maxPixels, budget.maxPixels);
+        }
+        return features.isEmpty() ? DEFAULT_BUDGET : new Budget(maxBytes, maxPixels);
+    }
+
+    private static Budget getBudget(String featureType) {
+        switch (featureType) {
+            case CloudVisionApi.FEATURE_TYPE_FACE_DETECTION:
+                return BUDGET_FACE_DETECTION;
+            case CloudVisionApi.FEATURE_TYPE_TEXT_DETECTION:
+                return BUDGET_TEXT_DETECTION;
+            case CloudVisionApi.FEATURE_TYPE_LABEL_DETECTION:
+                return BUDGET_LABEL_DETECTION;
+            default:
+                return BUDGET_OTHER_DETECTION;
+        }
+    }
+
+    /**
+     * Decodes the image at path to at most maxPixels, upright according to its EXIF orientation.
+     *
+     * Bounds are probed first so we decode with the largest power of two sample size that still
+     * leaves at least maxPixels, then do one exact scale (and rotation) down to the budget. We never
+     * decode much more than we're going to upload.
+     */
+    public static Bitmap decodeBitmap(String path, long maxPixels) {
+        try {
+            return decodeBitmap(path, maxPixels, Deadline.none());
+        } catch (InterruptedIOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #decodeBitmap(String, long)}, checking the deadline before the decode and the scale
+     *
+     * @throws InterruptedIOException if the deadline expired or was cancelled
+     */
+    public static Bitmap decodeBitmap(String path, long maxPixels, Deadline deadline) throws InterruptedIOException {
+        if (maxPixels <= 0) {
+            // the sample size would double until it overflows
+            throw new IllegalArgumentException("maxPixels has to be positive, got " + maxPixels);
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+
+        int width = options.outWidth;
+        int height = options.outHeight;
+        long pixels = (long) width * height;
+
+        int sampleSize = 1;
+        while (pixels / ((long) sampleSize * sampleSize * 4) >= maxPixels) {
+            sampleSize *= 2;
+        }
+
+        deadline.throwIfDone();
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        Bitmap decoded = BitmapFactory.decodeFile(path, options);
+        if (decoded == null) {
+            return null;
+        }
+
+        if (deadline.isDone()) {
+            decoded.recycle();
+            deadline.throwIfDone();
+        }
+
+        Matrix matrix = new Matrix();
+
+        long decodedPixels = (long) decoded.getWidth() * decoded.getHeight();
+        if (decodedPixels > maxPixels) {
+            float scale = (float) Math.sqrt((double) maxPixels / decodedPixels);
+            matrix.postScale(scale, scale);
+        }
+
+        applyExifOrientation(path, matrix);
+
+        if (matrix.isIdentity()) {
+            return decoded;
+        }
+
+        Bitmap bitmap = Bitmap.createBitmap(decoded, 0, 0, decoded.getWidth(), decoded.getHeight(), matrix, true);
+        if (bitmap != decoded) {
+            decoded.recycle();
+        }
+
+        Log.d(TAG, "decoded " + width + ", " + height + " at sample size " + sampleSize
+                + " to " + bitmap.getWidth() + ", " + bitmap.getHeight());
+        return bitmap;
+    }
+
+    private static void applyExifOrientation(String path, Matrix matrix) {
+        int orientation;
+        try {
+            orientation = new ExifInterface(path).getAttributeInt(
+                    ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Log.w(TAG, "couldn't read exif orientation: " + e.getMessage());
+            return;
+        }
+
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(-90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
+        }
+    }
+
+    private static boolean isPassThroughType(String mimeType) {
+        for (String type : PASS_THROUGH_MIME_TYPES) {
+            if (type.equals(mimeType))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Same as {@link #getEncodedImageData(String, int)} but returns the raw JPEG bytes as an {@link ImageSource},
+     * which gets Base64 encoded straight into the request instead of into a String.
+     */
+    public static ImageSource getImageSource(String path, int sampleSize) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+
+        return getImageSource(BitmapFactory.decodeFile(path, options));
+    }
+
+    /**
+     * Compresses the bitmap to fit within {@link #DEFAULT_BUDGET}.
+     *
+     * @see #compressToTarget(Bitmap, long)
+     */
+    public static ImageSource getImageSource(Bitmap bitmap) {
+        return getImageSource(bitmap, DEFAULT_BUDGET.maxBytes);
+    }
+
+    public static ImageSource getImageSource(Bitmap bitmap, long targetBytes) {
+        return compressToTarget(bitmap, targetBytes).source;
+    }
+
+    /**
+     * The outcome of {@link #compressToTarget(Bitmap, long)}
+     */
+    public static class EncodeResult {
+        public final ImageSource source;
+        public final int quality;
+        public final int byteCount;
+
+        public EncodeResult(ImageSource source, int quality, int byteCount) {
+            this.source = source;
+            this.quality = quality;
+            this.byteCount = byteCount;
+        }
+
+        @Override
+        public String toString() {
+            return "EncodeResult{" +
+                    "quality=" + quality +
+                    ", byteCount=" + byteCount +
+                    '}';
+        }
+    }
+
+    /**
+     * Highest JPEG quality we'll use. Anything above this roughly doubles the size
+     * for no gain in detection.
+     */
+    public static final int MAX_JPEG_QUALITY = 92;
+
+    /**
+     * Lowest JPEG quality we'll search down to before giving up on the target size
+     */
+    public static final int MIN_JPEG_QUALITY = 40;
+
+    /**
+     * Compresses the bitmap as a JPEG with the highest quality (between {@link #MIN_JPEG_QUALITY} and
+     * {@link #MAX_JPEG_QUALITY}) whose output fits within targetBytes, binary searching the quality.
+     *
+     * Every attempt is written into the same growable buffer. If even the lowest quality doesn't fit,
+     * that result is returned anyway and its byteCount will be over target.
+     */
+    public static EncodeResult compressToTarget(Bitmap bitmap, long targetBytes) {
+        try {
+            return compressToTarget(bitmap, targetBytes, Deadline.none());
+        } catch (InterruptedIOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Same as {@link #compressToTarget(Bitmap, long)}, checking the deadline before every attempt. The
+     * buffer is dropped as soon as the deadline is done; the bitmap is left to the caller.
+     *
+     * @throws InterruptedIOException if the deadline expired or was cancelled
+     */
+    public static EncodeResult compressToTarget(Bitmap bitmap, long targetBytes, Deadline deadline) throws InterruptedIOException {
+        ImageOutputStream out = new ImageOutputStream((int) Math.min(targetBytes, 1024 * 1024));
+
+        int low = MIN_JPEG_QUALITY;
+        int high = MAX_JPEG_QUALITY;
+        int best = -1;
+        int quality = high;
+        int attempts = 0;
+
+        while (low <= high) {
+            deadline.throwIfDone();
+            attempts++;
+            out.reset();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, quality, out);
+
+            if (out.size() <= targetBytes) {
+                best = quality;
+                low = quality + 1;
+            } else {
+                high = quality - 1;
+            }
+
+            if (low > high)
+                break;
+
+            quality = (low + high + 1) / 2;
+        }
+
+        if (best == -1) {
+            best = MIN_JPEG_QUALITY;
+        }
+
+        // the buffer holds whichever quality we tried last, which isn't necessarily the one we want
+        if (best != quality) {
+            deadline.throwIfDone();
+            attempts++;
+            out.reset();
+            bitmap.compress(Bitmap.CompressFormat.JPEG, best, out);
+        }
+
+        Log.d(TAG, "bitmap: " + bitmap.getWidth() + ", " + bitmap.getHeight()
+                + " compressed at quality " + best + " to " + out.size() + " bytes in " + attempts + " attempts");
+
+        return new EncodeResult(out.toImageSource(), best, out.size());
+    }
+
+    /**
+     * {@link ByteArrayOutputStream} that hands out its buffer as an {@link ImageSource} without copying it.
+     */
+    static class ImageOutputStream extends ByteArrayOutputStream {
+        ImageOutputStream(int size) {
+            super(size);
+        }
+
+        ImageSource toImageSource() {
+            return ImageSource.fromBytes(buf, 0, count);
+        }
+    }
 }
@@ -0,0 +1,268 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.List;
+
+import okhttp3.ResponseBody;
+import retrofit2.Converter;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+/**
+ * Background thread that drains a {@link VisionJournal}, uploading its jobs in batches of several images per
+ * call whenever the {@link Gate} says it's a good time, e.g. while there's connectivity.
+ *
+ * Jobs are only acked after the {@link Listener} has been handed their results, so a crash anywhere in between
+ * means they're sent again on the next start rather than lost: delivery is at least once. Transient failures
+ * (per {@link RetryPolicy#isRetryable}) keep the jobs and back off, up to a minute between tries. Anything else,
+ * like a missing image or a 400, is handed to the listener as a failure and acked.
+ *
+ * Quota is best handled by the service passed in, e.g. a {@link RateLimitedService} or
+ * {@link CircuitBreakerService}.
+ *
+ * <code>
+ *   VisionJournal journal = new VisionJournal(new File(getFilesDir(), "vision.journal"));
+ *   JournalWorker worker = new JournalWorker(journal, service, CloudVisionApi.getRetrofit(), apiKey,
+ *           VisionBatcher.MAX_IMAGES_PER_REQUEST, gate, listener);
+ *   worker.start();
+ *
+ *   // when a photo is captured
+ *   journal.append(photo.getPath(), CloudVisionApi.ALL_FEATURES);
+ *   worker.wakeUp();
+ * </code>
+ */
+public class JournalWorker {
+    private static final String TAG = JournalWorker.class.getSimpleName();
+
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    /**
+     * Checked before every batch, see {@link #wakeUp()}
+     */
+    public interface Gate {
+        boolean canRun();
+    }
+
+    /**
+     * Called on the worker thread with every job's outcome, before it's acked
+     */
+    public interface Listener {
+        /**
+         * @param response the image's response, which may carry a per image error status
+         */
+        void onResult(VisionJournal.Entry entry, CloudVisionApi.AnnotateImageResponse response);
+
+        /**
+         * The job failed for good and is dropped from the journal
+         */
+        void onFailure(VisionJournal.Entry entry, Throwable t);
+    }
+
+    private final VisionJournal mJournal;
+    private final CloudVisionService mService;
+    private final Retrofit mRetrofit;
+    private final String mApiKey;
+    private final int mBatchSize;
+    private final Gate mGate;
+    private final Listener mListener;
+
+    private final RetryPolicy mRetryPolicy = RetryPolicy.DEFAULT;
+
+    private Thread mThread;
+    private boolean mWoken;
+    private volatile boolean mStopped;
+    private int mFailures;
+
+    /**
+     * @param batchSize most images per call, up to {@link VisionBatcher#MAX_IMAGES_PER_REQUEST}
+     * @param gate      whether uploading is allowed right now, or null to always allow it
+     */
+    public JournalWorker(VisionJournal journal, CloudVisionService service, Retrofit retrofit, String apiKey,
+                         int batchSize, Gate gate, Listener listener) {
+        mJournal = journal;
+        mService = service;
+        mRetrofit = retrofit;
+        mApiKey = apiKey;
+        mBatchSize = Math.min(batchSize, VisionBatcher.MAX_IMAGES_PER_REQUEST);
+        mGate = gate;
+        mListener = listener;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+
+        mThread = Threads.daemonFactory(TAG).newThread(new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        });
+        mThread.start();
+    }
+
+    /**
+     * Gets the worker to look at the journal right away, after appending jobs or when the gate may have
+     * opened up, like on regaining connectivity. Skips any backoff in progress.
+     */
+    public synchronized void wakeUp() {
+        mWoken = true;
+        notifyAll();
+    }
+
+    /**
+     * Stops after the batch in progress. Pending jobs stay in the journal.
+     */
+    public synchronized void stop() {
+        mStopped = true;
+        notifyAll();
+    }
+
+    private void work() {
+        while (!mStopped) {
+            List<VisionJournal.Entry> batch = mJournal.peek(mBatchSize);
+            if (batch.isEmpty()) {
+                // nothing to do until woken
+                sleep(0);
+                continue;
+            }
+            if (mGate != null && !mGate.canRun()) {
+                // check again now and then in case nobody wakes us when it opens up
+                sleep(MAX_BACKOFF_MILLIS);
+                continue;
+            }
+
+            long backoff;
+            try {
+                backoff = send(batch);
+            } catch (IOException e) {
+                // couldn't write the acks, so the jobs will just go again
+                Log.e(TAG, "couldn't ack batch", e);
+                backoff = MAX_BACKOFF_MILLIS;
+            } catch (RuntimeException e) {
+                // e.g. an unparseable response, a released image or the listener itself throwing. The unacked
+                // jobs go again after a backoff, rather than the thread dying and taking the app with it.
+                Log.e(TAG, "batch failed", e);
+                backoff = nextBackoff();
+            }
+
+            if (backoff > 0) {
+                sleep(backoff);
+            }
+        }
+    }
+
+    /**
+     * @return how long to back off before the next batch, 0 for no wait
+     */
+    private long send(List<VisionJournal.Entry> batch) throws IOException {
+        List<VisionJournal.Entry> sent = new ArrayList<>(batch.size());
+        List<CloudVisionApi.Request> requests = new ArrayList<>(batch.size());
+        List<Long> done = new ArrayList<>(batch.size());
+
+        for (VisionJournal.Entry entry : batch) {
+            try {
+                ImageSource source = ImageUtil.getImageSource(entry.imagePath, entry.features);
+                requests.add(new CloudVisionApi.Request(new CloudVisionApi.Image(source), entry.features));
+                sent.add(entry);
+            } catch (RuntimeException e) {
+                // the image is gone or unreadable, no use trying again
+                mListener.onFailure(entry, e);
+                done.add(entry.id);
+            }
+        }
+
+        long backoff = 0;
+        if (!requests.isEmpty()) {
+            Throwable error = null;
+            try {
+                Response<CloudVisionApi.VisionResponse> response
+                        = mService.getAnnotations(mApiKey, new CloudVisionApi.VisionRequest(requests)).execute();
+
+                if (response.isSuccessful() && response.body() == null) {
+                    error = new IOException("Empty response");
+                } else if (response.isSuccessful() && response.body().size() == sent.size()) {
+                    for (int i = 0; i < sent.size(); i++) {
+                        mListener.onResult(sent.get(i), response.body().getImageResponse(i));
+                        done.add(sent.get(i).id);
+                    }
+                } else if (response.isSuccessful()) {
+                    error = new IOException("Expected " + sent.size() + " responses but got " + response.body().size());
+                } else if (mRetryPolicy.isRetryable(response.code())) {
+                    closeQuietly(response.errorBody());
+                    backoff = nextBackoff();
+                } else {
+                    error = new VisionException(parseError(response.errorBody()));
+                }
+            } catch (IOException e) {
+                if (mRetryPolicy.isRetryable(e) || e instanceof CircuitOpenException) {
+                    Log.d(TAG, "backing off after " + e);
+                    backoff = nextBackoff();
+                } else {
+                    error = e;
+                }
+            }
+
+            if (error != null) {
+                for (VisionJournal.Entry entry : sent) {
+                    mListener.onFailure(entry, error);
+                    done.add(entry.id);
+                }
+            }
+            if (backoff == 0) {
+                mFailures = 0;
+            }
+        }
+
+        mJournal.ack(done);
+        return backoff;
+    }
+
+    private long nextBackoff() {
+        mFailures++;
+        return Math.min(MAX_BACKOFF_MILLIS, MIN_BACKOFF_MILLIS << Math.min(mFailures - 1, 16));
+    }
+
+    /**
+     * Waits until woken up, stopped, or the given time has passed if it isn't 0
+     */
+    private synchronized void sleep(long millis) {
+        long end = System.currentTimeMillis() + millis;
+        while (!mWoken && !mStopped) {
+            long remaining = end - System.currentTimeMillis();
+            if (millis > 0 && remaining <= 0) {
+                break;
+            }
+
+            try {
+                wait(millis > 0 ? remaining : 0);
+            } catch (InterruptedException e) {
+                mStopped = true;
+            }
+        }
+        mWoken = false;
+    }
+
+    private CloudVisionApi.Error parseError(ResponseBody errorBody) {
+        Converter<ResponseBody, CloudVisionApi.Error> converter
+                = mRetrofit.responseBodyConverter(CloudVisionApi.Error.class, new Annotation[0]);
+        try {
+            return converter.convert(errorBody);
+        } catch (IOException e) {
+            Log.w(TAG, "couldn't parse error body: " + e.getMessage());
+            return new CloudVisionApi.Error();
+        }
+    }
+
+    private static void closeQuietly(ResponseBody body) {
+        if (body != null) {
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Request;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * {@link CloudVisionService} that spreads calls over a pool of {@link Member}s, each an endpoint and the API
+ * key to use with it, so throughput can grow past a single project's quota.
+ *
+ * Every call goes to the member with the fewest calls outstanding, or in weighted round robin order. A member
+ * that fails maxFailures calls in a row (I/O errors, 429s or 5xxs) is ejected for ejectMillis and then gets
+ * another chance. If every member is ejected, the one coming back soonest is used anyway.
+ *
+ * The apiKey passed to {@link #getAnnotations(String, CloudVisionApi.VisionRequest)} is ignored in favour of
+ * the chosen member's. A member is picked as each call is executed or enqueued, so cloned calls, like a
+ * {@link RetryingService}'s retries, pick one again.
+ *
+ * <code>
+ *   List&lt;LoadBalancedService.Member&gt; members = Arrays.asList(
+ *           new LoadBalancedService.Member(CloudVisionApi.getCloudVisionService(), keyA, 2),
+ *           new LoadBalancedService.Member(CloudVisionApi.createService(euBaseUrl, client), keyB, 1));
+ *   CloudVisionService service = new LoadBalancedService(members, LoadBalancedService.Strategy.LEAST_OUTSTANDING, 3, 30000);
+ * </code>
+ */
+public class LoadBalancedService implements CloudVisionService {
+    private static final String TAG = LoadBalancedService.class.getSimpleName();
+
+    public enum Strategy {
+        /**
+         * Member with the fewest calls in flight, ties broken by weight
+         */
+        LEAST_OUTSTANDING,
+
+        /**
+         * Members in turn, each picked in proportion to its weight
+         */
+        WEIGHTED_ROUND_ROBIN
+    }
+
+    /**
+     * One endpoint and API key pair in the pool. Its counters are only touched under the service's lock.
+     */
+    public static class Member {
+        public final CloudVisionService service;
+        public final String apiKey;
+        public final int weight;
+
+        private int mOutstanding;
+        private int mCurrentWeight;
+        private int mConsecutiveFailures;
+        private long mEjectedUntilNanos;
+        private boolean mEjected;
+        private long mCalls;
+        private long mFailures;
+
+        public Member(CloudVisionService service, String apiKey, int weight) {
+            if (weight < 1) {
+                throw new IllegalArgumentException("weight has to be at least 1");
+            }
+            this.service = service;
+            this.apiKey = apiKey;
+            this.weight = weight;
+        }
+
+        @Override
+        public String toString() {
+            // no key in here, it ends up in logs
+            return "Member{" +
+                    "weight=" + weight +
+                    ", outstanding=" + mOutstanding +
+                    ", ejected=" + mEjected +
+                    ", calls=" + mCalls +
+                    ", failures=" + mFailures +
+                    '}';
+        }
+    }
+
+    private final List<Member> mMembers;
+    private final Strategy mStrategy;
+    private final int mMaxFailures;
+    private final long mEjectNanos;
+
+    /**
+     * @param maxFailures consecutive failures before a member is ejected
+     * @param ejectMillis how long an ejected member sits out
+     */
+    public LoadBalancedService(List<Member> members, Strategy strategy, int maxFailures, long ejectMillis) {
+        if (members.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one member");
+        }
+        mMembers = new ArrayList<>(members);
+        mStrategy = strategy;
+        mMaxFailures = maxFailures;
+        mEjectNanos = TimeUnit.MILLISECONDS.toNanos(ejectMillis);
+    }
+
+    @Override
+    public Call<CloudVisionApi.VisionResponse> getAnnotations(String apiKey, CloudVisionApi.VisionRequest request) {
+        return new BalancedCall(request);
+    }
+
+    public List<Member> getMembers() {
+        return Collections.unmodifiableList(mMembers);
+    }
+
+    /**
+     * @return a snapshot of every member's state, for logging
+     */
+    @Override
+    public synchronized String toString() {
+        return "LoadBalancedService{" +
+                "strategy=" + mStrategy +
+                ", members=" + mMembers +
+                '}';
+    }
+
+    private synchronized Member pick() {
+        long now = System.nanoTime();
+        List<Member> healthy = new ArrayList<>(mMembers.size());
+        Member soonest = null;
+
+        for (Member member : mMembers) {
+            if (member.mEjected && now - member.mEjectedUntilNanos >= 0) {
+                Log.d(TAG, "bringing back " + member);
+                member.mEjected = false;
+                member.mConsecutiveFailures = 0;
+            }
+
+            if (!member.mEjected) {
+                healthy.add(member);
+            } else if (soonest == null || member.mEjectedUntilNanos - soonest.mEjectedUntilNanos < 0) {
+                soonest = member;
+            }
+        }
+
+        if (healthy.isEmpty()) {
+            return soonest;
+        }
+
+        return mStrategy == Strategy.LEAST_OUTSTANDING ? leastOutstanding(healthy) : weightedRoundRobin(healthy);
+    }
+
+    private static Member leastOutstanding(List<Member> members) {
+        Member best = null;
+        for (Member member : members) {
+            // compare outstanding / weight without dividing
+            if (best == null || (long) member.mOutstanding * best.weight < (long) best.mOutstanding * member.weight
+                    || (member.mOutstanding == best.mOutstanding && member.weight > best.weight)) {
+                best = member;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Smooth weighted round robin: every member gains its weight each pick, the one with the most is chosen
+     * and pays back the total. Spreads a member's turns out instead of sending them back to back.
+     */
+    private static Member weightedRoundRobin(List<Member> members) {
+        Member best = null;
+        int total = 0;
+        for (Member member : members) {
+            member.mCurrentWeight += member.weight;
+            total += member.weight;
+            if (best == null || member.mCurrentWeight > best.mCurrentWeight) {
+                best = member;
+            }
+        }
+        best.mCurrentWeight -= total;
+        return best;
+    }
+
+    private synchronized void onStart(Member member) {
+        member.mOutstanding++;
+        member.mCalls++;
+    }
+
+    private synchronized void onFinish(Member member, boolean failed) {
+        member.mOutstanding--;
+        if (!failed) {
+            member.mConsecutiveFailures = 0;
+            return;
+        }
+
+        member.mFailures++;
+        member.mConsecutiveFailures++;
+        if (!member.mEjected && member.mConsecutiveFailures >= mMaxFailures) {
+            member.mEjected = true;
+            member.mEjectedUntilNanos = System.nanoTime() + mEjectNanos;
+            Log.w(TAG, "ejecting " + member + " after " + member.mConsecutiveFailures + " failures in a row");
+        }
+    }
+
+    private static boolean isFailure(int code) {
+        return code == 429 || code >= 500;
+    }
+
+    private static boolean isFailure(Call<CloudVisionApi.VisionResponse> call) {
+        // cancelling says nothing about the member's health
+        return !call.isCanceled();
+    }
+
+    /**
+     * Picks its member when it's executed or enqueued, not when it's created, so calls queued up in front of
+     * the balancer (by a {@link ConcurrencyLimitedService}, say) see the outstanding counts and ejections as
+     * they are when they actually go out.
+     */
+    private class BalancedCall implements Call<CloudVisionApi.VisionResponse> {
+        private final CloudVisionApi.VisionRequest mRequest;
+
+        private volatile boolean mExecuted;
+        private volatile boolean mCanceled;
+        private Call<CloudVisionApi.VisionResponse> mCurrent;
+
+        BalancedCall(CloudVisionApi.VisionRequest request) {
+            mRequest = request;
+        }
+
+        @Override
+        public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+            mExecuted = true;
+            if (mCanceled) {
+                throw new IOException("Canceled");
+            }
+
+            Member member = pick();
+            Call<CloudVisionApi.VisionResponse> call = member.service.getAnnotations(member.apiKey, mRequest);
+            setCurrent(call);
+            onStart(member);
+            try {
+                Response<CloudVisionApi.VisionResponse> response = call.execute();
+                onFinish(member, isFailure(response.code()));
+                return response;
+            } catch (IOException | RuntimeException e) {
+                onFinish(member, isFailure(call));
+                throw e;
+            }
+        }
+
+        @Override
+        public void enqueue(final Callback<CloudVisionApi.VisionResponse> callback) {
+            mExecuted = true;
+            if (mCanceled) {
+                callback.onFailure(this, new IOException("Canceled"));
+                return;
+            }
+
+            final Member member = pick();
+            Call<CloudVisionApi.VisionResponse> call = member.service.getAnnotations(member.apiKey, mRequest);
+            setCurrent(call);
+            onStart(member);
+            call.enqueue(new Callback<CloudVisionApi.VisionResponse>() {
+                @Override
+                public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
+                    onFinish(member, isFailure(response.code()));
+                    callback.onResponse(BalancedCall.this, response);
+                }
+
+                @Override
+                public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                    onFinish(member, isFailure(call));
+                    callback.onFailure(BalancedCall.this, t);
+                }
+            });
+        }
+
+        private void setCurrent(Call<CloudVisionApi.VisionResponse> call) {
+            boolean canceled;
+            synchronized (this) {
+                mCurrent = call;
+                canceled = mCanceled;
+            }
+            if (canceled) {
+                call.cancel();
+            }
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return mExecuted;
+        }
+
+        @Override
+        public void cancel() {
+            Call<CloudVisionApi.VisionResponse> current;
+            synchronized (this) {
+                mCanceled = true;
+                current = mCurrent;
+            }
+
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        @Override
+        public Request request() {
+            // any member builds the same request apart from the key, without a pick to skew the balancing
+            Member member = mMembers.get(0);
+            return member.service.getAnnotations(member.apiKey, mRequest).request();
+        }
+
+        @Override
+        public Call<CloudVisionApi.VisionResponse> clone() {
+            return new BalancedCall(mRequest);
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * {@link AnnotationCache} in memory, holding up to maxBytes worth of responses and evicting the least
+ * recently used ones past that.
+ *
+ * Responses are kept in {@link AnnotationCodec}'s binary form and decoded afresh on every hit, so callers
+ * can change what they get, like {@link FacesFeature.FaceAnnotations#setScaleAndOffsets} does, without
+ * touching the entry. That form is also a fraction of the POJOs' size, and entries are sized by it. Hits,
+ * misses and evictions are counted for tuning maxBytes; behind a {@link CachingService} every entry is one
+ * feature's result for one image, so they count features.
+ *
+ * <code>
+ *   MemoryAnnotationCache cache = new MemoryAnnotationCache(2 * 1024 * 1024);
+ *   CloudVisionService service = new CachingService(CloudVisionApi.getCloudVisionService(), cache, CloudVisionApi.getRetrofit());
+ * </code>
+ */
+public class MemoryAnnotationCache implements AnnotationCache {
+
+    private static final String TAG = MemoryAnnotationCache.class.getSimpleName();
+
+    // rough heap cost of an entry besides its payload, map node, key and array headers included
+    private static final int ENTRY_BYTES = 128;
+
+    private final long mMaxBytes;
+    private final LinkedHashMap<CacheKey, Entry> mEntries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long mSizeBytes;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    private static class Entry {
+        final byte[] payload;
+        final long size;
+
+        Entry(byte[] payload, long size) {
+            this.payload = payload;
+            this.size = size;
+        }
+    }
+
+    public MemoryAnnotationCache(long maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    @Override
+    public CloudVisionApi.AnnotateImageResponse get(CacheKey key) {
+        Entry entry;
+        synchronized (this) {
+            entry = mEntries.get(key);
+            if (entry == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+        }
+
+        try {
+            return AnnotationCodec.decode(ByteBuffer.wrap(entry.payload));
+        } catch (IOException e) {
+            // can only happen if the codec doesn't round trip its own output
+            Log.w(TAG, "dropping " + key + ": " + e.getMessage());
+            remove(key);
+            return null;
+        }
+    }
+
+    @Override
+    public void put(CacheKey key, CloudVisionApi.AnnotateImageResponse response) {
+        byte[] payload;
+        try {
+            payload = AnnotationCodec.encode(response);
+        } catch (IOException e) {
+            Log.w(TAG, "couldn't encode " + key, e);
+            return;
+        }
+
+        long size = ENTRY_BYTES + 2 * (key.contentHash.length() + key.features.length()) + payload.length;
+        synchronized (this) {
+            Entry previous = mEntries.remove(key);
+            if (previous != null) {
+                mSizeBytes -= previous.size;
+            }
+            if (size > mMaxBytes) {
+                // would only push everything else out
+                return;
+            }
+
+            mEntries.put(key, new Entry(payload, size));
+            mSizeBytes += size;
+            trimTo(mMaxBytes);
+        }
+    }
+
+    public synchronized void remove(CacheKey key) {
+        Entry entry = mEntries.remove(key);
+        if (entry != null) {
+            mSizeBytes -= entry.size;
+        }
+    }
+
+    public synchronized void clear() {
+        mEntries.clear();
+        mSizeBytes = 0;
+    }
+
+    private void trimTo(long maxBytes) {
+        Iterator<Entry> iterator = mEntries.values().iterator();
+        while (mSizeBytes > maxBytes && iterator.hasNext()) {
+            mSizeBytes -= iterator.next().size;
+            iterator.remove();
+            mEvictionCount++;
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public synchronized long getSizeBytes() {
+        return mSizeBytes;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MemoryAnnotationCache{" +
+                "size=" + mEntries.size() +
+                ", sizeBytes=" + mSizeBytes +
+                ", maxBytes=" + mMaxBytes +
+                ", hits=" + mHitCount +
+                ", misses=" + mMissCount +
+                ", evictions=" + mEvictionCount +
+                '}';
+    }
+}
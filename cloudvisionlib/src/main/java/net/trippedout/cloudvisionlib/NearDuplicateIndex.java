@@ -0,0 +1,161 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The most recently annotated images by {@link PerceptualHash}, so a near identical image, like the next
+ * frame of a burst, can reuse an earlier result instead of going out to the API.
+ *
+ * An image matches an entry if their hashes are at most maxDistance bits apart, it asks for the same
+ * features, and the entry is younger than maxAgeMillis, so a scene that sits still is still re-checked now
+ * and then. The closest match wins. With only the last capacity images kept, a straight scan of the packed
+ * hashes is a handful of XORs and bit counts, faster than any tree over them.
+ *
+ * Results are kept in {@link AnnotationCodec}'s binary form and every match gets its own decoded copy, so
+ * scaling one frame's faces for display doesn't move the next frame's.
+ *
+ * Counts the images it answered and the upload bytes that saved. See {@link CachingService} for using it.
+ */
+public class NearDuplicateIndex {
+    private static final String TAG = NearDuplicateIndex.class.getSimpleName();
+
+    public final int capacity;
+    public final int maxDistance;
+    public final long maxAgeMillis;
+
+    // ring buffers of the last capacity entries
+    private final long[] mHashes;
+    private final String[] mFeatures;
+    private final byte[][] mResponses;
+    private final long[] mAddedAt;
+    private int mCount;
+    private int mNext;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mSavedBytes;
+
+    /**
+     * Keeps the last 32 images for 30s, matching up to 6 bits apart
+     */
+    public NearDuplicateIndex() {
+        this(32, 6, 30000);
+    }
+
+    /**
+     * @param capacity     how many of the latest images to compare against
+     * @param maxDistance  most bits two hashes may differ in to count as the same image, out of 64
+     * @param maxAgeMillis how long a result may be reused for
+     */
+    public NearDuplicateIndex(int capacity, int maxDistance, long maxAgeMillis) {
+        this.capacity = capacity;
+        this.maxDistance = maxDistance;
+        this.maxAgeMillis = maxAgeMillis;
+
+        mHashes = new long[capacity];
+        mFeatures = new String[capacity];
+        mResponses = new byte[capacity][];
+        mAddedAt = new long[capacity];
+    }
+
+    /**
+     * @param features     the request's features, see {@link CacheKey#normalize}
+     * @param encodedBytes what sending the image would have cost, counted as saved on a hit
+     * @return a copy of the closest recent match's response, or null if there's none
+     */
+    public CloudVisionApi.AnnotateImageResponse find(long hash, String features, long encodedBytes) {
+        byte[] match;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            int best = -1;
+            int bestDistance = maxDistance + 1;
+            for (int i = 0; i < mCount; i++) {
+                int distance = PerceptualHash.distance(hash, mHashes[i]);
+                if (distance < bestDistance && now - mAddedAt[i] <= maxAgeMillis && features.equals(mFeatures[i])) {
+                    best = i;
+                    bestDistance = distance;
+                }
+            }
+
+            if (best < 0) {
+                mMissCount++;
+                return null;
+            }
+
+            mHitCount++;
+            mSavedBytes += encodedBytes;
+            match = mResponses[best];
+        }
+
+        try {
+            return AnnotationCodec.decode(ByteBuffer.wrap(match));
+        } catch (IOException e) {
+            // can only happen if the codec doesn't round trip its own output
+            Log.w(TAG, "couldn't decode match: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Remembers a fresh result, pushing out the oldest one if full. The response can be changed afterwards
+     * without affecting the index.
+     */
+    public void add(long hash, String features, CloudVisionApi.AnnotateImageResponse response) {
+        byte[] encoded;
+        try {
+            encoded = AnnotationCodec.encode(response);
+        } catch (IOException e) {
+            Log.w(TAG, "couldn't encode response", e);
+            return;
+        }
+
+        synchronized (this) {
+            mHashes[mNext] = hash;
+            mFeatures[mNext] = features;
+            mResponses[mNext] = encoded;
+            mAddedAt[mNext] = System.currentTimeMillis();
+            mNext = (mNext + 1) % capacity;
+            mCount = Math.min(mCount + 1, capacity);
+        }
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < capacity; i++) {
+            mFeatures[i] = null;
+            mResponses[i] = null;
+        }
+        mCount = 0;
+        mNext = 0;
+    }
+
+    /**
+     * @return images answered from an earlier near identical one, each a request image that wasn't sent
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return Base64 encoded image bytes that didn't have to be uploaded
+     */
+    public synchronized long getSavedBytes() {
+        return mSavedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "NearDuplicateIndex{" +
+                "size=" + mCount +
+                ", hits=" + mHitCount +
+                ", misses=" + mMissCount +
+                ", savedBytes=" + mSavedBytes +
+                '}';
+    }
+}
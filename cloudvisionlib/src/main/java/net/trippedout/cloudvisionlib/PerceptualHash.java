@@ -0,0 +1,131 @@
+package net.trippedout.cloudvisionlib;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Base64;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 64 bit difference hash (dHash) of an image, for telling near identical images apart from different ones.
+ *
+ * The image is shrunk to a 9x8 grid of average brightness, and every bit says whether a cell is brighter
+ * than its right hand neighbour. Re-encoding, small shifts in exposure and sensor noise barely change the
+ * hash, so two frames of the same scene end up a few bits apart (see {@link #distance(long, long)}) while
+ * unrelated images differ in about half of them.
+ */
+public class PerceptualHash {
+
+    private static final int GRID_WIDTH = 9;
+    private static final int GRID_HEIGHT = 8;
+
+    /**
+     * Smallest side of the thumbnail decoded for hashing, plenty to average into the grid
+     */
+    private static final int MIN_THUMBNAIL_SIZE = 32;
+
+    /**
+     * Decodes a small thumbnail of the image and hashes it
+     *
+     * @throws IOException if the image can't be read or decoded
+     */
+    public static long dHash(CloudVisionApi.Image image) throws IOException {
+        if (image.getSource() != null) {
+            return dHash(image.getSource());
+        }
+        if (image.content == null) {
+            throw new IOException("Image has neither content nor a source");
+        }
+        return dHash(ImageSource.fromBytes(Base64.decode(image.content, Base64.DEFAULT)));
+    }
+
+    public static long dHash(ImageSource source) throws IOException {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(source, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("Couldn't decode image");
+        }
+
+        int sampleSize = 1;
+        while (Math.min(options.outWidth, options.outHeight) / (sampleSize * 2) >= MIN_THUMBNAIL_SIZE) {
+            sampleSize *= 2;
+        }
+
+        options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = Bitmap.Config.RGB_565;
+        Bitmap bitmap = decode(source, options);
+        if (bitmap == null) {
+            throw new IOException("Couldn't decode image");
+        }
+
+        try {
+            return dHash(bitmap);
+        } finally {
+            bitmap.recycle();
+        }
+    }
+
+    private static Bitmap decode(ImageSource source, BitmapFactory.Options options) throws IOException {
+        InputStream in = source.openStream();
+        try {
+            return BitmapFactory.decodeStream(in, null, options);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Hashes a bitmap as is. Pass in a small one, every pixel is read.
+     */
+    public static long dHash(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        int[] pixels = new int[width * height];
+        bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        return dHash(pixels, width, height);
+    }
+
+    /**
+     * @param argb pixels in {@link Bitmap#getPixels} order
+     */
+    public static long dHash(int[] argb, int width, int height) {
+        if (width < GRID_WIDTH || height < GRID_HEIGHT) {
+            throw new IllegalArgumentException("Need at least " + GRID_WIDTH + "x" + GRID_HEIGHT + " pixels");
+        }
+
+        // average brightness of each grid cell, kept as sums to stay in integers
+        long[] sums = new long[GRID_WIDTH * GRID_HEIGHT];
+        int[] counts = new int[GRID_WIDTH * GRID_HEIGHT];
+        for (int y = 0; y < height; y++) {
+            int row = y * GRID_HEIGHT / height * GRID_WIDTH;
+            for (int x = 0; x < width; x++) {
+                int pixel = argb[y * width + x];
+                int cell = row + x * GRID_WIDTH / width;
+                // integer Rec. 601 luma
+                sums[cell] += (299 * ((pixel >> 16) & 0xff) + 587 * ((pixel >> 8) & 0xff) + 114 * (pixel & 0xff));
+                counts[cell]++;
+            }
+        }
+
+        long hash = 0;
+        for (int y = 0; y < GRID_HEIGHT; y++) {
+            for (int x = 0; x < GRID_WIDTH - 1; x++) {
+                int left = y * GRID_WIDTH + x;
+                // left / countLeft > right / countRight without dividing
+                boolean brighter = sums[left] * counts[left + 1] > sums[left + 1] * counts[left];
+                hash = (hash << 1) | (brighter ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * @return how many of the 64 bits differ, 0 for identical hashes
+     */
+    public static int distance(long a, long b) {
+        return Long.bitCount(a ^ b);
+    }
+}
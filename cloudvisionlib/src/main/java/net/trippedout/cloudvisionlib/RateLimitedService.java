@@ -0,0 +1,157 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * {@link CloudVisionService} that holds each call back until its API key's {@link RateLimiter} has room for
+ * one more request with that many images. A call cancelled while it's held back gives its reservation back to
+ * the limiter, so it doesn't delay the calls behind it.
+ *
+ * <code>
+ *   CloudVisionService service = new RateLimitedService(CloudVisionApi.getCloudVisionService(), new RateLimiter(10, 600));
+ * </code>
+ */
+public class RateLimitedService implements CloudVisionService {
+
+    private final CloudVisionService mDelegate;
+    private final RateLimiter mLimiter;
+
+    public RateLimitedService(CloudVisionService delegate, RateLimiter limiter) {
+        mDelegate = delegate;
+        mLimiter = limiter;
+    }
+
+    @Override
+    public Call<CloudVisionApi.VisionResponse> getAnnotations(String apiKey, CloudVisionApi.VisionRequest request) {
+        return new RateLimitedCall(mDelegate.getAnnotations(apiKey, request), apiKey, request.requests.size());
+    }
+
+    private class RateLimitedCall extends ForwardingCall {
+        private final String mApiKey;
+        private final int mImages;
+
+        private volatile boolean mExecuted;
+        private volatile boolean mCanceled;
+
+        /**
+         * Set while this call has permits reserved that it hasn't used yet. Whoever clears it first, the wait
+         * finishing or cancel(), decides whether they're used or given back.
+         */
+        private final AtomicBoolean mHolding = new AtomicBoolean();
+        private final CountDownLatch mCancelSignal = new CountDownLatch(1);
+
+        RateLimitedCall(Call<CloudVisionApi.VisionResponse> delegate, String apiKey, int images) {
+            super(delegate);
+            mApiKey = apiKey;
+            mImages = images;
+        }
+
+        @Override
+        public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+            mExecuted = true;
+            long waitNanos = reserve();
+            try {
+                if (waitNanos > 0) {
+                    mCancelSignal.await(waitNanos, TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                giveBack();
+                throw new InterruptedIOException("Interrupted waiting for rate limit");
+            }
+
+            if (!mHolding.compareAndSet(true, false)) {
+                throw new IOException("Canceled");
+            }
+            return mDelegate.execute();
+        }
+
+        @Override
+        public void enqueue(final Callback<CloudVisionApi.VisionResponse> callback) {
+            mExecuted = true;
+            long waitNanos;
+            try {
+                waitNanos = reserve();
+            } catch (IOException e) {
+                callback.onFailure(this, e);
+                return;
+            }
+
+            mLimiter.runAfter(waitNanos, new Runnable() {
+                @Override
+                public void run() {
+                    if (!mHolding.compareAndSet(true, false) || mCanceled) {
+                        callback.onFailure(RateLimitedCall.this, new IOException("Canceled"));
+                        return;
+                    }
+
+                    mDelegate.enqueue(new Callback<CloudVisionApi.VisionResponse>() {
+                        @Override
+                        public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
+                            callback.onResponse(RateLimitedCall.this, response);
+                        }
+
+                        @Override
+                        public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                            callback.onFailure(RateLimitedCall.this, t);
+                        }
+                    });
+                }
+            });
+        }
+
+        /**
+         * @return nanoseconds to wait before the reserved permits can be used
+         */
+        private long reserve() throws IOException {
+            if (mCanceled) {
+                throw new IOException("Canceled");
+            }
+
+            long waitNanos = mLimiter.reserve(mApiKey, mImages);
+            mHolding.set(true);
+            // a cancel() in between didn't see the reservation yet
+            if (mCanceled) {
+                giveBack();
+                throw new IOException("Canceled");
+            }
+            return waitNanos;
+        }
+
+        private void giveBack() {
+            if (mHolding.compareAndSet(true, false)) {
+                mLimiter.release(mApiKey, mImages);
+            }
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return mExecuted;
+        }
+
+        @Override
+        public void cancel() {
+            mCanceled = true;
+            giveBack();
+            mCancelSignal.countDown();
+            mDelegate.cancel();
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mCanceled || mDelegate.isCanceled();
+        }
+
+        @Override
+        public Call<CloudVisionApi.VisionResponse> clone() {
+            return new RateLimitedCall(mDelegate.clone(), mApiKey, mImages);
+        }
+    }
+}
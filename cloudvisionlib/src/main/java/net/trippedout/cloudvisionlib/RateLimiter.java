@@ -0,0 +1,105 @@
+package net.trippedout.cloudvisionlib;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Client side quota enforcement per API key: a request rate and an image rate, each its own
+ * {@link TokenBucket}. Bulk jobs get smoothed out to the quota instead of bursting into 429s.
+ *
+ * See {@link RateLimitedService} for putting this in front of a {@link CloudVisionService}.
+ */
+public class RateLimiter {
+    private static final String TAG = RateLimiter.class.getSimpleName();
+
+    private final double mRequestsPerSecond;
+    private final double mImagesPerMinute;
+
+    private final ConcurrentMap<String, Buckets> mBuckets = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory(TAG));
+
+    /**
+     * Bursts are allowed up to one second's worth of requests and one minute's worth of images.
+     */
+    public RateLimiter(double requestsPerSecond, double imagesPerMinute) {
+        mRequestsPerSecond = requestsPerSecond;
+        mImagesPerMinute = imagesPerMinute;
+    }
+
+    /**
+     * Takes one request and the given number of images out of the key's buckets.
+     *
+     * @return nanoseconds to wait before sending, 0 if right away
+     */
+    public long reserve(String apiKey, int images) {
+        Buckets buckets = getBuckets(apiKey);
+        return Math.max(buckets.requests.reserve(1), buckets.images.reserve(images));
+    }
+
+    /**
+     * Blocks until a request with this many images can be sent with the key.
+     */
+    public void acquire(String apiKey, int images) throws InterruptedException {
+        long waitNanos = reserve(apiKey, images);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Runs onAcquired once a request with this many images can be sent with the key, right away on the
+     * calling thread if it can be sent now, otherwise on the limiter's own thread.
+     */
+    public void acquireAsync(String apiKey, int images, Runnable onAcquired) {
+        runAfter(reserve(apiKey, images), onAcquired);
+    }
+
+    /**
+     * Gives back a request and this many images reserved with the key but never sent
+     */
+    public void release(String apiKey, int images) {
+        Buckets buckets = getBuckets(apiKey);
+        buckets.requests.release(1);
+        buckets.images.release(images);
+    }
+
+    /**
+     * Runs runnable on the calling thread if waitNanos is 0, otherwise on the limiter's own thread once it's passed
+     */
+    void runAfter(long waitNanos, Runnable runnable) {
+        if (waitNanos > 0) {
+            mScheduler.schedule(runnable, waitNanos, TimeUnit.NANOSECONDS);
+        } else {
+            runnable.run();
+        }
+    }
+
+    private Buckets getBuckets(String apiKey) {
+        String key = apiKey == null ? "" : apiKey;
+        Buckets buckets = mBuckets.get(key);
+        if (buckets == null) {
+            buckets = new Buckets(
+                    new TokenBucket(mRequestsPerSecond, Math.max(1, mRequestsPerSecond)),
+                    new TokenBucket(mImagesPerMinute / 60, Math.max(1, mImagesPerMinute)));
+            Buckets existing = mBuckets.putIfAbsent(key, buckets);
+            if (existing != null) {
+                buckets = existing;
+            }
+        }
+        return buckets;
+    }
+
+    private static class Buckets {
+        final TokenBucket requests;
+        final TokenBucket images;
+
+        Buckets(TokenBucket requests, TokenBucket images) {
+            this.requests = requests;
+            this.images = images;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides which failed annotate calls are worth another attempt, and how long to wait before it.
+ *
+ * Only transient failures are retried: 408, 429 and 5xx statuses, and I/O errors other than cancellation
+ * and {@link CircuitOpenException}.
+ * Annotating doesn't change anything on the server, so retrying the POST is safe. Waits use exponential
+ * backoff with full jitter, unless the response carries a Retry-After header, which wins.
+ *
+ * See {@link RetryingService} for putting this in front of a {@link CloudVisionService}.
+ */
+public class RetryPolicy {
+
+    /**
+     * 3 attempts, backing off from 500ms up to 10s, honouring Retry-After up to 60s
+     */
+    public static final RetryPolicy DEFAULT = new RetryPolicy(3, 500, 10000, 60000);
+
+    /**
+     * Notified after every attempt of a call, see {@link VisionCallback#onAttempt(Attempt)}
+     */
+    public interface AttemptListener {
+        void onAttempt(Attempt attempt);
+    }
+
+    /**
+     * Outcome and timing of one attempt
+     */
+    public static class Attempt {
+        /**
+         * 1 for the first attempt
+         */
+        public final int number;
+        public final long durationMillis;
+
+        /**
+         * HTTP status code, or -1 if the attempt failed without a response
+         */
+        public final int code;
+        public final Throwable error;
+
+        /**
+         * How long until the next attempt, or -1 if this was the last one
+         */
+        public final long retryDelayMillis;
+
+        public Attempt(int number, long durationMillis, int code, Throwable error, long retryDelayMillis) {
+            this.number = number;
+            this.durationMillis = durationMillis;
+            this.code = code;
+            this.error = error;
+            this.retryDelayMillis = retryDelayMillis;
+        }
+
+        public boolean willRetry() {
+            return retryDelayMillis >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Attempt{" +
+                    "number=" + number +
+                    ", durationMillis=" + durationMillis +
+                    ", code=" + code +
+                    ", error=" + error +
+                    ", retryDelayMillis=" + retryDelayMillis +
+                    '}';
+        }
+    }
+
+    private static final String RFC_1123_FORMAT = "EEE, dd MMM yyyy HH:mm:ss zzz";
+
+    public final int maxAttempts;
+    public final long baseDelayMillis;
+    public final long maxDelayMillis;
+    public final long maxRetryAfterMillis;
+
+    private final Random mRandom = new Random();
+
+    /**
+     * @param maxAttempts         total attempts including the first one
+     * @param baseDelayMillis     backoff cap for the first retry, doubling each retry after
+     * @param maxDelayMillis      most we'll ever back off
+     * @param maxRetryAfterMillis most we'll wait on a Retry-After header, beyond that we give up instead
+     */
+    public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, long maxRetryAfterMillis) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxRetryAfterMillis = maxRetryAfterMillis;
+    }
+
+    public boolean isRetryable(int code) {
+        return code == 408 || code == 429 || (code >= 500 && code != 501 && code != 505);
+    }
+
+    public boolean isRetryable(Throwable t) {
+        // the circuit breaker already decided the API needs a break
+        if (t instanceof CircuitOpenException) {
+            return false;
+        }
+
+        if (t instanceof SocketTimeoutException) {
+            return true;
+        }
+
+        // plain InterruptedIOExceptions are cancellations and interrupts
+        if (t instanceof InterruptedIOException) {
+            return false;
+        }
+
+        // a cancelled call fails with a plain IOException too, callers check the call's isCanceled() first
+        return t instanceof IOException;
+    }
+
+    /**
+     * @param attempt   the attempt that just failed, starting at 1
+     * @param code      its status code, or -1 if it failed without a response
+     * @param retryAfter its Retry-After header, or null
+     * @return how long to wait before the next attempt, or -1 to give up
+     */
+    public long getRetryDelayMillis(int attempt, int code, String retryAfter) {
+        if (attempt >= maxAttempts) {
+            return -1;
+        }
+
+        long retryAfterMillis = parseRetryAfterMillis(retryAfter);
+        if (retryAfterMillis >= 0) {
+            return retryAfterMillis <= maxRetryAfterMillis ? retryAfterMillis : -1;
+        }
+
+        // full jitter, anywhere between 0 and the exponential cap
+        long cap = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 30));
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * cap);
+        }
+    }
+
+    /**
+     * @return the wait a Retry-After header asks for, in either of its delay-seconds or HTTP date forms,
+     * or -1 if missing or unparseable
+     */
+    public static long parseRetryAfterMillis(String retryAfter) {
+        if (retryAfter == null) {
+            return -1;
+        }
+
+        try {
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            // not delay-seconds, try a date
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat(RFC_1123_FORMAT, Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        try {
+            Date date = format.parse(retryAfter.trim());
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * {@link CloudVisionService} that retries transient failures according to a {@link RetryPolicy}.
+ *
+ * Every retry is a {@link Call#clone()} of the original call, which re-sends the same {@link CloudVisionApi.VisionRequest};
+ * its images are streamed from the same {@link ImageSource}s rather than being decoded or compressed again.
+ *
+ * Each attempt's outcome and timing goes to the optional {@link RetryPolicy.AttemptListener}, and to the
+ * callback passed to enqueue() if it is one too, like {@link VisionCallback}.
+ *
+ * A retry that would only start after the request's {@link Deadline} is given up on instead.
+ */
+public class RetryingService implements CloudVisionService {
+    private static final String TAG = RetryingService.class.getSimpleName();
+
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    private final CloudVisionService mDelegate;
+    private final RetryPolicy mPolicy;
+    private final RetryPolicy.AttemptListener mListener;
+
+    private final ScheduledExecutorService mScheduler = Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory(TAG));
+
+    public RetryingService(CloudVisionService delegate, RetryPolicy policy) {
+        this(delegate, policy, null);
+    }
+
+    public RetryingService(CloudVisionService delegate, RetryPolicy policy, RetryPolicy.AttemptListener listener) {
+        mDelegate = delegate;
+        mPolicy = policy;
+        mListener = listener;
+    }
+
+    @Override
+    public Call<CloudVisionApi.VisionResponse> getAnnotations(String apiKey, CloudVisionApi.VisionRequest request) {
+        return new RetryingCall(mDelegate.getAnnotations(apiKey, request), request.getDeadline());
+    }
+
+    private class RetryingCall extends ForwardingCall {
+        private final Deadline mDeadline;
+
+        private volatile boolean mExecuted;
+        private volatile boolean mCanceled;
+        // counted down by cancel(), so execute() stops waiting out a retry delay
+        private final CountDownLatch mCancelSignal = new CountDownLatch(1);
+
+        private Call<CloudVisionApi.VisionResponse> mCurrent;
+        private ScheduledFuture<?> mScheduledRetry;
+        private Callback<CloudVisionApi.VisionResponse> mCallback;
+
+        RetryingCall(Call<CloudVisionApi.VisionResponse> delegate, Deadline deadline) {
+            super(delegate);
+            mCurrent = delegate;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+            mExecuted = true;
+
+            Call<CloudVisionApi.VisionResponse> call = mDelegate;
+            for (int attempt = 1; ; attempt++) {
+                setCurrent(call);
+                long start = System.nanoTime();
+                long delay;
+
+                try {
+                    Response<CloudVisionApi.VisionResponse> response = call.execute();
+                    delay = getRetryDelay(attempt, response);
+                    report(null, attempt, start, response.code(), null, delay);
+                    if (delay < 0) {
+                        return response;
+                    }
+                    closeQuietly(response.errorBody());
+                } catch (IOException e) {
+                    delay = getRetryDelay(attempt, call, e);
+                    report(null, attempt, start, -1, e, delay);
+                    if (delay < 0) {
+                        throw e;
+                    }
+                }
+
+                try {
+                    if (mCancelSignal.await(delay, TimeUnit.MILLISECONDS)) {
+                        throw new IOException("Canceled");
+                    }
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting to retry");
+                }
+                call = mDelegate.clone();
+            }
+        }
+
+        @Override
+        public void enqueue(Callback<CloudVisionApi.VisionResponse> callback) {
+            mExecuted = true;
+            synchronized (this) {
+                mCallback = callback;
+            }
+            attempt(callback, 1, mDelegate);
+        }
+
+        private void attempt(final Callback<CloudVisionApi.VisionResponse> callback, final int attempt,
+                             Call<CloudVisionApi.VisionResponse> call) {
+            setCurrent(call);
+            final long start = System.nanoTime();
+
+            call.enqueue(new Callback<CloudVisionApi.VisionResponse>() {
+                @Override
+                public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
+                    long delay = getRetryDelay(attempt, response);
+                    report(callback, attempt, start, response.code(), null, delay);
+                    if (delay < 0) {
+                        callback.onResponse(RetryingCall.this, response);
+                        return;
+                    }
+
+                    closeQuietly(response.errorBody());
+                    scheduleRetry(callback, attempt + 1, delay);
+                }
+
+                @Override
+                public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                    long delay = getRetryDelay(attempt, call, t);
+                    report(callback, attempt, start, -1, t, delay);
+                    if (delay < 0) {
+                        callback.onFailure(RetryingCall.this, t);
+                        return;
+                    }
+
+                    scheduleRetry(callback, attempt + 1, delay);
+                }
+            });
+        }
+
+        private void scheduleRetry(final Callback<CloudVisionApi.VisionResponse> callback, final int attempt, long delay) {
+            synchronized (this) {
+                if (!mCanceled) {
+                    mScheduledRetry = mScheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (mCanceled) {
+                                callback.onFailure(RetryingCall.this, new IOException("Canceled"));
+                            } else {
+                                attempt(callback, attempt, mDelegate.clone());
+                            }
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+            }
+
+            callback.onFailure(this, new IOException("Canceled"));
+        }
+
+        private long getRetryDelay(int attempt, Response<CloudVisionApi.VisionResponse> response) {
+            if (mCanceled || response.isSuccessful() || !mPolicy.isRetryable(response.code())) {
+                return -1;
+            }
+            return withinDeadline(mPolicy.getRetryDelayMillis(attempt, response.code(), response.headers().get(HEADER_RETRY_AFTER)));
+        }
+
+        private long getRetryDelay(int attempt, Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+            if (mCanceled || call.isCanceled() || !mPolicy.isRetryable(t)) {
+                return -1;
+            }
+            return withinDeadline(mPolicy.getRetryDelayMillis(attempt, -1, null));
+        }
+
+        private long withinDeadline(long delay) {
+            return delay < mDeadline.remainingMillis() ? delay : -1;
+        }
+
+        private void report(Callback<CloudVisionApi.VisionResponse> callback, int number, long start,
+                            int code, Throwable error, long retryDelay) {
+            RetryPolicy.Attempt attempt = new RetryPolicy.Attempt(number,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), code, error, retryDelay);
+
+            if (attempt.willRetry()) {
+                Log.d(TAG, "retrying after " + attempt);
+            }
+
+            if (mListener != null) {
+                mListener.onAttempt(attempt);
+            }
+            if (callback instanceof RetryPolicy.AttemptListener) {
+                ((RetryPolicy.AttemptListener) callback).onAttempt(attempt);
+            }
+        }
+
+        /**
+         * Makes the call the one cancel() reaches, cancelling it right away if cancel() already happened
+         */
+        private void setCurrent(Call<CloudVisionApi.VisionResponse> call) {
+            boolean canceled;
+            synchronized (this) {
+                mCurrent = call;
+                canceled = mCanceled;
+            }
+            if (canceled) {
+                call.cancel();
+            }
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return mExecuted;
+        }
+
+        @Override
+        public void cancel() {
+            Call<CloudVisionApi.VisionResponse> current;
+            ScheduledFuture<?> scheduledRetry;
+            Callback<CloudVisionApi.VisionResponse> callback;
+            synchronized (this) {
+                mCanceled = true;
+                current = mCurrent;
+                scheduledRetry = mScheduledRetry;
+                callback = mCallback;
+            }
+            mCancelSignal.countDown();
+
+            current.cancel();
+            if (scheduledRetry != null && scheduledRetry.cancel(false)) {
+                callback.onFailure(this, new IOException("Canceled"));
+            }
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        @Override
+        public Call<CloudVisionApi.VisionResponse> clone() {
+            return new RetryingCall(mDelegate.clone(), mDeadline);
+        }
+    }
+
+    private static void closeQuietly(ResponseBody body) {
+        if (body != null) {
+            body.close();
+        }
+    }
+}
@@ -0,0 +1,434 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+/**
+ * {@link CloudVisionService} that folds concurrent identical requests into one, e.g. a thumbnail grid and a
+ * detail view asking about the same photo at once. Only the first one is encoded and sent; the others attach
+ * to it while it's in flight and all of them get its result. Each gets its own copy, decoded from
+ * {@link AnnotationCodec}'s binary form, so one caller scaling faces for display doesn't move another's.
+ *
+ * Requests are identical if they use the same api key and every image has the same {@link CacheKey}, in the
+ * same order. Finding that out means reading and hashing every image, so enqueued calls do it on a
+ * background thread, and results are delivered on Retrofit's callback executor like any other response.
+ *
+ * Cancelling one call only detaches it, failing it with a "Canceled" {@link IOException}; the request
+ * itself is only cancelled once every call attached to it has been. Deadlines work the same way: each call
+ * is held to its own request's {@link Deadline} and detaches when that's done, while the shared request is
+ * sent without one so it never fails a call whose deadline hasn't passed.
+ *
+ * <code>
+ *   CloudVisionService service = new SingleFlightService(CloudVisionApi.getCloudVisionService(),
+ *           CloudVisionApi.getRetrofit());
+ * </code>
+ */
+public class SingleFlightService implements CloudVisionService {
+    private static final String TAG = SingleFlightService.class.getSimpleName();
+
+    private final CloudVisionService mDelegate;
+    private final Retrofit mRetrofit;
+
+    private final ExecutorService mExecutor = Executors.newCachedThreadPool(Threads.daemonFactory(TAG));
+
+    // guarded by this
+    private final Map<FlightKey, Flight> mFlights = new HashMap<>();
+    private long mFlightCount;
+    private long mJoinedCount;
+
+    /**
+     * @param retrofit the Retrofit behind the delegate, whose callback executor results are delivered on
+     */
+    public SingleFlightService(CloudVisionService delegate, Retrofit retrofit) {
+        mDelegate = delegate;
+        mRetrofit = retrofit;
+    }
+
+    @Override
+    public Call<CloudVisionApi.VisionResponse> getAnnotations(String apiKey, CloudVisionApi.VisionRequest request) {
+        return new SingleFlightCall(apiKey, request);
+    }
+
+    /**
+     * @return requests that were actually sent
+     */
+    public synchronized long getFlightCount() {
+        return mFlightCount;
+    }
+
+    /**
+     * @return calls that attached to a request already in flight instead of sending their own
+     */
+    public synchronized long getJoinedCount() {
+        return mJoinedCount;
+    }
+
+    /**
+     * @return how many distinct requests are in flight right now
+     */
+    public synchronized int getInFlightCount() {
+        return mFlights.size();
+    }
+
+    /**
+     * Attaches the call to the in flight request it's identical to, or sends a new one
+     */
+    private void join(SingleFlightCall call, FlightKey key) throws IOException {
+        Flight flight;
+        boolean start = false;
+        synchronized (this) {
+            if (call.mCanceled) {
+                throw new IOException("Canceled");
+            }
+
+            flight = mFlights.get(key);
+            if (flight == null) {
+                // the waiters hold themselves to their own deadlines, see SingleFlightCall#mOnDeadline
+                CloudVisionApi.VisionRequest request = call.mRequest.withDeadline(Deadline.none());
+                flight = new Flight(key, mDelegate.getAnnotations(call.mApiKey, request));
+                mFlights.put(key, flight);
+                mFlightCount++;
+                start = true;
+            } else {
+                mJoinedCount++;
+            }
+            flight.waiters.add(call);
+            call.mFlight = flight;
+        }
+
+        if (start) {
+            mExecutor.execute(flight);
+        }
+    }
+
+    /**
+     * Detaches a cancelled or expired call, cancelling its request if nobody else is waiting on it
+     */
+    private void leave(SingleFlightCall call) {
+        Flight flight;
+        synchronized (this) {
+            flight = call.mFlight;
+            if (flight == null || flight.done || !flight.waiters.remove(call) || !flight.waiters.isEmpty()) {
+                return;
+            }
+            mFlights.remove(flight.key);
+        }
+        flight.call.cancel();
+    }
+
+    private void deliver(Runnable runnable) {
+        Executor executor = mRetrofit.callbackExecutor();
+        if (executor != null) {
+            executor.execute(runnable);
+        } else {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Api key and per image keys of a request
+     */
+    private static final class FlightKey {
+        final String apiKey;
+        final List<CacheKey> images;
+
+        FlightKey(String apiKey, CloudVisionApi.VisionRequest request) throws IOException {
+            this.apiKey = apiKey;
+            images = new ArrayList<>(request.requests.size());
+            for (CloudVisionApi.Request image : request.requests) {
+                images.add(CacheKey.of(image));
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            FlightKey flightKey = (FlightKey) o;
+            return (apiKey != null ? apiKey.equals(flightKey.apiKey) : flightKey.apiKey == null)
+                    && images.equals(flightKey.images);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (apiKey != null ? apiKey.hashCode() : 0) + images.hashCode();
+        }
+    }
+
+    /**
+     * One request in flight and the calls waiting on it
+     */
+    private class Flight implements Runnable {
+        final FlightKey key;
+        final Call<CloudVisionApi.VisionResponse> call;
+
+        // guarded by SingleFlightService.this
+        final List<SingleFlightCall> waiters = new ArrayList<>();
+        boolean done;
+
+        // set before done
+        private Response<CloudVisionApi.VisionResponse> mResponse;
+        private byte[][] mImages;
+        private CloudVisionApi.Status[] mImageErrors;
+        private MediaType mErrorType;
+        private byte[] mErrorBytes;
+        private IOException mFailure;
+
+        Flight(FlightKey key, Call<CloudVisionApi.VisionResponse> call) {
+            this.key = key;
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mResponse = call.execute();
+                if (mResponse.isSuccessful() && mResponse.body() != null) {
+                    // kept encoded so every waiter can decode its own copy
+                    List<CloudVisionApi.AnnotateImageResponse> images = mResponse.body().getImageResponses();
+                    mImages = new byte[images.size()][];
+                    mImageErrors = new CloudVisionApi.Status[images.size()];
+                    for (int i = 0; i < images.size(); i++) {
+                        mImages[i] = AnnotationCodec.encode(images.get(i));
+                        mImageErrors[i] = images.get(i).error;
+                    }
+                } else if (!mResponse.isSuccessful() && mResponse.errorBody() != null) {
+                    // an error body can only be read once, so every waiter gets its own copy
+                    mErrorType = mResponse.errorBody().contentType();
+                    mErrorBytes = mResponse.errorBody().bytes();
+                }
+            } catch (IOException e) {
+                mFailure = e;
+            } catch (RuntimeException e) {
+                mFailure = new IOException(e);
+            }
+
+            List<SingleFlightCall> waiters;
+            synchronized (SingleFlightService.this) {
+                done = true;
+                if (mFlights.get(key) == this) {
+                    mFlights.remove(key);
+                }
+                waiters = new ArrayList<>(this.waiters);
+            }
+
+            for (SingleFlightCall waiter : waiters) {
+                waiter.finish();
+            }
+        }
+
+        Response<CloudVisionApi.VisionResponse> getResponse() throws IOException {
+            if (mFailure != null) {
+                throw mFailure;
+            }
+            if (mErrorBytes != null) {
+                return Response.error(ResponseBody.create(mErrorType, mErrorBytes), mResponse.raw());
+            }
+            if (mImages == null) {
+                return mResponse;
+            }
+
+            List<CloudVisionApi.AnnotateImageResponse> images = new ArrayList<>(mImages.length);
+            for (int i = 0; i < mImages.length; i++) {
+                CloudVisionApi.AnnotateImageResponse image = AnnotationCodec.decode(ByteBuffer.wrap(mImages[i]));
+                images.add(new CloudVisionApi.AnnotateImageResponse(image.getResponses(), mImageErrors[i]));
+            }
+            return Response.success(new CloudVisionApi.VisionResponse(images), mResponse.raw());
+        }
+    }
+
+    private class SingleFlightCall implements Call<CloudVisionApi.VisionResponse> {
+        private final String mApiKey;
+        private final CloudVisionApi.VisionRequest mRequest;
+        private final Deadline mDeadline;
+
+        private final CountDownLatch mDone = new CountDownLatch(1);
+        private volatile boolean mExecuted;
+        private volatile boolean mCanceled;
+        private volatile InterruptedIOException mExpired;
+        private Callback<CloudVisionApi.VisionResponse> mCallback;
+        private boolean mFinished;
+
+        // guarded by SingleFlightService.this
+        private Flight mFlight;
+
+        /**
+         * Detaches just this call once its own deadline is done, the others keep waiting
+         */
+        private final Runnable mOnDeadline = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mDeadline.throwIfDone();
+                } catch (InterruptedIOException e) {
+                    mExpired = e;
+                    leave(SingleFlightCall.this);
+                    fail(e);
+                }
+            }
+        };
+
+        SingleFlightCall(String apiKey, CloudVisionApi.VisionRequest request) {
+            mApiKey = apiKey;
+            mRequest = request;
+            mDeadline = request.getDeadline();
+        }
+
+        @Override
+        public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+            mExecuted = true;
+            mDeadline.throwIfDone();
+            join(this, new FlightKey(mApiKey, mRequest));
+            mDeadline.addListener(mOnDeadline);
+
+            try {
+                mDone.await();
+            } catch (InterruptedException e) {
+                cancel();
+                throw new InterruptedIOException("Interrupted waiting for " + mRequest);
+            } finally {
+                mDeadline.removeListener(mOnDeadline);
+            }
+
+            if (mCanceled) {
+                throw new IOException("Canceled");
+            }
+            if (mExpired != null) {
+                throw mExpired;
+            }
+            return getFlight().getResponse();
+        }
+
+        @Override
+        public void enqueue(final Callback<CloudVisionApi.VisionResponse> callback) {
+            mExecuted = true;
+            synchronized (this) {
+                mCallback = callback;
+            }
+
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        mDeadline.throwIfDone();
+                        join(SingleFlightCall.this, new FlightKey(mApiKey, mRequest));
+                        mDeadline.addListener(mOnDeadline);
+                    } catch (IOException | RuntimeException e) {
+                        // e.g. an ImageSource that was released, the callback has to hear about it either way
+                        fail(e);
+                    }
+                }
+            });
+        }
+
+        /**
+         * Hands the flight's result to whoever is waiting on this call, unless it was cancelled first
+         */
+        void finish() {
+            mDeadline.removeListener(mOnDeadline);
+            mDone.countDown();
+
+            final Callback<CloudVisionApi.VisionResponse> callback = claim();
+            if (callback == null) {
+                return;
+            }
+
+            final Response<CloudVisionApi.VisionResponse> response;
+            try {
+                response = getFlight().getResponse();
+            } catch (final IOException e) {
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onFailure(SingleFlightCall.this, e);
+                    }
+                });
+                return;
+            }
+
+            deliver(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onResponse(SingleFlightCall.this, response);
+                }
+            });
+        }
+
+        private void fail(final Throwable t) {
+            mDone.countDown();
+
+            final Callback<CloudVisionApi.VisionResponse> callback = claim();
+            if (callback != null) {
+                deliver(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onFailure(SingleFlightCall.this, t);
+                    }
+                });
+            }
+        }
+
+        /**
+         * @return the callback if it hasn't been called yet and now may be, null otherwise
+         */
+        private synchronized Callback<CloudVisionApi.VisionResponse> claim() {
+            if (mFinished || mCallback == null) {
+                return null;
+            }
+            mFinished = true;
+            return mCallback;
+        }
+
+        private Flight getFlight() {
+            synchronized (SingleFlightService.this) {
+                return mFlight;
+            }
+        }
+
+        @Override
+        public boolean isExecuted() {
+            return mExecuted;
+        }
+
+        @Override
+        public void cancel() {
+            mCanceled = true;
+            mDeadline.removeListener(mOnDeadline);
+            leave(this);
+            fail(new IOException("Canceled"));
+        }
+
+        @Override
+        public boolean isCanceled() {
+            return mCanceled;
+        }
+
+        @Override
+        public Request request() {
+            return mDelegate.getAnnotations(mApiKey, mRequest).request();
+        }
+
+        @Override
+        public Call<CloudVisionApi.VisionResponse> clone() {
+            return new SingleFlightCall(mApiKey, mRequest);
+        }
+    }
+}
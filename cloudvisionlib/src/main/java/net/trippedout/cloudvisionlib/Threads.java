@@ -0,0 +1,27 @@
+package net.trippedout.cloudvisionlib;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread helpers shared by the library's background executors
+ */
+class Threads {
+
+    /**
+     * @return a factory for daemon threads named after the component using them, so they never keep
+     * the process alive and are easy to spot in a trace
+     */
+    static ThreadFactory daemonFactory(final String name) {
+        return new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + mCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
@@ -0,0 +1,43 @@
+package net.trippedout.cloudvisionlib;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * {@link AnnotationCache} made of several levels, fastest first, like a {@link MemoryAnnotationCache} in
+ * front of a {@link DiskAnnotationCache}. Lookups go through the levels in order and copy a hit into the
+ * levels before the one it was found in; responses are stored in every level.
+ */
+public class TieredAnnotationCache implements AnnotationCache {
+
+    private final List<AnnotationCache> mLevels;
+
+    public TieredAnnotationCache(AnnotationCache... levels) {
+        mLevels = Arrays.asList(levels);
+    }
+
+    @Override
+    public CloudVisionApi.AnnotateImageResponse get(CacheKey key) {
+        for (int i = 0; i < mLevels.size(); i++) {
+            CloudVisionApi.AnnotateImageResponse response = mLevels.get(i).get(key);
+            if (response != null) {
+                for (int j = 0; j < i; j++) {
+                    mLevels.get(j).put(key, response);
+                }
+                return response;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void put(CacheKey key, CloudVisionApi.AnnotateImageResponse response) {
+        for (AnnotationCache level : mLevels) {
+            level.put(key, response);
+        }
+    }
+
+    public List<AnnotationCache> getLevels() {
+        return mLevels;
+    }
+}
@@ -0,0 +1,93 @@
+package net.trippedout.cloudvisionlib;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free token bucket. Permits refill at a steady rate up to a burst capacity.
+ *
+ * Rather than counting tokens, we track the theoretical time the bucket will be full again in a single
+ * {@link AtomicLong} and move it forward with compare-and-set. Reserving permits never blocks; it
+ * tells the caller how long to wait before using them, which makes blocking and async acquires cheap.
+ */
+public class TokenBucket {
+
+    private final long mIntervalNanos;
+    private final long mBurstNanos;
+
+    /**
+     * Time at which the bucket is full again, in {@link System#nanoTime()} terms
+     */
+    private final AtomicLong mFullAt;
+
+    /**
+     * @param permitsPerSecond steady refill rate
+     * @param burst            most permits that can be used at once after sitting idle
+     */
+    public TokenBucket(double permitsPerSecond, double burst) {
+        mIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        mBurstNanos = (long) (mIntervalNanos * burst);
+        mFullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes permits out of the bucket, going into debt if there aren't enough.
+     *
+     * @return how many nanoseconds the caller has to wait before the permits can be used, 0 if right away
+     */
+    public long reserve(int permits) {
+        long cost = mIntervalNanos * permits;
+        while (true) {
+            long now = System.nanoTime();
+            long fullAt = mFullAt.get();
+            long next = Math.max(fullAt, now) + cost;
+            if (mFullAt.compareAndSet(fullAt, next)) {
+                return Math.max(0, next - mBurstNanos - now);
+            }
+        }
+    }
+
+    /**
+     * Takes permits only if they're available right now.
+     */
+    public boolean tryAcquire(int permits) {
+        long cost = mIntervalNanos * permits;
+        while (true) {
+            long now = System.nanoTime();
+            long fullAt = mFullAt.get();
+            long next = Math.max(fullAt, now) + cost;
+            if (next - mBurstNanos > now) {
+                return false;
+            }
+            if (mFullAt.compareAndSet(fullAt, next)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Gives back permits that were reserved but won't be used, e.g. by a call cancelled while it waited for
+     * them. Never fills the bucket past full.
+     */
+    public void release(int permits) {
+        long cost = mIntervalNanos * permits;
+        while (true) {
+            long now = System.nanoTime();
+            long fullAt = mFullAt.get();
+            long next = Math.max(fullAt - cost, now);
+            if (next - fullAt >= 0 || mFullAt.compareAndSet(fullAt, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Blocks until the permits can be used.
+     */
+    public void acquire(int permits) throws InterruptedException {
+        long waitNanos = reserve(permits);
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import retrofit2.Call;
+import retrofit2.Retrofit;
+
+/**
+ * Coalesces single image {@link CloudVisionApi.Request}s into multi image {@link CloudVisionApi.VisionRequest}s.
+ *
+ * Each {@link #submit(CloudVisionApi.Request)} returns its own {@link VisionFuture}. Requests are held for at most
+ * the linger time, and a batch is sent early once it reaches the max image count or max payload size. Results
+ * are fanned back out to every caller in the batch.
+ *
+ * <code>
+ *   VisionBatcher batcher = new VisionBatcher(service, CloudVisionApi.getRetrofit(), apiKey,
+ *           VisionBatcher.MAX_IMAGES_PER_REQUEST, 8 * 1024 * 1024, 50);
+ *   VisionFuture&lt;AnnotateImageResponse&gt; future = batcher.submit(new CloudVisionApi.Request(image, CloudVisionApi.ALL_FEATURES));
+ * </code>
+ */
+public class VisionBatcher implements ImageAnnotator {
+    private static final String TAG = VisionBatcher.class.getSimpleName();
+
+    /**
+     * Most images the API accepts in a single annotate call
+     */
+    public static final int MAX_IMAGES_PER_REQUEST = 16;
+
+    private final CloudVisionService mService;
+    private final Retrofit mRetrofit;
+    private final String mApiKey;
+    private final int mMaxImages;
+    private final long mMaxBytes;
+    private final long mLingerMillis;
+
+    private final ScheduledExecutorService mScheduler;
+
+    private List<Pending> mPending = new ArrayList<>();
+    private long mPendingBytes;
+    private ScheduledFuture<?> mLingerFlush;
+    // bumped every time a batch is taken, so a linger flush that was already running can tell it's too late
+    private long mGeneration;
+    private boolean mShutdown;
+
+    /**
+     * @param maxImages    most images sent in one call, up to {@link #MAX_IMAGES_PER_REQUEST}
+     * @param maxBytes     most encoded image bytes sent in one call
+     * @param lingerMillis how long the first request of a batch waits for others to join it
+     */
+    public VisionBatcher(CloudVisionService service, Retrofit retrofit, String apiKey,
+                         int maxImages, long maxBytes, long lingerMillis) {
+        mService = service;
+        mRetrofit = retrofit;
+        mApiKey = apiKey;
+        mMaxImages = Math.min(maxImages, MAX_IMAGES_PER_REQUEST);
+        mMaxBytes = maxBytes;
+        mLingerMillis = lingerMillis;
+
+        mScheduler = Executors.newSingleThreadScheduledExecutor(Threads.daemonFactory(TAG));
+    }
+
+    /**
+     * Queues up a single image request to be sent with the next batch.
+     *
+     * The future gets this image's own {@link CloudVisionApi.AnnotateImageResponse}, which may carry a per image
+     * error status. It fails if the whole call fails, or right away with an {@link IllegalStateException} if the
+     * batcher was shut down.
+     */
+    @Override
+    public VisionFuture<CloudVisionApi.AnnotateImageResponse> submit(CloudVisionApi.Request request) {
+        long bytes = VisionRequestBody.encodedLength(request.image);
+        if (bytes < 0) {
+            // unknown size, make sure it goes out on its own
+            bytes = mMaxBytes;
+        }
+
+        Pending pending = new Pending(request);
+        List<Pending> ready = null;
+        List<Pending> overflow = null;
+
+        synchronized (this) {
+            if (mShutdown) {
+                pending.future.setException(new IllegalStateException("VisionBatcher is shut down"));
+                return pending.future;
+            }
+
+            if (!mPending.isEmpty() && mPendingBytes + bytes > mMaxBytes) {
+                overflow = takePending();
+            }
+
+            mPending.add(pending);
+            mPendingBytes += bytes;
+
+            if (mPending.size() >= mMaxImages || mPendingBytes >= mMaxBytes) {
+                ready = takePending();
+            } else if (mLingerFlush == null) {
+                final long generation = mGeneration;
+                mLingerFlush = mScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(generation);
+                    }
+                }, mLingerMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        if (overflow != null)
+            send(overflow);
+        if (ready != null)
+            send(ready);
+
+        return pending.future;
+    }
+
+    /**
+     * Sends whatever is waiting right away
+     */
+    public void flush() {
+        List<Pending> batch;
+        synchronized (this) {
+            batch = takePending();
+        }
+        send(batch);
+    }
+
+    /**
+     * Sends the batch the linger timer was started for, unless it already went out some other way
+     */
+    private void flush(long generation) {
+        List<Pending> batch;
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            batch = takePending();
+        }
+        send(batch);
+    }
+
+    /**
+     * Sends anything still waiting and stops the linger timer. Nothing can be submitted afterwards.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            mShutdown = true;
+        }
+        flush();
+        mScheduler.shutdown();
+    }
+
+    private List<Pending> takePending() {
+        List<Pending> batch = mPending;
+        mPending = new ArrayList<>();
+        mPendingBytes = 0;
+        mGeneration++;
+
+        if (mLingerFlush != null) {
+            mLingerFlush.cancel(false);
+            mLingerFlush = null;
+        }
+        return batch;
+    }
+
+    private void send(final List<Pending> batch) {
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            if (batch.get(i).future.isCancelled()) {
+                batch.remove(i);
+            }
+        }
+        if (batch.isEmpty())
+            return;
+
+        List<CloudVisionApi.Request> requests = new ArrayList<>(batch.size());
+        for (Pending pending : batch) {
+            requests.add(pending.request);
+        }
+
+        Log.d(TAG, "sending batch of " + requests.size());
+
+        Call<CloudVisionApi.VisionResponse> call
+                = mService.getAnnotations(mApiKey, new CloudVisionApi.VisionRequest(requests));
+        call.enqueue(new VisionCallback(mRetrofit) {
+            @Override
+            public void onApiResponse(CloudVisionApi.VisionResponse response) {
+                if (response.size() != batch.size()) {
+                    fail(batch, new IOException("Expected " + batch.size() + " responses but got " + response.size()));
+                    return;
+                }
+
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).future.set(response.getImageResponse(i));
+                }
+            }
+
+            @Override
+            public void onApiError(CloudVisionApi.Error error) {
+                fail(batch, new VisionException(error));
+            }
+
+            @Override
+            public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                fail(batch, t);
+            }
+        });
+    }
+
+    private static void fail(List<Pending> batch, Throwable t) {
+        for (Pending pending : batch) {
+            pending.future.setException(t);
+        }
+    }
+
+    private static class Pending {
+        final CloudVisionApi.Request request;
+        final VisionFuture<CloudVisionApi.AnnotateImageResponse> future = new VisionFuture<>();
+
+        Pending(CloudVisionApi.Request request) {
+            this.request = request;
+        }
+    }
+}
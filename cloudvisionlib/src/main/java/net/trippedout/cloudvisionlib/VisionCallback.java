@@ -13,7 +13,7 @@ import retrofit2.Retrofit;
 /**
  * Simple abstract interface for easy handling of responses and errors from the Cloud Vision API
  */
-public abstract class VisionCallback implements Callback<CloudVisionApi.VisionResponse> {
+public abstract class VisionCallback implements Callback<CloudVisionApi.VisionResponse>, RetryPolicy.AttemptListener {
 
     private final Retrofit mRetroFit;
 
@@ -40,11 +40,24 @@ public abstract class VisionCallback implements Callback<CloudVisionApi.VisionRe
         }
     }
 
+    /**
+     * Called when the call didn't get a response at all. A {@link CircuitOpenException} here means a
+     * {@link CircuitBreakerService} refused to send it, so the work can be shed or deferred.
+     */
     @Override
     public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
         // do nothing but can override if needed
     }
 
+    /**
+     * Called after every attempt when the call goes through a {@link RetryingService}, before the final
+     * {@link #onApiResponse(CloudVisionApi.VisionResponse)} or {@link #onApiError(CloudVisionApi.Error)}.
+     * Does nothing but can override to track how much retries add to latency.
+     */
+    @Override
+    public void onAttempt(RetryPolicy.Attempt attempt) {
+    }
+
     public abstract void onApiResponse(CloudVisionApi.VisionResponse response);
 
     public abstract void onApiError(CloudVisionApi.Error error);
@@ -0,0 +1,24 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+
+/**
+ * Thrown (or handed to a {@link VisionFuture}) when the Cloud Vision API returns an error status.
+ */
+public class VisionException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public final CloudVisionApi.Error error;
+
+    public VisionException(CloudVisionApi.Error error) {
+        super(error.error != null ? error.toString() : "Error{unknown}");
+        this.error = error;
+    }
+
+    /**
+     * @return the HTTP status code the API returned, or -1 if unknown
+     */
+    public int getCode() {
+        return error.error != null ? error.error.code : -1;
+    }
+}
@@ -0,0 +1,145 @@
+package net.trippedout.cloudvisionlib;
+
+import java.util.Iterator;
+
+/**
+ * Reactive Streams interfaces for streaming images through the API with backpressure, see
+ * {@link AnnotationPublisher}.
+ *
+ * These mirror java.util.concurrent.Flow and org.reactivestreams method for method, which aren't available
+ * on the Android versions we support, so adapting to either is a one line wrapper. The same rules apply:
+ * a publisher never sends more onNext calls than its subscriber has requested, signals to one subscriber
+ * never overlap, and request(n) and cancel() can be called from any thread, including from within onNext.
+ */
+public final class VisionFlow {
+
+    private VisionFlow() {
+    }
+
+    public interface Publisher<T> {
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    public interface Subscriber<T> {
+        void onSubscribe(Subscription subscription);
+
+        void onNext(T item);
+
+        void onError(Throwable t);
+
+        void onComplete();
+    }
+
+    public interface Subscription {
+        /**
+         * Asks for up to n more items, n has to be positive
+         */
+        void request(long n);
+
+        void cancel();
+    }
+
+    /**
+     * @return a publisher that walks a new iterator of the iterable for every subscriber, only pulling as many
+     * items as were requested. Handy for lazily loading images one at a time as the pipeline has room.
+     */
+    public static <T> Publisher<T> fromIterable(final Iterable<? extends T> iterable) {
+        return new Publisher<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                IterableSubscription<T> subscription = new IterableSubscription<>(iterable.iterator(), subscriber);
+                subscriber.onSubscribe(subscription);
+            }
+        };
+    }
+
+    /**
+     * Adds to a demand count, capping at {@link Long#MAX_VALUE} which means unbounded
+     */
+    static long addDemand(long demand, long n) {
+        long sum = demand + n;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    private static class IterableSubscription<T> implements Subscription {
+        private final Iterator<? extends T> mIterator;
+        private final Subscriber<? super T> mSubscriber;
+
+        private long mRequested;
+        private boolean mEmitting;
+        private volatile boolean mDone;
+
+        IterableSubscription(Iterator<? extends T> iterator, Subscriber<? super T> subscriber) {
+            mIterator = iterator;
+            mSubscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                cancel();
+                mSubscriber.onError(new IllegalArgumentException("request(n) needs a positive n, got " + n));
+                return;
+            }
+
+            synchronized (this) {
+                mRequested = addDemand(mRequested, n);
+                if (mEmitting) {
+                    // whoever is emitting picks up the new demand
+                    return;
+                }
+                mEmitting = true;
+            }
+
+            emit();
+        }
+
+        private void emit() {
+            while (true) {
+                long requested;
+                synchronized (this) {
+                    requested = mRequested;
+                    if (requested == 0 || mDone) {
+                        mEmitting = false;
+                        return;
+                    }
+                }
+
+                long emitted = 0;
+                while (emitted < requested) {
+                    if (mDone) {
+                        return;
+                    }
+
+                    T next;
+                    try {
+                        if (!mIterator.hasNext()) {
+                            mDone = true;
+                            mSubscriber.onComplete();
+                            return;
+                        }
+                        next = mIterator.next();
+                    } catch (RuntimeException e) {
+                        mDone = true;
+                        mSubscriber.onError(e);
+                        return;
+                    }
+
+                    mSubscriber.onNext(next);
+                    emitted++;
+                }
+
+                synchronized (this) {
+                    if (mRequested != Long.MAX_VALUE) {
+                        mRequested -= emitted;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            mDone = true;
+        }
+    }
+}
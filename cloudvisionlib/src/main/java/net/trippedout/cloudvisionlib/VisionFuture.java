@@ -0,0 +1,314 @@
+package net.trippedout.cloudvisionlib;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Simple settable {@link Future} for results that arrive asynchronously from the Cloud Vision API.
+ *
+ * Use {@link #addListener(Listener)} to be called back instead of blocking on {@link #get()}. Listeners
+ * run on whichever thread completes the future, or right away if it's already done.
+ *
+ * Futures compose with {@link #transform(Function)}, {@link #transformAsync(AsyncFunction)} and
+ * {@link #allAsList(List)}, so pipelines don't need nested callbacks. Cancelling a composed future
+ * cancels the futures it's waiting on.
+ */
+public class VisionFuture<T> implements Future<T> {
+
+    public interface Listener<T> {
+        void onSuccess(T result);
+
+        /**
+         * Called with a {@link CancellationException} if the future was cancelled
+         */
+        void onFailure(Throwable t);
+    }
+
+    /**
+     * Turns a result into another one, see {@link #transform(Function)}
+     */
+    public interface Function<I, O> {
+        O apply(I input) throws Exception;
+    }
+
+    /**
+     * Starts more async work with a result, see {@link #transformAsync(AsyncFunction)}
+     */
+    public interface AsyncFunction<I, O> {
+        VisionFuture<O> apply(I input) throws Exception;
+    }
+
+    private static final int STATE_PENDING      = 0;
+    private static final int STATE_SUCCEEDED    = 1;
+    private static final int STATE_FAILED       = 2;
+    private static final int STATE_CANCELLED    = 3;
+
+    private final CountDownLatch mDone = new CountDownLatch(1);
+
+    private int mState = STATE_PENDING;
+    private T mResult;
+    private Throwable mError;
+    private List<Listener<T>> mListeners = new ArrayList<>(1);
+
+    /**
+     * @return false if the future was already completed or cancelled
+     */
+    public boolean set(T result) {
+        return complete(STATE_SUCCEEDED, result, null);
+    }
+
+    /**
+     * @return false if the future was already completed or cancelled
+     */
+    public boolean setException(Throwable t) {
+        return complete(STATE_FAILED, null, t);
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        if (!complete(STATE_CANCELLED, null, new CancellationException())) {
+            return false;
+        }
+
+        onCancelled();
+        return true;
+    }
+
+    /**
+     * Called once if this future gets cancelled, override to stop any work still running for it.
+     */
+    protected void onCancelled() {
+    }
+
+    public void addListener(Listener<T> listener) {
+        synchronized (this) {
+            if (mState == STATE_PENDING) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+
+        notifyListener(listener);
+    }
+
+    private boolean complete(int state, T result, Throwable error) {
+        List<Listener<T>> listeners;
+        synchronized (this) {
+            if (mState != STATE_PENDING) {
+                return false;
+            }
+
+            mState = state;
+            mResult = result;
+            mError = error;
+            listeners = mListeners;
+            mListeners = null;
+        }
+
+        mDone.countDown();
+        for (Listener<T> listener : listeners) {
+            notifyListener(listener);
+        }
+        return true;
+    }
+
+    private void notifyListener(Listener<T> listener) {
+        if (mState == STATE_SUCCEEDED) {
+            listener.onSuccess(mResult);
+        } else {
+            listener.onFailure(mError);
+        }
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != STATE_PENDING;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized T getResult() throws ExecutionException {
+        switch (mState) {
+            case STATE_SUCCEEDED:
+                return mResult;
+            case STATE_CANCELLED:
+                throw (CancellationException) mError;
+            default:
+                throw new ExecutionException(mError);
+        }
+    }
+
+    /**
+     * @return a future completed with the function applied to this future's result, or failed with whatever
+     * this future or the function failed with
+     */
+    public <O> VisionFuture<O> transform(final Function<? super T, ? extends O> function) {
+        final VisionFuture<O> result = new VisionFuture<O>() {
+            @Override
+            protected void onCancelled() {
+                VisionFuture.this.cancel(false);
+            }
+        };
+
+        addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T value) {
+                try {
+                    result.set(function.apply(value));
+                } catch (Exception e) {
+                    result.setException(e);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.propagateFailure(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return a future completed with the result of the future the function returns
+     */
+    public <O> VisionFuture<O> transformAsync(final AsyncFunction<? super T, O> function) {
+        final AtomicReference<VisionFuture<O>> next = new AtomicReference<>();
+        final VisionFuture<O> result = new VisionFuture<O>() {
+            @Override
+            protected void onCancelled() {
+                VisionFuture.this.cancel(false);
+                VisionFuture<O> future = next.get();
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+        };
+
+        addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T value) {
+                VisionFuture<O> future;
+                try {
+                    future = function.apply(value);
+                } catch (Exception e) {
+                    result.setException(e);
+                    return;
+                }
+
+                next.set(future);
+                if (result.isCancelled()) {
+                    future.cancel(false);
+                    return;
+                }
+                future.addListener(new Listener<O>() {
+                    @Override
+                    public void onSuccess(O value) {
+                        result.set(value);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        result.propagateFailure(t);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.propagateFailure(t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return a future for all the given futures' results, in the same order. It fails as soon as any one of
+     * them fails, cancelling the rest.
+     */
+    public static <T> VisionFuture<List<T>> allAsList(final List<? extends VisionFuture<? extends T>> futures) {
+        final VisionFuture<List<T>> result = new VisionFuture<List<T>>() {
+            @Override
+            protected void onCancelled() {
+                cancelAll(futures);
+            }
+        };
+
+        if (futures.isEmpty()) {
+            result.set(new ArrayList<T>());
+            return result;
+        }
+
+        final Object[] values = new Object[futures.size()];
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+
+        for (int i = 0; i < futures.size(); i++) {
+            final int index = i;
+            @SuppressWarnings("unchecked")
+            VisionFuture<T> future = (VisionFuture<T>) futures.get(i);
+            future.addListener(new Listener<T>() {
+                @Override
+                public void onSuccess(T value) {
+                    values[index] = value;
+                    if (remaining.decrementAndGet() == 0) {
+                        List<T> list = new ArrayList<>(values.length);
+                        for (Object v : values) {
+                            @SuppressWarnings("unchecked")
+                            T t = (T) v;
+                            list.add(t);
+                        }
+                        result.set(list);
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (result.propagateFailure(t)) {
+                        cancelAll(futures);
+                    }
+                }
+            });
+        }
+        return result;
+    }
+
+    private static void cancelAll(List<? extends VisionFuture<?>> futures) {
+        for (VisionFuture<?> future : futures) {
+            future.cancel(false);
+        }
+    }
+
+    /**
+     * Fails this future with t, or cancels it if t came from a cancellation upstream
+     */
+    private boolean propagateFailure(Throwable t) {
+        if (t instanceof CancellationException) {
+            return cancel(false);
+        }
+        return setException(t);
+    }
+}
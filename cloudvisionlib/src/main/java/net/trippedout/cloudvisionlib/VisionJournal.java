@@ -0,0 +1,323 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of pending annotate jobs on disk, so captured images survive crashes, restarts and
+ * time offline until a {@link JournalWorker} gets them uploaded.
+ *
+ * Jobs hold a reference to the image file and the features wanted, never the image itself. Every
+ * {@link #append} and {@link #ack} is one checksummed record, synced to disk before returning. On open the
+ * journal is replayed, and a torn record at the end from a crash mid-write is dropped. Once acked records
+ * outnumber pending ones the journal is compacted into a fresh file, which atomically replaces the old one.
+ */
+public class VisionJournal {
+    private static final String TAG = VisionJournal.class.getSimpleName();
+
+    private static final byte RECORD_APPEND = 1;
+    private static final byte RECORD_ACK = 2;
+
+    /**
+     * Don't bother compacting until this many records are dead
+     */
+    private static final int MIN_COMPACT_RECORDS = 64;
+
+    /**
+     * One pending job
+     */
+    public static class Entry {
+        public final long id;
+        public final String imagePath;
+        public final List<CloudVisionApi.Feature> features;
+
+        public Entry(long id, String imagePath, List<CloudVisionApi.Feature> features) {
+            this.id = id;
+            this.imagePath = imagePath;
+            this.features = features;
+        }
+
+        @Override
+        public String toString() {
+            return "Entry{" +
+                    "id=" + id +
+                    ", imagePath='" + imagePath + '\'' +
+                    ", features=" + features +
+                    '}';
+        }
+    }
+
+    private final File mFile;
+    private final Map<Long, Entry> mPending = new LinkedHashMap<>();
+
+    private FileOutputStream mOut;
+    private long mNextId = 1;
+    private int mDeadRecords;
+
+    /**
+     * Opens the journal at file, creating it if needed, and replays whatever jobs are still pending.
+     */
+    public VisionJournal(File file) throws IOException {
+        mFile = file;
+
+        // a compaction that crashed before its rename never replaced anything, start over
+        File compacting = getCompactingFile();
+        if (compacting.exists() && !compacting.delete()) {
+            Log.w(TAG, "couldn't delete " + compacting);
+        }
+
+        long validLength = file.exists() ? replay() : 0;
+        if (file.exists() && validLength < file.length()) {
+            Log.w(TAG, "dropping " + (file.length() - validLength) + " bytes of torn records");
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(validLength);
+                raf.getFD().sync();
+            } finally {
+                raf.close();
+            }
+        }
+
+        mOut = new FileOutputStream(file, true);
+    }
+
+    /**
+     * Adds a job and syncs it to disk
+     *
+     * @return the job's id, to {@link #ack} it with
+     */
+    public synchronized long append(String imagePath, List<CloudVisionApi.Feature> features) throws IOException {
+        Entry entry = new Entry(mNextId++, imagePath, new ArrayList<>(features));
+        writeSynced(Collections.singletonList(encodeAppend(entry)));
+        mPending.put(entry.id, entry);
+        return entry.id;
+    }
+
+    /**
+     * @return up to max of the oldest pending jobs, still in the journal until acked
+     */
+    public synchronized List<Entry> peek(int max) {
+        List<Entry> entries = new ArrayList<>(Math.min(max, mPending.size()));
+        Iterator<Entry> iterator = mPending.values().iterator();
+        while (entries.size() < max && iterator.hasNext()) {
+            entries.add(iterator.next());
+        }
+        return entries;
+    }
+
+    public void ack(long id) throws IOException {
+        ack(Collections.singletonList(id));
+    }
+
+    /**
+     * Marks the jobs as done with a single sync, compacting the journal if it's mostly dead records
+     */
+    public synchronized void ack(Collection<Long> ids) throws IOException {
+        Set<Long> acked = new LinkedHashSet<>();
+        List<byte[]> records = new ArrayList<>(ids.size());
+        for (long id : ids) {
+            if (mPending.containsKey(id) && acked.add(id)) {
+                records.add(encodeAck(id));
+            }
+        }
+        writeSynced(records);
+
+        for (long id : acked) {
+            mPending.remove(id);
+            // the append and the ack are both dead now
+            mDeadRecords += 2;
+        }
+
+        if (mDeadRecords >= MIN_COMPACT_RECORDS && mDeadRecords > mPending.size()) {
+            compact();
+        }
+    }
+
+    public synchronized int size() {
+        return mPending.size();
+    }
+
+    /**
+     * Rewrites the journal with only the pending jobs. The new file is synced before it's renamed over the
+     * old one, so a crash leaves either the old journal or the new one, never half of each.
+     */
+    public synchronized void compact() throws IOException {
+        File compacting = getCompactingFile();
+        FileOutputStream out = new FileOutputStream(compacting);
+        try {
+            for (Entry entry : mPending.values()) {
+                write(out, encodeAppend(entry));
+            }
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+
+        mOut.close();
+        if (!compacting.renameTo(mFile)) {
+            mOut = new FileOutputStream(mFile, true);
+            throw new IOException("Couldn't replace " + mFile + " with " + compacting);
+        }
+
+        mOut = new FileOutputStream(mFile, true);
+        Log.d(TAG, "compacted away " + mDeadRecords + " records, " + mPending.size() + " pending");
+        mDeadRecords = 0;
+    }
+
+    public synchronized void close() throws IOException {
+        mOut.close();
+    }
+
+    private File getCompactingFile() {
+        return new File(mFile.getPath() + ".compacting");
+    }
+
+    /**
+     * Reads every intact record into mPending
+     *
+     * @return length of the file up to the end of the last intact record
+     */
+    private long replay() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        long valid = 0;
+        try {
+            while (true) {
+                byte[] payload = readRecord(in);
+                if (payload == null) {
+                    break;
+                }
+
+                apply(payload);
+                valid += 4 + 8 + payload.length;
+            }
+        } finally {
+            in.close();
+        }
+        return valid;
+    }
+
+    private void apply(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        long id = in.readLong();
+        mNextId = Math.max(mNextId, id + 1);
+
+        if (type == RECORD_APPEND) {
+            String path = in.readUTF();
+            int count = in.readInt();
+            List<CloudVisionApi.Feature> features = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                features.add(new CloudVisionApi.Feature(in.readUTF(), in.readInt()));
+            }
+            mPending.put(id, new Entry(id, path, features));
+        } else if (type == RECORD_ACK) {
+            mPending.remove(id);
+            mDeadRecords += 2;
+        } else {
+            throw new IOException("Unknown record type " + type);
+        }
+    }
+
+    /**
+     * @return the next record's payload, or null at the end of the file or at a torn or corrupt record
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            long checksum = in.readLong();
+            if (length <= 0 || length > 64 * 1024) {
+                return null;
+            }
+
+            byte[] payload = new byte[length];
+            in.readFully(payload);
+            return checksum(payload) == checksum ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Appends the records and syncs them. If that fails partway, e.g. on a full disk, the file is cut back to
+     * where it was, so a torn record never ends up in front of later ones, where replay would stop and drop them.
+     */
+    private void writeSynced(List<byte[]> payloads) throws IOException {
+        FileChannel channel = mOut.getChannel();
+        long start = channel.size();
+        try {
+            for (byte[] payload : payloads) {
+                write(mOut, payload);
+            }
+            mOut.getFD().sync();
+        } catch (IOException e) {
+            try {
+                channel.truncate(start);
+            } catch (IOException truncateFailure) {
+                Log.e(TAG, "couldn't cut back a failed write", truncateFailure);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes one record: payload length, CRC32 of the payload, then the payload, in a single write
+     */
+    private static void write(FileOutputStream out, byte[] payload) throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(12 + payload.length);
+        DataOutputStream data = new DataOutputStream(record);
+        data.writeInt(payload.length);
+        data.writeLong(checksum(payload));
+        data.write(payload);
+        out.write(record.toByteArray());
+    }
+
+    private static byte[] encodeAppend(Entry entry) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_APPEND);
+        out.writeLong(entry.id);
+        out.writeUTF(entry.imagePath);
+        out.writeInt(entry.features.size());
+        for (CloudVisionApi.Feature feature : entry.features) {
+            out.writeUTF(feature.type);
+            out.writeInt(feature.maxResults);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeAck(long id) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(9);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_ACK);
+        out.writeLong(id);
+        return bytes.toByteArray();
+    }
+
+    private static long checksum(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        return crc.getValue();
+    }
+}
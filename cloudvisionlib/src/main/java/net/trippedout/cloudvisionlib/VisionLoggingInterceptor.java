@@ -0,0 +1,232 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.HttpUrl;
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.ForwardingSink;
+import okio.ForwardingSource;
+import okio.Okio;
+
+/**
+ * Logs every call to the API in a couple of lines: method, url (minus the API key), request and response
+ * sizes, status and how long each phase took. Unlike OkHttp's body logging it never reads the request body into memory, so images
+ * are neither formatted into logcat nor slowed down, and the response body is only previewed up to
+ * maxBodyBytes.
+ *
+ * <code>
+ *   --> POST https://vision.googleapis.com/v1/images:annotate (image content redacted, 1843211 bytes)
+ *   <-- 200 OK https://vision.googleapis.com/v1/images:annotate (upload 812ms for 1843211 bytes, wait 1034ms,
+ *       download 12ms, 4312 bytes)
+ *   {"responses": [{"labelAnnotations": [ ... (truncated)
+ * </code>
+ *
+ * Upload covers getting a connection and writing the body, wait is the time until the response headers
+ * are in, and download is reading the response body.
+ */
+public class VisionLoggingInterceptor implements Interceptor {
+    private static final String TAG = VisionLoggingInterceptor.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_BODY_BYTES = 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int mMaxBodyBytes;
+
+    public VisionLoggingInterceptor() {
+        this(DEFAULT_MAX_BODY_BYTES);
+    }
+
+    /**
+     * @param maxBodyBytes how much of each response body to log, 0 for none
+     */
+    public VisionLoggingInterceptor(int maxBodyBytes) {
+        mMaxBodyBytes = maxBodyBytes;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        long startNanos = System.nanoTime();
+
+        TimedRequestBody body = null;
+        if (request.body() != null) {
+            body = new TimedRequestBody(request.body());
+            request = request.newBuilder().method(request.method(), body).build();
+        }
+
+        Log.d(TAG, "--> " + request.method() + " " + redact(request.url())
+                + (body != null ? " (image content redacted, " + describeLength(body.contentLength()) + ")" : ""));
+
+        Response response;
+        try {
+            response = chain.proceed(request);
+        } catch (IOException e) {
+            Log.d(TAG, "<-- FAILED " + redact(request.url()) + " after " + millisSince(startNanos) + "ms: " + e);
+            throw e;
+        }
+
+        long headersNanos = System.nanoTime();
+        String timings = body != null && body.mWrittenNanos != 0
+                ? "upload " + toMillis(body.mWrittenNanos - startNanos) + "ms for " + body.mWrittenBytes
+                + " bytes, wait " + toMillis(headersNanos - body.mWrittenNanos) + "ms"
+                : "headers " + toMillis(headersNanos - startNanos) + "ms";
+
+        String line = "<-- " + response.code() + " " + response.message() + " " + redact(response.request().url())
+                + " (" + timings;
+        if (response.body() == null) {
+            Log.d(TAG, line + ")");
+            return response;
+        }
+
+        return response.newBuilder()
+                .body(new TimedResponseBody(response.body(), line, headersNanos))
+                .build();
+    }
+
+    /**
+     * @return the url without the API key, which has no business in logs
+     */
+    private static HttpUrl redact(HttpUrl url) {
+        if (url.queryParameter("key") == null) {
+            return url;
+        }
+        return url.newBuilder().setQueryParameter("key", "redacted").build();
+    }
+
+    private static String describeLength(long length) {
+        return length < 0 ? "unknown length" : length + " bytes";
+    }
+
+    private static long millisSince(long startNanos) {
+        return toMillis(System.nanoTime() - startNanos);
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    /**
+     * Notes when the body is done writing, counting its bytes on the way
+     */
+    private static class TimedRequestBody extends RequestBody {
+        private final RequestBody mBody;
+
+        private volatile long mWrittenNanos;
+        private volatile long mWrittenBytes;
+
+        TimedRequestBody(RequestBody body) {
+            mBody = body;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return mBody.contentType();
+        }
+
+        @Override
+        public long contentLength() throws IOException {
+            return mBody.contentLength();
+        }
+
+        @Override
+        public void writeTo(BufferedSink sink) throws IOException {
+            final long[] count = new long[1];
+            BufferedSink counting = Okio.buffer(new ForwardingSink(sink) {
+                @Override
+                public void write(Buffer source, long byteCount) throws IOException {
+                    super.write(source, byteCount);
+                    count[0] += byteCount;
+                }
+            });
+
+            mBody.writeTo(counting);
+            counting.emit();
+            mWrittenBytes = count[0];
+            mWrittenNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * Logs the response line once the body has been read to the end or closed, with a preview of the start
+     */
+    private class TimedResponseBody extends ResponseBody {
+        private final ResponseBody mBody;
+        private final String mLine;
+        private final long mHeadersNanos;
+        private final BufferedSource mSource;
+
+        private final Buffer mPreview = new Buffer();
+        private long mBytesRead;
+        private boolean mLogged;
+
+        TimedResponseBody(ResponseBody body, String line, long headersNanos) {
+            mBody = body;
+            mLine = line;
+            mHeadersNanos = headersNanos;
+            mSource = Okio.buffer(new ForwardingSource(body.source()) {
+                @Override
+                public long read(Buffer sink, long byteCount) throws IOException {
+                    long read = super.read(sink, byteCount);
+                    if (read == -1) {
+                        log();
+                        return read;
+                    }
+
+                    long previewBytes = Math.min(read, mMaxBodyBytes - mPreview.size());
+                    if (previewBytes > 0) {
+                        sink.copyTo(mPreview, sink.size() - read, previewBytes);
+                    }
+                    mBytesRead += read;
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    log();
+                    super.close();
+                }
+            });
+        }
+
+        @Override
+        public MediaType contentType() {
+            return mBody.contentType();
+        }
+
+        @Override
+        public long contentLength() {
+            return mBody.contentLength();
+        }
+
+        @Override
+        public BufferedSource source() {
+            return mSource;
+        }
+
+        private synchronized void log() {
+            if (mLogged) {
+                return;
+            }
+            mLogged = true;
+
+            Log.d(TAG, mLine + ", download " + millisSince(mHeadersNanos) + "ms, " + mBytesRead + " bytes)");
+            if (mPreview.size() > 0) {
+                boolean truncated = mBytesRead > mPreview.size();
+                Log.d(TAG, mPreview.readString(UTF8) + (truncated ? " ... (truncated)" : ""));
+            }
+        }
+    }
+}
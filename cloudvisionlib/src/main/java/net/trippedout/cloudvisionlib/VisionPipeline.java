@@ -0,0 +1,436 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.lang.annotation.Annotation;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Converter;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+import retrofit2.http.Body;
+import retrofit2.http.Headers;
+import retrofit2.http.POST;
+import retrofit2.http.Query;
+
+/**
+ * Runs single image jobs through three stages, each with its own threads and a bounded queue in front:
+ * encode (decoding and compressing on CPU threads), upload (blocking calls on I/O threads, reading the
+ * response into memory) and parse (decoding the JSON and completing the job's future, whose listeners then
+ * run on that thread too).
+ *
+ * Calls go straight through the given Retrofit rather than a {@link CloudVisionService}, whose calls
+ * decode the response on the thread that executes them, so decorators like {@link CachingService} don't
+ * apply here.
+ *
+ * While one image uploads the next ones are already encoding. When a stage falls behind its queue fills
+ * up and the stage before it waits, all the way back to {@link #submit(Encoder)}, so a photo backlog never
+ * has more than a few queues' worth of encoded images in memory. {@link #getStats()} shows which stage is
+ * the bottleneck.
+ *
+ * <code>
+ *   VisionPipeline pipeline = new VisionPipeline(CloudVisionApi.getRetrofit(), apiKey, 2, 4, 1, 4);
+ *   for (String path : backlog) {
+ *       pipeline.submit(VisionPipeline.fromPath(path, CloudVisionApi.ALL_FEATURES)).addListener(listener);
+ *   }
+ * </code>
+ */
+public class VisionPipeline {
+    private static final String TAG = VisionPipeline.class.getSimpleName();
+
+    /**
+     * {@link CloudVisionService}'s endpoint, handing back the body as is so the parse stage can decode it
+     */
+    interface RawVisionService {
+        @Headers({
+                "Content-type: application/json"
+        })
+        @POST("v1/images:annotate")
+        Call<ResponseBody> getAnnotations(@Query("key") String apiKey, @Body CloudVisionApi.VisionRequest request);
+    }
+
+    /**
+     * Builds the request for one image, on an encode thread
+     */
+    public interface Encoder {
+        CloudVisionApi.Request encode() throws Exception;
+    }
+
+    /**
+     * @return an encoder scaling the image at path to the budget the features need, see
+     * {@link ImageUtil#getImageSource(String, List)}
+     */
+    public static Encoder fromPath(final String path, final List<CloudVisionApi.Feature> features) {
+        return new Encoder() {
+            @Override
+            public CloudVisionApi.Request encode() throws Exception {
+                ImageSource source = ImageUtil.getImageSource(path, features);
+                return new CloudVisionApi.Request(new CloudVisionApi.Image(source), features);
+            }
+        };
+    }
+
+    /**
+     * Snapshot of one stage
+     */
+    public static class StageStats {
+        public final String name;
+        public final int threads;
+        public final int queueDepth;
+        public final int queueCapacity;
+        public final long completed;
+
+        /**
+         * Fraction of the stage's thread time spent working since the pipeline started, from 0 to 1
+         */
+        public final double utilization;
+
+        public StageStats(String name, int threads, int queueDepth, int queueCapacity, long completed, double utilization) {
+            this.name = name;
+            this.threads = threads;
+            this.queueDepth = queueDepth;
+            this.queueCapacity = queueCapacity;
+            this.completed = completed;
+            this.utilization = utilization;
+        }
+
+        @Override
+        public String toString() {
+            return "StageStats{" +
+                    "name='" + name + '\'' +
+                    ", threads=" + threads +
+                    ", queueDepth=" + queueDepth +
+                    ", queueCapacity=" + queueCapacity +
+                    ", completed=" + completed +
+                    ", utilization=" + utilization +
+                    '}';
+        }
+    }
+
+    private final RawVisionService mService;
+    private final Retrofit mRetrofit;
+    private final String mApiKey;
+
+    private final Stage mEncode;
+    private final Stage mUpload;
+    private final Stage mParse;
+
+    /**
+     * @param encodeThreads CPU threads for decoding and compressing, around the number of cores
+     * @param uploadThreads calls in flight at once
+     * @param parseThreads  threads completing results and running their listeners
+     * @param queueCapacity jobs that can wait in front of each stage
+     */
+    public VisionPipeline(Retrofit retrofit, String apiKey,
+                          int encodeThreads, int uploadThreads, int parseThreads, int queueCapacity) {
+        mService = retrofit.create(RawVisionService.class);
+        mRetrofit = retrofit;
+        mApiKey = apiKey;
+
+        mEncode = new Stage("encode", encodeThreads, queueCapacity);
+        mUpload = new Stage("upload", uploadThreads, queueCapacity);
+        mParse = new Stage("parse", parseThreads, queueCapacity);
+    }
+
+    /**
+     * Queues the job for encoding, blocking while the encode queue is full.
+     *
+     * @throws IllegalStateException if the pipeline was shut down
+     * @return a future for the image's own response, which may carry a per image error status.
+     * Cancelling it drops the job at whatever stage it's in.
+     */
+    public VisionFuture<CloudVisionApi.AnnotateImageResponse> submit(Encoder encoder) throws InterruptedException {
+        final Job job = new Job(encoder);
+        mEncode.put(job, new Runnable() {
+            @Override
+            public void run() {
+                encode(job);
+            }
+        });
+        return job.future;
+    }
+
+    private void encode(final Job job) {
+        if (job.future.isCancelled()) {
+            return;
+        }
+
+        try {
+            job.request = job.encoder.encode();
+        } catch (Exception e) {
+            job.future.setException(e);
+            return;
+        }
+
+        handOff(mUpload, job, new Runnable() {
+            @Override
+            public void run() {
+                upload(job);
+            }
+        });
+    }
+
+    private void upload(final Job job) {
+        Call<ResponseBody> call = mService.getAnnotations(mApiKey,
+                new CloudVisionApi.VisionRequest(Collections.singletonList(job.request)));
+        if (!job.setCall(call)) {
+            return;
+        }
+
+        try {
+            job.response = call.execute();
+        } catch (IOException | RuntimeException e) {
+            job.future.setException(e);
+            return;
+        } finally {
+            // the encoded image isn't needed anymore, don't keep it around while we wait on the next stages
+            job.request = null;
+        }
+
+        handOff(mParse, job, new Runnable() {
+            @Override
+            public void run() {
+                parse(job);
+            }
+        });
+    }
+
+    private void parse(Job job) {
+        Response<ResponseBody> response = job.response;
+        job.response = null;
+
+        if (!response.isSuccessful()) {
+            job.future.setException(new VisionException(parseError(response.errorBody())));
+            return;
+        }
+
+        CloudVisionApi.VisionResponse body;
+        Converter<ResponseBody, CloudVisionApi.VisionResponse> converter
+                = mRetrofit.responseBodyConverter(CloudVisionApi.VisionResponse.class, new Annotation[0]);
+        try {
+            body = converter.convert(response.body());
+        } catch (IOException | RuntimeException e) {
+            job.future.setException(e);
+            return;
+        } finally {
+            response.body().close();
+        }
+
+        if (body == null || body.size() != 1) {
+            job.future.setException(new IOException("Expected 1 response but got " + (body == null ? 0 : body.size())));
+            return;
+        }
+        job.future.set(body.getImageResponse(0));
+    }
+
+    private CloudVisionApi.Error parseError(ResponseBody errorBody) {
+        Converter<ResponseBody, CloudVisionApi.Error> converter
+                = mRetrofit.responseBodyConverter(CloudVisionApi.Error.class, new Annotation[0]);
+        try {
+            return converter.convert(errorBody);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "couldn't parse error body: " + e.getMessage());
+            return new CloudVisionApi.Error();
+        } finally {
+            errorBody.close();
+        }
+    }
+
+    private static void handOff(Stage next, Job job, Runnable task) {
+        if (job.future.isCancelled()) {
+            return;
+        }
+
+        try {
+            next.put(job, task);
+        } catch (InterruptedException e) {
+            // only happens on shutdown
+            job.future.cancel(false);
+            Thread.currentThread().interrupt();
+        } catch (IllegalStateException e) {
+            // shut down while this stage was still working on it
+            job.future.cancel(false);
+        }
+    }
+
+    /**
+     * @return stats for the encode, upload and parse stages, in that order
+     */
+    public List<StageStats> getStats() {
+        List<StageStats> stats = new ArrayList<>(3);
+        stats.add(mEncode.getStats());
+        stats.add(mUpload.getStats());
+        stats.add(mParse.getStats());
+        return stats;
+    }
+
+    /**
+     * Stops every stage, cancelling the jobs still waiting in a queue. Jobs a stage is working on right now
+     * are cancelled when they'd move on to the next one, or complete if that was the parse stage.
+     */
+    public void shutdown() {
+        List<Job> dropped = new ArrayList<>();
+        dropped.addAll(mEncode.shutdown());
+        dropped.addAll(mUpload.shutdown());
+        dropped.addAll(mParse.shutdown());
+
+        for (Job job : dropped) {
+            job.future.cancel(false);
+        }
+    }
+
+    private static class Job {
+        final Encoder encoder;
+        final VisionFuture<CloudVisionApi.AnnotateImageResponse> future;
+
+        // only touched by one stage at a time, the queues hand them over safely
+        CloudVisionApi.Request request;
+        Response<ResponseBody> response;
+
+        private Call<ResponseBody> mCall;
+
+        Job(Encoder encoder) {
+            this.encoder = encoder;
+            this.future = new VisionFuture<CloudVisionApi.AnnotateImageResponse>() {
+                @Override
+                protected void onCancelled() {
+                    Call<ResponseBody> call;
+                    synchronized (Job.this) {
+                        call = mCall;
+                    }
+                    if (call != null) {
+                        call.cancel();
+                    }
+                }
+            };
+        }
+
+        /**
+         * @return false if the job was cancelled and the call shouldn't be made
+         */
+        synchronized boolean setCall(Call<ResponseBody> call) {
+            mCall = call;
+            return !future.isCancelled();
+        }
+    }
+
+    /**
+     * A step of a job waiting in a stage's queue
+     */
+    private static class Task {
+        final Job job;
+        final Runnable step;
+
+        Task(Job job, Runnable step) {
+            this.job = job;
+            this.step = step;
+        }
+    }
+
+    /**
+     * Fixed number of threads taking tasks off a bounded queue, timing how long they're busy
+     */
+    static class Stage {
+        private final String mName;
+        private final int mCapacity;
+        private final BlockingQueue<Task> mQueue;
+        private final List<Thread> mThreads = new ArrayList<>();
+
+        private final long mStartNanos = System.nanoTime();
+        private final AtomicLong mBusyNanos = new AtomicLong();
+        private final AtomicLong mCompleted = new AtomicLong();
+
+        private volatile boolean mShutdown;
+
+        Stage(String name, int threads, int capacity) {
+            mName = name;
+            mCapacity = capacity;
+            mQueue = new ArrayBlockingQueue<>(capacity);
+
+            Runnable worker = new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            };
+            ThreadFactory factory = Threads.daemonFactory(TAG + "-" + name);
+            for (int i = 0; i < threads; i++) {
+                Thread thread = factory.newThread(worker);
+                mThreads.add(thread);
+                thread.start();
+            }
+        }
+
+        void put(Job job, Runnable step) throws InterruptedException {
+            if (mShutdown) {
+                throw new IllegalStateException(mName + " stage is shut down");
+            }
+
+            Task task = new Task(job, step);
+            mQueue.put(task);
+            // shutdown() sets the flag before draining, so if we missed the drain we see the flag
+            if (mShutdown && mQueue.remove(task)) {
+                throw new IllegalStateException(mName + " stage is shut down");
+            }
+        }
+
+        private void work() {
+            while (!mShutdown) {
+                Task task;
+                try {
+                    task = mQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (mShutdown) {
+                    // taken just before shutdown() drained the rest
+                    task.job.future.cancel(false);
+                    return;
+                }
+
+                long start = System.nanoTime();
+                try {
+                    task.step.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, mName + " task failed", e);
+                } finally {
+                    mBusyNanos.addAndGet(System.nanoTime() - start);
+                    mCompleted.incrementAndGet();
+                }
+            }
+        }
+
+        StageStats getStats() {
+            long elapsed = Math.max(1, System.nanoTime() - mStartNanos);
+            double utilization = Math.min(1, (double) mBusyNanos.get() / (elapsed * mThreads.size()));
+            return new StageStats(mName, mThreads.size(), mQueue.size(), mCapacity, mCompleted.get(), utilization);
+        }
+
+        /**
+         * @return the jobs that were still queued
+         */
+        List<Job> shutdown() {
+            mShutdown = true;
+            for (Thread thread : mThreads) {
+                thread.interrupt();
+            }
+
+            List<Task> tasks = new ArrayList<>();
+            mQueue.drainTo(tasks);
+            List<Job> jobs = new ArrayList<>(tasks.size());
+            for (Task task : tasks) {
+                jobs.add(task.job);
+            }
+            return jobs;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package net.trippedout.cloudvisionlib;
+
+import android.util.Base64;
+import android.util.Base64OutputStream;
+
+import com.google.gson.Gson;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+
+import okhttp3.MediaType;
+import okhttp3.RequestBody;
+import okio.BufferedSink;
+import retrofit2.Converter;
+import retrofit2.Retrofit;
+
+/**
+ * Streams a {@link CloudVisionApi.VisionRequest} as JSON without ever building the whole payload in memory.
+ *
+ * The small JSON envelope is written as-is, and each {@link ImageSource} is Base64 encoded in chunks directly
+ * into the Okio {@link BufferedSink}, so peak memory stays the same no matter how big the images are.
+ * Bodies can be written more than once, so retries don't need to re-encode anything.
+ *
+ * The request's {@link Deadline} is checked between images and every {@link #DEADLINE_CHECK_BYTES} of image
+ * data, so a cancelled or expired request stops uploading right away.
+ */
+public class VisionRequestBody extends RequestBody {
+
+    private static final MediaType MEDIA_TYPE = MediaType.parse("application/json; charset=UTF-8");
+
+    /**
+     * How much image data gets written between deadline checks
+     */
+    static final int DEADLINE_CHECK_BYTES = 64 * 1024;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final String REQUESTS_START  = "{\"requests\":[";
+    private static final String REQUESTS_END    = "]}";
+    private static final String IMAGE_START     = "{\"image\":{\"content\":\"";
+    private static final String FEATURES_START  = "\"},\"features\":";
+    private static final String REQUEST_END     = "}";
+
+    private final CloudVisionApi.VisionRequest mVisionRequest;
+    private final String[] mFeatures;
+    private final long mContentLength;
+
+    public VisionRequestBody(Gson gson, CloudVisionApi.VisionRequest visionRequest) {
+        mVisionRequest = visionRequest;
+        mFeatures = new String[visionRequest.requests.size()];
+
+        long length = REQUESTS_START.length() + REQUESTS_END.length();
+        for (int i = 0; i < mFeatures.length; i++) {
+            CloudVisionApi.Request request = visionRequest.requests.get(i);
+            mFeatures[i] = gson.toJson(request.features);
+
+            long contentLength = encodedLength(request.image);
+            if (length < 0 || contentLength < 0) {
+                length = -1;
+                continue;
+            }
+
+            length += (i > 0 ? 1 : 0) + IMAGE_START.length() + contentLength
+                    + FEATURES_START.length() + mFeatures[i].getBytes(UTF_8).length + REQUEST_END.length();
+        }
+        mContentLength = length;
+    }
+
+    public CloudVisionApi.VisionRequest getVisionRequest() {
+        return mVisionRequest;
+    }
+
+    @Override
+    public MediaType contentType() {
+        return MEDIA_TYPE;
+    }
+
+    @Override
+    public long contentLength() throws IOException {
+        return mContentLength;
+    }
+
+    @Override
+    public void writeTo(BufferedSink sink) throws IOException {
+        Deadline deadline = mVisionRequest.getDeadline();
+
+        sink.writeUtf8(REQUESTS_START);
+        for (int i = 0; i < mFeatures.length; i++) {
+            deadline.throwIfDone();
+            if (i > 0)
+                sink.writeByte(',');
+
+            sink.writeUtf8(IMAGE_START);
+            writeContent(sink, mVisionRequest.requests.get(i).image, deadline);
+            sink.writeUtf8(FEATURES_START);
+            sink.writeUtf8(mFeatures[i]);
+            sink.writeUtf8(REQUEST_END);
+        }
+        sink.writeUtf8(REQUESTS_END);
+    }
+
+    private static void writeContent(BufferedSink sink, CloudVisionApi.Image image, Deadline deadline) throws IOException {
+        ImageSource source = image.getSource();
+        if (source != null) {
+            OutputStream out = new Base64OutputStream(sink.outputStream(), Base64.NO_WRAP | Base64.NO_CLOSE);
+            source.writeTo(new DeadlineOutputStream(out, deadline));
+            // flushes the final partial block and padding, but leaves the sink open
+            out.close();
+            return;
+        }
+
+        // already encoded content may contain line breaks, which aren't valid inside a JSON string
+        String content = image.content;
+        int start = 0;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c == '\n' || c == '\r') {
+                sink.writeUtf8(content, start, i);
+                start = i + 1;
+            }
+        }
+        sink.writeUtf8(content, start, content.length());
+    }
+
+    /**
+     * @return the number of bytes the Base64 content of this image takes up in the body, or -1 if unknown
+     */
+    static long encodedLength(CloudVisionApi.Image image) {
+        ImageSource source = image.getSource();
+        if (source != null) {
+            long byteCount = source.byteCount();
+            return byteCount < 0 ? -1 : 4 * ((byteCount + 2) / 3);
+        }
+
+        String content = image.content;
+        long length = 0;
+        for (int i = 0; i < content.length(); i++) {
+            char c = content.charAt(i);
+            if (c != '\n' && c != '\r')
+                length++;
+        }
+        return length;
+    }
+
+    /**
+     * Splits writes into {@link #DEADLINE_CHECK_BYTES} chunks and checks the deadline before each one.
+     * Doesn't close the wrapped stream.
+     */
+    static class DeadlineOutputStream extends FilterOutputStream {
+        private final Deadline mDeadline;
+
+        DeadlineOutputStream(OutputStream out, Deadline deadline) {
+            super(out);
+            mDeadline = deadline;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                mDeadline.throwIfDone();
+                int chunk = Math.min(len, DEADLINE_CHECK_BYTES);
+                out.write(b, off, chunk);
+                off += chunk;
+                len -= chunk;
+            }
+        }
+    }
+
+    /**
+     * Tells Retrofit to write every {@link CloudVisionApi.VisionRequest} body with a {@link VisionRequestBody}.
+     * Needs to be added before the Gson converter.
+     */
+    public static class Factory extends Converter.Factory {
+        private final Gson mGson;
+
+        public Factory(Gson gson) {
+            mGson = gson;
+        }
+
+        @Override
+        public Converter<?, RequestBody> requestBodyConverter(Type type, Annotation[] parameterAnnotations,
+                                                              Annotation[] methodAnnotations, Retrofit retrofit) {
+            if (type != CloudVisionApi.VisionRequest.class) {
+                return null;
+            }
+
+            return new Converter<CloudVisionApi.VisionRequest, RequestBody>() {
+                @Override
+                public RequestBody convert(CloudVisionApi.VisionRequest value) throws IOException {
+                    return new VisionRequestBody(mGson, value);
+                }
+            };
+        }
+    }
+}
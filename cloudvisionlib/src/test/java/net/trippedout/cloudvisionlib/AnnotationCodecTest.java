@@ -0,0 +1,181 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AnnotationCodecTest {
+
+    private static CloudVisionApi.AnnotateImageResponse roundTrip(CloudVisionApi.AnnotateImageResponse response)
+            throws IOException {
+        return AnnotationCodec.decode(ByteBuffer.wrap(AnnotationCodec.encode(response)));
+    }
+
+    private static Shared.EntityAnnotation entity(String description) {
+        return new Shared.EntityAnnotation("/m/0" + description, "en", description, 0.25f, 0.5f, 0.75f,
+                TestAnnotations.poly(1, 2, 3, 4),
+                Arrays.asList(new Shared.LocationInfo(new Shared.LatLng(48.8584f, 2.2945f)),
+                        new Shared.LocationInfo(null)),
+                Arrays.asList(new Shared.Property("name", "value"), new Shared.Property(null, null)));
+    }
+
+    /**
+     * @return a response holding every feature type, all fields set
+     */
+    private static CloudVisionApi.AnnotateImageResponse everyFeature() {
+        EnumMap<CloudVisionApi.FeatureType, CloudVisionApi.Response> responses =
+                new EnumMap<>(CloudVisionApi.FeatureType.class);
+        responses.put(CloudVisionApi.FeatureType.FACE_DETECTION, new CloudVisionApi.FaceDetectResponse(
+                Arrays.asList(TestAnnotations.face(10, 20), TestAnnotations.face(30, 40))));
+        responses.put(CloudVisionApi.FeatureType.LANDMARK_DETECTION,
+                new CloudVisionApi.LandmarkResponse(Arrays.asList(entity("tower"))));
+        responses.put(CloudVisionApi.FeatureType.LOGO_DETECTION,
+                new CloudVisionApi.LogoResponse(Arrays.asList(entity("logo"))));
+        responses.put(CloudVisionApi.FeatureType.LABEL_DETECTION,
+                new CloudVisionApi.LabelResponse(Arrays.asList(entity("cat"), entity("\u00e9t\u00e9"))));
+        responses.put(CloudVisionApi.FeatureType.TEXT_DETECTION,
+                new CloudVisionApi.TextResponse(Arrays.asList(entity("hello"))));
+        responses.put(CloudVisionApi.FeatureType.SAFE_SEARCH_DETECTION, new CloudVisionApi.SafeSearchResponse(
+                new CloudVisionApi.SafeSearchResponse.SafeSearchAnnotation("VERY_UNLIKELY", "UNLIKELY", "POSSIBLE", "LIKELY")));
+        responses.put(CloudVisionApi.FeatureType.IMAGE_PROPERTIES, new CloudVisionApi.ImagePropsResponse(
+                new ImagePropsFeature.ImagePropsAnnotation(new ImagePropsFeature.DominantColorsAnnotation(Arrays.asList(
+                        new ImagePropsFeature.ColorInfo(new ImagePropsFeature.Color(200, 100, 50), 0.5f, 0.25f),
+                        new ImagePropsFeature.ColorInfo(null, 0.1f, 0.2f))))));
+        return new CloudVisionApi.AnnotateImageResponse(responses, null);
+    }
+
+    /**
+     * @return a response holding every feature type, with every field that can be null left out
+     */
+    private static CloudVisionApi.AnnotateImageResponse everyFeatureWithNulls() {
+        FacesFeature.FaceAnnotations face = new FacesFeature.FaceAnnotations(null, null,
+                Arrays.asList(new FacesFeature.Landmark(null, null)),
+                0, 0, 0, 0, 0, null, null, null, null, null, null, null);
+        Shared.EntityAnnotation entity = new Shared.EntityAnnotation(null, null, null, 0, 0, 0, null, null, null);
+
+        EnumMap<CloudVisionApi.FeatureType, CloudVisionApi.Response> responses =
+                new EnumMap<>(CloudVisionApi.FeatureType.class);
+        responses.put(CloudVisionApi.FeatureType.FACE_DETECTION, new CloudVisionApi.FaceDetectResponse(Arrays.asList(face)));
+        responses.put(CloudVisionApi.FeatureType.LANDMARK_DETECTION, new CloudVisionApi.LandmarkResponse(null));
+        responses.put(CloudVisionApi.FeatureType.LOGO_DETECTION,
+                new CloudVisionApi.LogoResponse(Collections.<Shared.EntityAnnotation>emptyList()));
+        responses.put(CloudVisionApi.FeatureType.LABEL_DETECTION, new CloudVisionApi.LabelResponse(Arrays.asList(entity)));
+        responses.put(CloudVisionApi.FeatureType.TEXT_DETECTION, new CloudVisionApi.TextResponse(null));
+        responses.put(CloudVisionApi.FeatureType.SAFE_SEARCH_DETECTION, new CloudVisionApi.SafeSearchResponse(null));
+        responses.put(CloudVisionApi.FeatureType.IMAGE_PROPERTIES, new CloudVisionApi.ImagePropsResponse(null));
+        return new CloudVisionApi.AnnotateImageResponse(responses, null);
+    }
+
+    @Test
+    public void roundTripsEveryFeatureType() throws Exception {
+        CloudVisionApi.AnnotateImageResponse response = everyFeature();
+        CloudVisionApi.AnnotateImageResponse decoded = roundTrip(response);
+
+        assertEquals(CloudVisionApi.FeatureType.values().length, decoded.getResponses().size());
+        for (CloudVisionApi.FeatureType type : CloudVisionApi.FeatureType.values()) {
+            assertEquals(type.toString(), response.getResponse(type).toString(), decoded.getResponse(type).toString());
+        }
+
+        // fields the toStrings leave out
+        assertEquals(0.5f, TestAnnotations.firstFace(decoded).landmarks.get(0).position.z, 0);
+        ImagePropsFeature.Color color = ((CloudVisionApi.ImagePropsResponse) decoded
+                .getResponse(CloudVisionApi.FeatureType.IMAGE_PROPERTIES))
+                .imagePropertiesAnnotation.dominantColors.colors.get(0).color;
+        assertEquals(200, color.red);
+        assertEquals(100, color.blue);
+        assertEquals(50, color.green);
+    }
+
+    @Test
+    public void roundTripsNulls() throws Exception {
+        CloudVisionApi.AnnotateImageResponse response = everyFeatureWithNulls();
+        CloudVisionApi.AnnotateImageResponse decoded = roundTrip(response);
+
+        for (CloudVisionApi.FeatureType type : CloudVisionApi.FeatureType.values()) {
+            assertEquals(type.toString(), response.getResponse(type).toString(), decoded.getResponse(type).toString());
+        }
+        assertNull(TestAnnotations.firstFace(decoded).boundingPoly);
+        assertNull(TestAnnotations.firstFace(decoded).landmarks.get(0).position);
+    }
+
+    @Test
+    public void roundTripsAnEmptyResponse() throws Exception {
+        CloudVisionApi.AnnotateImageResponse decoded = roundTrip(TestAnnotations.faces());
+        assertEquals(0, ((CloudVisionApi.FaceDetectResponse) decoded.getResponse(CloudVisionApi.FeatureType.FACE_DETECTION))
+                .faceAnnotations.size());
+
+        decoded = roundTrip(new CloudVisionApi.AnnotateImageResponse(
+                new EnumMap<CloudVisionApi.FeatureType, CloudVisionApi.Response>(CloudVisionApi.FeatureType.class), null));
+        assertTrue(decoded.getResponses().isEmpty());
+    }
+
+    @Test
+    public void rejectsEveryTruncation() throws Exception {
+        byte[] encoded = AnnotationCodec.encode(everyFeature());
+        for (int length = 0; length < encoded.length; length++) {
+            try {
+                AnnotationCodec.decode(ByteBuffer.wrap(encoded, 0, length));
+                fail("decoded " + length + " of " + encoded.length + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsAnotherVersion() throws Exception {
+        byte[] encoded = AnnotationCodec.encode(everyFeature());
+        encoded[0] = (byte) (AnnotationCodec.VERSION + 1);
+        try {
+            AnnotationCodec.decode(ByteBuffer.wrap(encoded));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsCorruptDataWithoutBlowingUp() throws Exception {
+        byte[] encoded = AnnotationCodec.encode(everyFeature());
+        Random random = new Random(42);
+        for (int i = 0; i < 2000; i++) {
+            byte[] corrupt = encoded.clone();
+            for (int flips = 1 + random.nextInt(3); flips > 0; flips--) {
+                corrupt[random.nextInt(corrupt.length)] = (byte) random.nextInt(256);
+            }
+            try {
+                // some flips land in floats or strings and decode fine, anything else has to be an IOException
+                AnnotationCodec.decode(ByteBuffer.wrap(corrupt));
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test
+    public void rejectsHugeCounts() throws Exception {
+        // version, one response, faces, then a count of ~2^28 faces
+        byte[] encoded = {AnnotationCodec.VERSION, 1, (byte) CloudVisionApi.FeatureType.FACE_DETECTION.ordinal(),
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0x7f};
+        try {
+            AnnotationCodec.decode(ByteBuffer.wrap(encoded));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void rejectsTrailingBytes() throws Exception {
+        byte[] encoded = AnnotationCodec.encode(everyFeature());
+        byte[] longer = Arrays.copyOf(encoded, encoded.length + 1);
+        try {
+            AnnotationCodec.decode(ByteBuffer.wrap(longer));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
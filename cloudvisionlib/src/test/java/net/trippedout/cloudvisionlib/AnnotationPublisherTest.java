@@ -0,0 +1,77 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import retrofit2.Retrofit;
+
+import static org.junit.Assert.*;
+
+public class AnnotationPublisherTest {
+
+    private static final Retrofit RETROFIT = new Retrofit.Builder().baseUrl("http://localhost/").build();
+
+    private static class RecordingSubscriber implements VisionFlow.Subscriber<AnnotationPublisher.Result> {
+        final List<Object> signals = new CopyOnWriteArrayList<>();
+        VisionFlow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(VisionFlow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(AnnotationPublisher.Result result) {
+            signals.add(result);
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            signals.add(t);
+        }
+
+        @Override
+        public void onComplete() {
+            signals.add("complete");
+        }
+    }
+
+    private static AnnotationPublisher publisher(int images) {
+        CloudVisionApi.Request[] requests = new CloudVisionApi.Request[images];
+        for (int i = 0; i < images; i++) {
+            requests[i] = TestAnnotations.request(new byte[]{(byte) i}, CloudVisionApi.FEATURE_TYPE_FACE_DETECTION);
+        }
+        ImageAnnotator annotator = new AsyncVisionService(new FakeVisionService(TestAnnotations.faces()), RETROFIT, "key");
+        return new AnnotationPublisher(VisionFlow.fromIterable(Arrays.asList(requests)), annotator, 2);
+    }
+
+    @Test
+    public void deliversEveryImageThenCompletes() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher(5).subscribe(subscriber);
+        subscriber.subscription.request(Long.MAX_VALUE);
+
+        assertEquals(6, subscriber.signals.size());
+        for (int i = 0; i < 5; i++) {
+            assertTrue(((AnnotationPublisher.Result) subscriber.signals.get(i)).isSuccessful());
+        }
+        assertEquals("complete", subscriber.signals.get(5));
+    }
+
+    @Test
+    public void nonPositiveRequestEndsWithASingleError() {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher(5).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        subscriber.subscription.request(0);
+        subscriber.subscription.request(-1);
+        subscriber.subscription.request(10);
+
+        assertEquals(2, subscriber.signals.size());
+        assertTrue(subscriber.signals.get(0) instanceof AnnotationPublisher.Result);
+        assertTrue(subscriber.signals.get(1) instanceof IllegalArgumentException);
+    }
+}
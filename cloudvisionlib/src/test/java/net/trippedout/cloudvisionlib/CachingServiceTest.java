@@ -0,0 +1,91 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+import static org.junit.Assert.*;
+
+public class CachingServiceTest {
+
+    private static CloudVisionApi.VisionRequest faceRequest() {
+        return new CloudVisionApi.VisionRequest(Arrays.asList(
+                TestAnnotations.request(new byte[]{1, 2, 3}, CloudVisionApi.FEATURE_TYPE_FACE_DETECTION)));
+    }
+
+    @Test
+    public void cacheHitIsNotAffectedByChangesToAnEarlierResult() throws Exception {
+        FakeVisionService api = new FakeVisionService(TestAnnotations.faces(TestAnnotations.face(10, 20)));
+        CachingService service = new CachingService(api, new MemoryAnnotationCache(64 * 1024), null);
+
+        CloudVisionApi.VisionResponse first = service.getAnnotations("key", faceRequest()).execute().body();
+        TestAnnotations.firstFace(first.getImageResponse(0)).setScaleAndOffsets(2, 2, 100, 100);
+
+        CloudVisionApi.VisionResponse second = service.getAnnotations("key", faceRequest()).execute().body();
+        assertEquals(1, api.sent.size());
+        assertEquals(10, TestAnnotations.firstFace(second.getImageResponse(0)).boundingPoly.vertices.get(0).x, 0);
+    }
+
+    @Test
+    public void onlyMissingFeaturesAreSent() throws Exception {
+        FakeVisionService api = new FakeVisionService(TestAnnotations.faces(TestAnnotations.face(10, 20)));
+        CachingService service = new CachingService(api, new MemoryAnnotationCache(64 * 1024), null);
+
+        service.getAnnotations("key", faceRequest()).execute();
+        CloudVisionApi.VisionResponse both = service.getAnnotations("key", new CloudVisionApi.VisionRequest(Arrays.asList(
+                TestAnnotations.request(new byte[]{1, 2, 3}, CloudVisionApi.FEATURE_TYPE_FACE_DETECTION,
+                        CloudVisionApi.FEATURE_TYPE_LABEL_DETECTION)))).execute().body();
+
+        assertEquals(2, api.sent.size());
+        assertEquals(1, api.sent.get(1).requests.get(0).features.size());
+        assertEquals(CloudVisionApi.FEATURE_TYPE_LABEL_DETECTION, api.sent.get(1).requests.get(0).features.get(0).type);
+        assertNotNull(both.getImageResponse(0).getResponse(CloudVisionApi.FeatureType.FACE_DETECTION));
+    }
+
+    @Test
+    public void enqueueReportsRuntimeExceptionsFromTheImage() throws Exception {
+        ImageSource broken = new ImageSource() {
+            @Override
+            public long byteCount() {
+                return 3;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) {
+                throw new IllegalStateException("released");
+            }
+        };
+        CloudVisionApi.VisionRequest request = new CloudVisionApi.VisionRequest(Arrays.asList(new CloudVisionApi.Request(
+                new CloudVisionApi.Image(broken), Collections.<CloudVisionApi.Feature>emptyList())));
+        CachingService service = new CachingService(new FakeVisionService(TestAnnotations.faces()),
+                new MemoryAnnotationCache(64 * 1024), new Retrofit.Builder().baseUrl("http://localhost/").build());
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        service.getAnnotations("key", request).enqueue(new Callback<CloudVisionApi.VisionResponse>() {
+            @Override
+            public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
+                done.countDown();
+            }
+
+            @Override
+            public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                failure.set(t);
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertTrue(failure.get() instanceof IllegalStateException);
+    }
+}
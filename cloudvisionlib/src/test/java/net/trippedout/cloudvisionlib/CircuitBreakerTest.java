@@ -0,0 +1,63 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    /**
+     * Opens after 2 failures out of 2, for 20ms, then lets 1 trial call through
+     */
+    private static CircuitBreaker breaker() {
+        return new CircuitBreaker(2, 2, 0.5, 10000, 1.0, 20, 1);
+    }
+
+    private static void open(CircuitBreaker breaker) {
+        breaker.onFailure(breaker.tryAcquire(), 0);
+        breaker.onFailure(breaker.tryAcquire(), 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private static void awaitHalfOpen(CircuitBreaker breaker) throws InterruptedException {
+        while (breaker.getRemainingOpenMillis() > 0) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void callsFromBeforeHalfOpenAreNotTrials() throws Exception {
+        CircuitBreaker breaker = breaker();
+        long slow = breaker.tryAcquire();
+        open(breaker);
+        awaitHalfOpen(breaker);
+
+        long trial = breaker.tryAcquire();
+        assertTrue(trial >= 0);
+        // let through while closed, it says nothing about whether the API recovered
+        breaker.onSuccess(slow, 0);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+
+        breaker.onSuccess(trial, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void ignoredCallsFromEarlierStatesDontAddTrialPermits() throws Exception {
+        CircuitBreaker breaker = breaker();
+        long cancelled = breaker.tryAcquire();
+        open(breaker);
+        awaitHalfOpen(breaker);
+
+        long trial = breaker.tryAcquire();
+        assertTrue(trial >= 0);
+        breaker.onIgnored(cancelled);
+        assertEquals(-1, breaker.tryAcquire());
+
+        // the trial's own permit comes back, but only once
+        breaker.onIgnored(trial);
+        breaker.onIgnored(trial);
+        assertTrue(breaker.tryAcquire() >= 0);
+        assertEquals(-1, breaker.tryAcquire());
+    }
+}
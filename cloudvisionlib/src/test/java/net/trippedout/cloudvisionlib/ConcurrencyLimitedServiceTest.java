@@ -0,0 +1,68 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimitedServiceTest {
+
+    private static CloudVisionApi.VisionRequest request() {
+        return new CloudVisionApi.VisionRequest(Arrays.asList(
+                TestAnnotations.request(new byte[]{1, 2, 3}, CloudVisionApi.FEATURE_TYPE_FACE_DETECTION)));
+    }
+
+    private static ConcurrencyLimiter limiter() {
+        return new ConcurrencyLimiter(new ConcurrencyLimiter.AimdLimit(1, 1, 1, 0.9, 30000));
+    }
+
+    @Test
+    public void executeReleasesThePermitOnRuntimeExceptions() throws Exception {
+        FakeVisionService api = new FakeVisionService(TestAnnotations.faces());
+        api.failWith = new IllegalStateException("released");
+        ConcurrencyLimiter limiter = limiter();
+        ConcurrencyLimitedService service = new ConcurrencyLimitedService(api, limiter);
+
+        for (int i = 0; i < 3; i++) {
+            try {
+                service.getAnnotations("key", request()).execute();
+                fail();
+            } catch (IllegalStateException expected) {
+            }
+            assertEquals(0, limiter.getInFlight());
+        }
+
+        api.failWith = null;
+        assertTrue(service.getAnnotations("key", request()).execute().isSuccessful());
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void enqueueReleasesThePermitWhenTheDelegateThrows() throws Exception {
+        FakeVisionService api = new FakeVisionService(TestAnnotations.faces());
+        api.failWith = new IllegalStateException("Already executed.");
+        ConcurrencyLimiter limiter = limiter();
+        ConcurrencyLimitedService service = new ConcurrencyLimitedService(api, limiter);
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        service.getAnnotations("key", request()).enqueue(new Callback<CloudVisionApi.VisionResponse>() {
+            @Override
+            public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
+            }
+
+            @Override
+            public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+                failure.set(t);
+            }
+        });
+
+        assertTrue(failure.get() instanceof IllegalStateException);
+        assertEquals(0, limiter.getInFlight());
+    }
+}
@@ -0,0 +1,215 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class DiskAnnotationCacheTest {
+
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static CacheKey key(String hash) {
+        return new CacheKey(hash, "FACE_DETECTION:10");
+    }
+
+    private static CloudVisionApi.AnnotateImageResponse response() {
+        return TestAnnotations.faces(TestAnnotations.face(10, 20));
+    }
+
+    /**
+     * @return the one entry file in the directory
+     */
+    private static File onlyFile(File directory) {
+        File[] files = directory.listFiles();
+        assertNotNull(files);
+        assertEquals(1, files.length);
+        return files[0];
+    }
+
+    /**
+     * @return how many bytes one entry of {@link #response()} takes
+     */
+    private long entryBytes() throws Exception {
+        DiskAnnotationCache probe = new DiskAnnotationCache(mFolder.newFolder(), 1024 * 1024, 0);
+        probe.put(key("probe"), response());
+        probe.flush();
+        return probe.getSizeBytes();
+    }
+
+    @Test
+    public void entriesSurviveReopening() throws Exception {
+        File directory = mFolder.newFolder();
+        DiskAnnotationCache cache = new DiskAnnotationCache(directory, 1024 * 1024, DAY_MILLIS);
+        cache.put(key("a"), response());
+        cache.flush();
+
+        DiskAnnotationCache reopened = new DiskAnnotationCache(directory, 1024 * 1024, DAY_MILLIS);
+        assertEquals(1, reopened.size());
+        CloudVisionApi.AnnotateImageResponse hit = reopened.get(key("a"));
+        assertNotNull(hit);
+        assertEquals(response().toString(), hit.toString());
+        assertNull(reopened.get(key("b")));
+        assertEquals(1, reopened.getHitCount());
+        assertEquals(1, reopened.getMissCount());
+    }
+
+    @Test
+    public void corruptEntryIsDroppedAsAMiss() throws Exception {
+        File directory = mFolder.newFolder();
+        DiskAnnotationCache cache = new DiskAnnotationCache(directory, 1024 * 1024, 0);
+        cache.put(key("a"), response());
+        cache.flush();
+
+        File file = onlyFile(directory);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // flip a payload byte, past the header
+            raf.seek(raf.length() - 5);
+            int b = raf.read();
+            raf.seek(raf.length() - 5);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(cache.get(key("a")));
+        assertFalse(file.exists());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getSizeBytes());
+    }
+
+    @Test
+    public void truncatedEntryIsDroppedAsAMiss() throws Exception {
+        File directory = mFolder.newFolder();
+        DiskAnnotationCache cache = new DiskAnnotationCache(directory, 1024 * 1024, 0);
+        cache.put(key("a"), response());
+        cache.flush();
+
+        File file = onlyFile(directory);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(raf.length() / 2);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(cache.get(key("a")));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void entryShorterThanItsHeaderIsDroppedAsAMiss() throws Exception {
+        File directory = mFolder.newFolder();
+        DiskAnnotationCache cache = new DiskAnnotationCache(directory, 1024 * 1024, 0);
+        cache.put(key("a"), response());
+        cache.flush();
+
+        File file = onlyFile(directory);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(10);
+        } finally {
+            raf.close();
+        }
+
+        assertNull(cache.get(key("a")));
+        assertFalse(file.exists());
+        assertEquals(0, cache.size());
+        assertNull(cache.get(key("a")));
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void leftoverTempFilesAreDeletedOnOpen() throws Exception {
+        File directory = mFolder.newFolder();
+        File temp = new File(directory, "0123.ann.tmp");
+        assertTrue(temp.createNewFile());
+
+        DiskAnnotationCache cache = new DiskAnnotationCache(directory, 1024 * 1024, 0);
+        assertFalse(temp.exists());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void expiredEntryIsAMiss() throws Exception {
+        File directory = mFolder.newFolder();
+        DiskAnnotationCache cache = new DiskAnnotationCache(directory, 1024 * 1024, 50);
+        cache.put(key("a"), response());
+        cache.flush();
+        assertNotNull(cache.get(key("a")));
+
+        Thread.sleep(100);
+        assertNull(cache.get(key("a")));
+        assertEquals(1, cache.getExpiredCount());
+        assertEquals(0, cache.size());
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedPastTheByteCap() throws Exception {
+        long entryBytes = entryBytes();
+        DiskAnnotationCache cache = new DiskAnnotationCache(mFolder.newFolder(), entryBytes * 2, 0);
+        cache.put(key("a"), response());
+        cache.put(key("b"), response());
+        cache.flush();
+        assertNotNull(cache.get(key("a")));
+
+        cache.put(key("c"), response());
+        cache.flush();
+
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(entryBytes * 2, cache.getSizeBytes());
+        assertNull(cache.get(key("b")));
+        assertNotNull(cache.get(key("a")));
+        assertNotNull(cache.get(key("c")));
+    }
+
+    @Test
+    public void reopeningEvictsTheOldestFilesFirst() throws Exception {
+        long entryBytes = entryBytes();
+        File directory = mFolder.newFolder();
+        DiskAnnotationCache cache = new DiskAnnotationCache(directory, 1024 * 1024, 0);
+        cache.put(key("old"), response());
+        cache.put(key("new"), response());
+        cache.flush();
+
+        // make "old" the least recently used, whatever order the files were written in
+        long now = System.currentTimeMillis();
+        for (File file : directory.listFiles()) {
+            assertTrue(file.setLastModified(now - DAY_MILLIS));
+        }
+        DiskAnnotationCache check = new DiskAnnotationCache(directory, 1024 * 1024, 0);
+        assertNotNull(check.get(key("new")));
+
+        DiskAnnotationCache reopened = new DiskAnnotationCache(directory, entryBytes, 0);
+        assertEquals(1, reopened.size());
+        assertNull(reopened.get(key("old")));
+        assertNotNull(reopened.get(key("new")));
+    }
+
+    @Test
+    public void putAfterCloseIsDropped() throws Exception {
+        File directory = mFolder.newFolder();
+        DiskAnnotationCache cache = new DiskAnnotationCache(directory, 1024 * 1024, 0);
+        cache.close();
+
+        cache.put(key("a"), response());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void oversizedEntryIsNotStored() throws Exception {
+        DiskAnnotationCache cache = new DiskAnnotationCache(mFolder.newFolder(), 16, 0);
+        cache.put(key("a"), response());
+        cache.flush();
+        assertEquals(0, cache.size());
+    }
+}
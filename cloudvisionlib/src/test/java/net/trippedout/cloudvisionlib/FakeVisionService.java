@@ -0,0 +1,113 @@
+package net.trippedout.cloudvisionlib;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import okhttp3.Request;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+/**
+ * {@link CloudVisionService} that answers every image with the same response, remembering what was sent
+ */
+class FakeVisionService implements CloudVisionService {
+
+    final List<CloudVisionApi.VisionRequest> sent = new CopyOnWriteArrayList<>();
+
+    /**
+     * Set to hold calls until it's counted down
+     */
+    volatile CountDownLatch gate;
+
+    /**
+     * Set to make execute() and enqueue() throw it, like a converter or released image would
+     */
+    volatile RuntimeException failWith;
+
+    private final CloudVisionApi.AnnotateImageResponse mResponse;
+
+    FakeVisionService(CloudVisionApi.AnnotateImageResponse response) {
+        mResponse = response;
+    }
+
+    @Override
+    public Call<CloudVisionApi.VisionResponse> getAnnotations(String apiKey, final CloudVisionApi.VisionRequest request) {
+        return new Call<CloudVisionApi.VisionResponse>() {
+            private volatile boolean mExecuted;
+            private volatile boolean mCanceled;
+
+            @Override
+            public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+                mExecuted = true;
+                if (failWith != null) {
+                    throw failWith;
+                }
+                if (mCanceled) {
+                    throw new IOException("Canceled");
+                }
+
+                sent.add(request);
+                if (gate != null) {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (mCanceled) {
+                    throw new IOException("Canceled");
+                }
+
+                List<CloudVisionApi.AnnotateImageResponse> responses = new ArrayList<>();
+                for (int i = 0; i < request.requests.size(); i++) {
+                    // a fresh copy per image, like a parsed response
+                    responses.add(AnnotationCodec.decode(ByteBuffer.wrap(AnnotationCodec.encode(mResponse))));
+                }
+                return Response.success(new CloudVisionApi.VisionResponse(responses));
+            }
+
+            @Override
+            public void enqueue(Callback<CloudVisionApi.VisionResponse> callback) {
+                if (failWith != null) {
+                    throw failWith;
+                }
+                try {
+                    callback.onResponse(this, execute());
+                } catch (IOException e) {
+                    callback.onFailure(this, e);
+                }
+            }
+
+            @Override
+            public boolean isExecuted() {
+                return mExecuted;
+            }
+
+            @Override
+            public void cancel() {
+                mCanceled = true;
+            }
+
+            @Override
+            public boolean isCanceled() {
+                return mCanceled;
+            }
+
+            @Override
+            public Call<CloudVisionApi.VisionResponse> clone() {
+                return getAnnotations(null, request);
+            }
+
+            @Override
+            public Request request() {
+                return null;
+            }
+        };
+    }
+}
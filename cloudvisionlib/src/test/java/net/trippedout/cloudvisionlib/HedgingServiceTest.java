@@ -0,0 +1,172 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.BufferedSource;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import static org.junit.Assert.*;
+
+public class HedgingServiceTest {
+
+    /**
+     * Primary calls never answer on their own; their clones, the hedges, answer right away with the response
+     */
+    private static class StuckPrimaryService implements CloudVisionService {
+        final Response<CloudVisionApi.VisionResponse> hedgeResponse;
+
+        StuckPrimaryService(Response<CloudVisionApi.VisionResponse> hedgeResponse) {
+            this.hedgeResponse = hedgeResponse;
+        }
+
+        @Override
+        public Call<CloudVisionApi.VisionResponse> getAnnotations(String apiKey, CloudVisionApi.VisionRequest request) {
+            return new ScriptedCall(null);
+        }
+
+        private class ScriptedCall implements Call<CloudVisionApi.VisionResponse> {
+            private final Response<CloudVisionApi.VisionResponse> mResponse;
+            private volatile boolean mCanceled;
+            private Callback<CloudVisionApi.VisionResponse> mCallback;
+
+            ScriptedCall(Response<CloudVisionApi.VisionResponse> response) {
+                mResponse = response;
+            }
+
+            @Override
+            public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void enqueue(Callback<CloudVisionApi.VisionResponse> callback) {
+                if (mResponse != null) {
+                    callback.onResponse(this, mResponse);
+                } else {
+                    synchronized (this) {
+                        mCallback = callback;
+                    }
+                }
+            }
+
+            @Override
+            public boolean isExecuted() {
+                return true;
+            }
+
+            @Override
+            public void cancel() {
+                Callback<CloudVisionApi.VisionResponse> callback;
+                synchronized (this) {
+                    mCanceled = true;
+                    callback = mCallback;
+                    mCallback = null;
+                }
+                if (callback != null) {
+                    callback.onFailure(this, new IOException("Canceled"));
+                }
+            }
+
+            @Override
+            public boolean isCanceled() {
+                return mCanceled;
+            }
+
+            @Override
+            public Call<CloudVisionApi.VisionResponse> clone() {
+                return new ScriptedCall(hedgeResponse);
+            }
+
+            @Override
+            public Request request() {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Error body that remembers being closed
+     */
+    private static class TrackedBody extends ResponseBody {
+        final AtomicBoolean closed = new AtomicBoolean();
+
+        @Override
+        public MediaType contentType() {
+            return MediaType.parse("application/json");
+        }
+
+        @Override
+        public long contentLength() {
+            return 2;
+        }
+
+        @Override
+        public BufferedSource source() {
+            return new Buffer().writeUtf8("{}");
+        }
+
+        @Override
+        public void close() {
+            closed.set(true);
+        }
+    }
+
+    private static CloudVisionApi.VisionRequest request() {
+        return new CloudVisionApi.VisionRequest(Collections.singletonList(
+                TestAnnotations.request(new byte[]{1, 2, 3}, CloudVisionApi.FEATURE_TYPE_FACE_DETECTION)));
+    }
+
+    @Test
+    public void closesTheErrorBodyOfALosingResponse() throws Exception {
+        TrackedBody body = new TrackedBody();
+        Response<CloudVisionApi.VisionResponse> error = Response.error(503, body);
+        HedgingService service = new HedgingService(new StuckPrimaryService(error), 0.95, 1, 1.0);
+
+        Call<CloudVisionApi.VisionResponse> call = service.getAnnotations("key", request());
+        call.enqueue(new Callback<CloudVisionApi.VisionResponse>() {
+            @Override
+            public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
+            }
+
+            @Override
+            public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+            }
+        });
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (service.getHedgeCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, service.getHedgeCount());
+        // the primary is still running, so the hedge's error lost and nobody else will close it
+        assertTrue(body.closed.get());
+        call.cancel();
+    }
+
+    @Test
+    public void hedgeWinsRecordTheLatencyFromThePrimarysStart() throws Exception {
+        Response<CloudVisionApi.VisionResponse> success = Response.success(new CloudVisionApi.VisionResponse(
+                new ArrayList<CloudVisionApi.AnnotateImageResponse>()));
+        // 1ms minimum, so hedges go out after 10ms until there are enough samples
+        HedgingService service = new HedgingService(new StuckPrimaryService(success), 0.5, 1, 1.0);
+
+        for (int i = 0; i < 20; i++) {
+            assertTrue(service.getAnnotations("key", request()).execute().isSuccessful());
+        }
+
+        assertEquals(20, service.getHedgeWins());
+        // measured from the hedge's own start these would all be about 0
+        assertTrue(service.getHedgeDelayMillis() >= 10);
+    }
+}
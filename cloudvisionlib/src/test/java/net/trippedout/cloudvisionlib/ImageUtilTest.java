@@ -0,0 +1,24 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ImageUtilTest {
+
+    @Test
+    public void budgetsNeedPositiveLimits() {
+        long[][] bad = {{0, 100}, {100, 0}, {-1, 100}, {100, -1}};
+        for (long[] limits : bad) {
+            try {
+                new ImageUtil.Budget(limits[0], limits[1]);
+                fail("accepted " + limits[0] + ", " + limits[1]);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+
+        ImageUtil.Budget budget = new ImageUtil.Budget(1, 1);
+        assertTrue(budget.fits(1, 1));
+        assertFalse(budget.fits(2, 1));
+    }
+}
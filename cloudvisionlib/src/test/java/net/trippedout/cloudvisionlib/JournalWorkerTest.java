@@ -0,0 +1,64 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import retrofit2.Retrofit;
+
+import static org.junit.Assert.*;
+
+public class JournalWorkerTest {
+
+    private static final Retrofit RETROFIT = new Retrofit.Builder().baseUrl("http://localhost/").build();
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void survivesAListenerThatThrows() throws Exception {
+        VisionJournal journal = new VisionJournal(new File(mFolder.newFolder(), "vision.journal"));
+        // never decodes, so the listener hears about it as a failure
+        journal.append(new File(mFolder.getRoot(), "missing.jpg").getPath(), CloudVisionApi.ALL_FEATURES);
+
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch handled = new CountDownLatch(1);
+        JournalWorker worker = new JournalWorker(journal, new FakeVisionService(TestAnnotations.faces()), RETROFIT,
+                "key", 4, null, new JournalWorker.Listener() {
+            @Override
+            public void onResult(VisionJournal.Entry entry, CloudVisionApi.AnnotateImageResponse response) {
+                fail();
+            }
+
+            @Override
+            public void onFailure(VisionJournal.Entry entry, Throwable t) {
+                if (failures.incrementAndGet() == 1) {
+                    throw new IllegalStateException("listener bug");
+                }
+                handled.countDown();
+            }
+        });
+        worker.start();
+
+        long giveUp = System.currentTimeMillis() + 5000;
+        while (failures.get() == 0 && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(5);
+        }
+        // skip the backoff, the same worker thread has to pick the job up again
+        worker.wakeUp();
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+
+        giveUp = System.currentTimeMillis() + 5000;
+        while (journal.size() > 0 && System.currentTimeMillis() < giveUp) {
+            Thread.sleep(5);
+        }
+        assertEquals(0, journal.size());
+        worker.stop();
+        journal.close();
+    }
+}
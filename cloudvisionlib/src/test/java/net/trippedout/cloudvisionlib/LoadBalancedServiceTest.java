@@ -0,0 +1,98 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+import retrofit2.Call;
+
+import static org.junit.Assert.*;
+
+public class LoadBalancedServiceTest {
+
+    private static CloudVisionApi.VisionRequest request() {
+        return new CloudVisionApi.VisionRequest(Arrays.asList(
+                TestAnnotations.request(new byte[]{1, 2, 3}, CloudVisionApi.FEATURE_TYPE_FACE_DETECTION)));
+    }
+
+    @Test
+    public void callsCreatedUpFrontSpreadByOutstandingAtDispatch() throws Exception {
+        FakeVisionService first = new FakeVisionService(TestAnnotations.faces());
+        FakeVisionService second = new FakeVisionService(TestAnnotations.faces());
+        first.gate = new CountDownLatch(1);
+        LoadBalancedService service = new LoadBalancedService(Arrays.asList(
+                new LoadBalancedService.Member(first, "a", 1),
+                new LoadBalancedService.Member(second, "b", 1)),
+                LoadBalancedService.Strategy.LEAST_OUTSTANDING, 3, 30000);
+
+        // both created while every member is idle, like calls queued by a ConcurrencyLimitedService
+        final Call<CloudVisionApi.VisionResponse> held = service.getAnnotations("key", request());
+        Call<CloudVisionApi.VisionResponse> next = service.getAnnotations("key", request());
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    held.execute();
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        thread.start();
+        while (first.sent.isEmpty()) {
+            Thread.sleep(5);
+        }
+
+        assertTrue(next.execute().isSuccessful());
+        assertEquals(1, first.sent.size());
+        assertEquals(1, second.sent.size());
+
+        first.gate.countDown();
+        thread.join(5000);
+    }
+
+    @Test
+    public void memberEjectedBeforeDispatchIsSkipped() throws Exception {
+        FakeVisionService broken = new FakeVisionService(TestAnnotations.faces());
+        broken.failWith = new IllegalStateException("down");
+        FakeVisionService healthy = new FakeVisionService(TestAnnotations.faces());
+        LoadBalancedService service = new LoadBalancedService(Arrays.asList(
+                new LoadBalancedService.Member(broken, "a", 1),
+                new LoadBalancedService.Member(healthy, "b", 1)),
+                LoadBalancedService.Strategy.LEAST_OUTSTANDING, 1, 30000);
+
+        Call<CloudVisionApi.VisionResponse> early = service.getAnnotations("key", request());
+
+        try {
+            service.getAnnotations("key", request()).execute();
+            fail();
+        } catch (IllegalStateException expected) {
+            // one failure ejects the first member
+        }
+
+        assertTrue(early.execute().isSuccessful());
+        assertEquals(1, healthy.sent.size());
+    }
+
+    @Test
+    public void cancelBeforeDispatchNeverReachesAMember() throws Exception {
+        FakeVisionService api = new FakeVisionService(TestAnnotations.faces());
+        LoadBalancedService service = new LoadBalancedService(Arrays.asList(
+                new LoadBalancedService.Member(api, "a", 1)),
+                LoadBalancedService.Strategy.WEIGHTED_ROUND_ROBIN, 3, 30000);
+
+        Call<CloudVisionApi.VisionResponse> call = service.getAnnotations("key", request());
+        call.cancel();
+        assertTrue(call.isCanceled());
+        try {
+            call.execute();
+            fail();
+        } catch (IOException e) {
+            assertEquals("Canceled", e.getMessage());
+        }
+        assertTrue(api.sent.isEmpty());
+    }
+}
@@ -0,0 +1,55 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MemoryAnnotationCacheTest {
+
+    private static final CacheKey KEY = new CacheKey("hash", "FACE_DETECTION:10");
+
+    @Test
+    public void hitIsNotAffectedByChangesToAnEarlierHit() throws Exception {
+        MemoryAnnotationCache cache = new MemoryAnnotationCache(64 * 1024);
+        cache.put(KEY, TestAnnotations.faces(TestAnnotations.face(10, 20)));
+
+        CloudVisionApi.AnnotateImageResponse first = cache.get(KEY);
+        // what FaceFeaturesView does to show it
+        TestAnnotations.firstFace(first).setScaleAndOffsets(2, 2, 100, 100);
+
+        FacesFeature.FaceAnnotations face = TestAnnotations.firstFace(cache.get(KEY));
+        assertEquals(10, face.boundingPoly.vertices.get(0).x, 0);
+        assertEquals(20, face.boundingPoly.vertices.get(0).y, 0);
+        assertEquals(13, face.landmarks.get(0).position.x, 0);
+        assertNotSame(TestAnnotations.firstFace(first), face);
+    }
+
+    @Test
+    public void hitIsNotAffectedByChangesToTheStoredResponse() throws Exception {
+        MemoryAnnotationCache cache = new MemoryAnnotationCache(64 * 1024);
+        CloudVisionApi.AnnotateImageResponse response = TestAnnotations.faces(TestAnnotations.face(10, 20));
+        cache.put(KEY, response);
+
+        TestAnnotations.firstFace(response).setScaleAndOffsets(2, 2, 100, 100);
+
+        assertEquals(10, TestAnnotations.firstFace(cache.get(KEY)).boundingPoly.vertices.get(0).x, 0);
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedPastMaxBytes() throws Exception {
+        MemoryAnnotationCache probe = new MemoryAnnotationCache(64 * 1024);
+        probe.put(new CacheKey("a", "f"), TestAnnotations.faces(TestAnnotations.face(0, 0)));
+        long entryBytes = probe.getSizeBytes();
+
+        MemoryAnnotationCache cache = new MemoryAnnotationCache(entryBytes * 2);
+        cache.put(new CacheKey("a", "f"), TestAnnotations.faces(TestAnnotations.face(0, 0)));
+        cache.put(new CacheKey("b", "f"), TestAnnotations.faces(TestAnnotations.face(0, 0)));
+        cache.get(new CacheKey("a", "f"));
+        cache.put(new CacheKey("c", "f"), TestAnnotations.faces(TestAnnotations.face(0, 0)));
+
+        assertNotNull(cache.get(new CacheKey("a", "f")));
+        assertNull(cache.get(new CacheKey("b", "f")));
+        assertNotNull(cache.get(new CacheKey("c", "f")));
+        assertEquals(1, cache.getEvictionCount());
+    }
+}
@@ -0,0 +1,39 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class NearDuplicateIndexTest {
+
+    private static final String FEATURES = "FACE_DETECTION:10";
+
+    @Test
+    public void everyMatchGetsItsOwnCopy() throws Exception {
+        NearDuplicateIndex index = new NearDuplicateIndex();
+        CloudVisionApi.AnnotateImageResponse response = TestAnnotations.faces(TestAnnotations.face(10, 20));
+        index.add(0xf0f0L, FEATURES, response);
+        // the caller displays the frame it just got
+        TestAnnotations.firstFace(response).setScaleAndOffsets(2, 2, 100, 100);
+
+        CloudVisionApi.AnnotateImageResponse first = index.find(0xf0f1L, FEATURES, 0);
+        TestAnnotations.firstFace(first).setScaleAndOffsets(2, 2, 100, 100);
+        CloudVisionApi.AnnotateImageResponse second = index.find(0xf0f1L, FEATURES, 0);
+
+        assertEquals(10, TestAnnotations.firstFace(second).boundingPoly.vertices.get(0).x, 0);
+        assertEquals(13, TestAnnotations.firstFace(second).landmarks.get(0).position.x, 0);
+    }
+
+    @Test
+    public void matchesOnlyCloseHashesWithTheSameFeatures() throws Exception {
+        NearDuplicateIndex index = new NearDuplicateIndex(4, 2, 60000);
+        index.add(0L, FEATURES, TestAnnotations.faces(TestAnnotations.face(10, 20)));
+
+        assertNotNull(index.find(0x3L, FEATURES, 100));
+        assertNull(index.find(0x7L, FEATURES, 100));
+        assertNull(index.find(0L, "LABEL_DETECTION:10", 100));
+        assertEquals(1, index.getHitCount());
+        assertEquals(2, index.getMissCount());
+        assertEquals(100, index.getSavedBytes());
+    }
+}
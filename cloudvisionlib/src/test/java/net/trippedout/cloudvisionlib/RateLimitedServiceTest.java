@@ -0,0 +1,53 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import retrofit2.Call;
+
+import static org.junit.Assert.*;
+
+public class RateLimitedServiceTest {
+
+    private static CloudVisionApi.VisionRequest request() {
+        return new CloudVisionApi.VisionRequest(Arrays.asList(
+                TestAnnotations.request(new byte[]{1, 2, 3}, CloudVisionApi.FEATURE_TYPE_FACE_DETECTION)));
+    }
+
+    @Test
+    public void cancelWhileWaitingGivesThePermitsBack() throws Exception {
+        FakeVisionService api = new FakeVisionService(TestAnnotations.faces());
+        // one request a second, with no burst to speak of
+        RateLimiter limiter = new RateLimiter(1, 6000);
+        RateLimitedService service = new RateLimitedService(api, limiter);
+
+        assertTrue(service.getAnnotations("key", request()).execute().isSuccessful());
+
+        final Call<CloudVisionApi.VisionResponse> waiting = service.getAnnotations("key", request());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    waiting.execute();
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        thread.start();
+        Thread.sleep(50);
+        waiting.cancel();
+        thread.join(5000);
+
+        assertFalse(thread.isAlive());
+        assertEquals("Canceled", failure.get().getMessage());
+        assertEquals(1, api.sent.size());
+
+        // only the first call's second is still owed, not the cancelled one's as well
+        assertTrue(limiter.reserve("key", 1) < TimeUnit.MILLISECONDS.toNanos(1500));
+    }
+}
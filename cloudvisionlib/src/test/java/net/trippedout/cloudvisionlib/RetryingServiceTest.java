@@ -0,0 +1,111 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+
+import static org.junit.Assert.*;
+
+public class RetryingServiceTest {
+
+    /**
+     * Answers every call with a 503 asking to retry after 5 seconds
+     */
+    private static class UnavailableService implements CloudVisionService {
+        final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public Call<CloudVisionApi.VisionResponse> getAnnotations(String apiKey, CloudVisionApi.VisionRequest request) {
+            return new Call<CloudVisionApi.VisionResponse>() {
+                private volatile boolean mCanceled;
+
+                @Override
+                public Response<CloudVisionApi.VisionResponse> execute() throws IOException {
+                    calls.incrementAndGet();
+                    okhttp3.Response raw = new okhttp3.Response.Builder()
+                            .request(new Request.Builder().url("http://localhost/").build())
+                            .protocol(Protocol.HTTP_1_1)
+                            .code(503)
+                            .header("Retry-After", "5")
+                            .build();
+                    return Response.error(ResponseBody.create(MediaType.parse("application/json"), "{}"), raw);
+                }
+
+                @Override
+                public void enqueue(Callback<CloudVisionApi.VisionResponse> callback) {
+                    throw new UnsupportedOperationException();
+                }
+
+                @Override
+                public boolean isExecuted() {
+                    return calls.get() > 0;
+                }
+
+                @Override
+                public void cancel() {
+                    mCanceled = true;
+                }
+
+                @Override
+                public boolean isCanceled() {
+                    return mCanceled;
+                }
+
+                @Override
+                public Call<CloudVisionApi.VisionResponse> clone() {
+                    return getAnnotations(null, null);
+                }
+
+                @Override
+                public Request request() {
+                    return null;
+                }
+            };
+        }
+    }
+
+    @Test
+    public void cancelStopsExecuteWaitingOutARetryDelay() throws Exception {
+        UnavailableService api = new UnavailableService();
+        RetryingService service = new RetryingService(api, RetryPolicy.DEFAULT);
+        final Call<CloudVisionApi.VisionResponse> call = service.getAnnotations("key",
+                new CloudVisionApi.VisionRequest(Collections.<CloudVisionApi.Request>emptyList()));
+
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    call.execute();
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            }
+        });
+        thread.start();
+
+        while (api.calls.get() == 0) {
+            Thread.sleep(5);
+        }
+        Thread.sleep(50);
+        long start = System.currentTimeMillis();
+        call.cancel();
+        thread.join(5000);
+
+        assertFalse("still waiting out the Retry-After", thread.isAlive());
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        assertEquals("Canceled", failure.get().getMessage());
+        assertEquals(1, api.calls.get());
+    }
+}
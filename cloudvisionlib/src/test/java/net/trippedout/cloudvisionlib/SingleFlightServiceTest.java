@@ -0,0 +1,157 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import retrofit2.Call;
+import retrofit2.Callback;
+import retrofit2.Response;
+import retrofit2.Retrofit;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightServiceTest {
+
+    private static final Retrofit RETROFIT = new Retrofit.Builder().baseUrl("http://localhost/").build();
+
+    /**
+     * Collects what an enqueued call was answered with, a response or a throwable
+     */
+    private static class Result implements Callback<CloudVisionApi.VisionResponse> {
+        final BlockingQueue<Object> outcome = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onResponse(Call<CloudVisionApi.VisionResponse> call, Response<CloudVisionApi.VisionResponse> response) {
+            outcome.add(response);
+        }
+
+        @Override
+        public void onFailure(Call<CloudVisionApi.VisionResponse> call, Throwable t) {
+            outcome.add(t);
+        }
+
+        Object await() throws InterruptedException {
+            Object result = outcome.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no result", result);
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        CloudVisionApi.VisionResponse awaitBody() throws InterruptedException {
+            Object result = await();
+            assertTrue("failed with " + result, result instanceof Response);
+            return ((Response<CloudVisionApi.VisionResponse>) result).body();
+        }
+    }
+
+    private static CloudVisionApi.VisionRequest faceRequest() {
+        return new CloudVisionApi.VisionRequest(Arrays.asList(
+                TestAnnotations.request(new byte[]{1, 2, 3}, CloudVisionApi.FEATURE_TYPE_FACE_DETECTION)));
+    }
+
+    private static void awaitJoined(SingleFlightService service, long joined) throws InterruptedException {
+        long giveUp = System.currentTimeMillis() + 5000;
+        while (service.getJoinedCount() < joined) {
+            assertTrue("never joined", System.currentTimeMillis() < giveUp);
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void identicalCallsShareOneRequestButNotTheResult() throws Exception {
+        FakeVisionService api = new FakeVisionService(TestAnnotations.faces(TestAnnotations.face(10, 20)));
+        api.gate = new CountDownLatch(1);
+        SingleFlightService service = new SingleFlightService(api, RETROFIT);
+
+        Result grid = new Result();
+        Result detail = new Result();
+        service.getAnnotations("key", faceRequest()).enqueue(grid);
+        service.getAnnotations("key", faceRequest()).enqueue(detail);
+        awaitJoined(service, 1);
+        api.gate.countDown();
+
+        CloudVisionApi.VisionResponse first = grid.awaitBody();
+        CloudVisionApi.VisionResponse second = detail.awaitBody();
+        assertEquals(1, api.sent.size());
+
+        TestAnnotations.firstFace(first.getImageResponse(0)).setScaleAndOffsets(2, 2, 100, 100);
+        assertEquals(10, TestAnnotations.firstFace(second.getImageResponse(0)).boundingPoly.vertices.get(0).x, 0);
+    }
+
+    @Test
+    public void cancellingOneCallLeavesTheOthers() throws Exception {
+        FakeVisionService api = new FakeVisionService(TestAnnotations.faces(TestAnnotations.face(10, 20)));
+        api.gate = new CountDownLatch(1);
+        SingleFlightService service = new SingleFlightService(api, RETROFIT);
+
+        Result kept = new Result();
+        Result cancelled = new Result();
+        service.getAnnotations("key", faceRequest()).enqueue(kept);
+        Call<CloudVisionApi.VisionResponse> call = service.getAnnotations("key", faceRequest());
+        call.enqueue(cancelled);
+        awaitJoined(service, 1);
+
+        call.cancel();
+        assertEquals("Canceled", ((Throwable) cancelled.await()).getMessage());
+        api.gate.countDown();
+        assertEquals(1, kept.awaitBody().size());
+    }
+
+    @Test
+    public void eachCallIsHeldToItsOwnDeadline() throws Exception {
+        FakeVisionService api = new FakeVisionService(TestAnnotations.faces(TestAnnotations.face(10, 20)));
+        api.gate = new CountDownLatch(1);
+        SingleFlightService service = new SingleFlightService(api, RETROFIT);
+
+        Deadline hurried = Deadline.after(50);
+        Result first = new Result();
+        Result patient = new Result();
+        service.getAnnotations("key", faceRequest().withDeadline(hurried)).enqueue(first);
+        service.getAnnotations("key", faceRequest()).enqueue(patient);
+        awaitJoined(service, 1);
+
+        try {
+            service.getAnnotations("key", faceRequest().withDeadline(Deadline.after(50))).execute();
+            fail();
+        } catch (InterruptedIOException expected) {
+            assertEquals("Deadline exceeded", expected.getMessage());
+        }
+        assertEquals("Deadline exceeded", ((Throwable) first.await()).getMessage());
+
+        // the shared request isn't bound by the first caller's deadline
+        assertNotSame(hurried, api.sent.get(0).getDeadline());
+        api.gate.countDown();
+        assertEquals(1, patient.awaitBody().size());
+        assertEquals(1, service.getFlightCount());
+    }
+
+    @Test
+    public void enqueueReportsRuntimeExceptionsFromTheImage() throws Exception {
+        ImageSource broken = new ImageSource() {
+            @Override
+            public long byteCount() {
+                return 3;
+            }
+
+            @Override
+            public void writeTo(OutputStream out) {
+                throw new IllegalStateException("released");
+            }
+        };
+        CloudVisionApi.VisionRequest request = new CloudVisionApi.VisionRequest(Arrays.asList(new CloudVisionApi.Request(
+                new CloudVisionApi.Image(broken), Collections.<CloudVisionApi.Feature>emptyList())));
+        SingleFlightService service = new SingleFlightService(new FakeVisionService(TestAnnotations.faces()), RETROFIT);
+
+        Result result = new Result();
+        service.getAnnotations("key", request).enqueue(result);
+        assertTrue(result.await() instanceof IllegalStateException);
+    }
+}
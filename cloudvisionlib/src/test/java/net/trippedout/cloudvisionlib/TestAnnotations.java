@@ -0,0 +1,50 @@
+package net.trippedout.cloudvisionlib;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+
+/**
+ * Builders for the annotation POJOs the tests pass around
+ */
+class TestAnnotations {
+
+    static Shared.BoundingPoly poly(float... xy) {
+        List<Shared.Vertex> vertices = new ArrayList<>();
+        for (int i = 0; i < xy.length; i += 2) {
+            vertices.add(new Shared.Vertex(xy[i], xy[i + 1]));
+        }
+        return new Shared.BoundingPoly(vertices);
+    }
+
+    static FacesFeature.FaceAnnotations face(float x, float y) {
+        return new FacesFeature.FaceAnnotations(
+                poly(x, y, x + 10, y, x + 10, y + 10, x, y + 10),
+                poly(x + 1, y + 1, x + 9, y + 9),
+                Arrays.asList(new FacesFeature.Landmark("LEFT_EYE", new Shared.Position(x + 3, y + 3, 0.5f))),
+                1.5f, -2.5f, 3.5f, 0.9f, 0.8f,
+                "VERY_LIKELY", "UNLIKELY", "VERY_UNLIKELY", "POSSIBLE", "UNKNOWN", "LIKELY", "VERY_UNLIKELY");
+    }
+
+    static CloudVisionApi.AnnotateImageResponse faces(FacesFeature.FaceAnnotations... faces) {
+        EnumMap<CloudVisionApi.FeatureType, CloudVisionApi.Response> responses =
+                new EnumMap<>(CloudVisionApi.FeatureType.class);
+        responses.put(CloudVisionApi.FeatureType.FACE_DETECTION,
+                new CloudVisionApi.FaceDetectResponse(Arrays.asList(faces)));
+        return new CloudVisionApi.AnnotateImageResponse(responses, null);
+    }
+
+    static FacesFeature.FaceAnnotations firstFace(CloudVisionApi.AnnotateImageResponse response) {
+        return ((CloudVisionApi.FaceDetectResponse) response.getResponse(CloudVisionApi.FeatureType.FACE_DETECTION))
+                .faceAnnotations.get(0);
+    }
+
+    static CloudVisionApi.Request request(byte[] image, String... featureTypes) {
+        List<CloudVisionApi.Feature> features = new ArrayList<>();
+        for (String type : featureTypes) {
+            features.add(new CloudVisionApi.Feature(type, 10));
+        }
+        return new CloudVisionApi.Request(new CloudVisionApi.Image(ImageSource.fromBytes(image)), features);
+    }
+}
@@ -0,0 +1,44 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TieredAnnotationCacheTest {
+
+    private static final CacheKey KEY = new CacheKey("hash", "FACE_DETECTION:10");
+
+    @Test
+    public void hitInASlowerLevelIsCopiedIntoTheFasterOnes() throws Exception {
+        MemoryAnnotationCache fast = new MemoryAnnotationCache(64 * 1024);
+        MemoryAnnotationCache slow = new MemoryAnnotationCache(64 * 1024);
+        TieredAnnotationCache cache = new TieredAnnotationCache(fast, slow);
+        slow.put(KEY, TestAnnotations.faces(TestAnnotations.face(10, 20)));
+
+        assertNotNull(cache.get(KEY));
+        assertEquals(1, fast.size());
+        assertNotNull(cache.get(KEY));
+        assertEquals(1, fast.getHitCount());
+        assertEquals(1, slow.getHitCount());
+    }
+
+    @Test
+    public void putStoresInEveryLevel() throws Exception {
+        MemoryAnnotationCache fast = new MemoryAnnotationCache(64 * 1024);
+        MemoryAnnotationCache slow = new MemoryAnnotationCache(64 * 1024);
+        new TieredAnnotationCache(fast, slow).put(KEY, TestAnnotations.faces(TestAnnotations.face(10, 20)));
+
+        assertEquals(1, fast.size());
+        assertEquals(1, slow.size());
+    }
+
+    @Test
+    public void missesEveryLevel() throws Exception {
+        MemoryAnnotationCache fast = new MemoryAnnotationCache(64 * 1024);
+        MemoryAnnotationCache slow = new MemoryAnnotationCache(64 * 1024);
+
+        assertNull(new TieredAnnotationCache(fast, slow).get(KEY));
+        assertEquals(1, fast.getMissCount());
+        assertEquals(1, slow.getMissCount());
+    }
+}
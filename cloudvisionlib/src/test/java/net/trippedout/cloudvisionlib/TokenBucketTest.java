@@ -0,0 +1,94 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TokenBucketTest {
+
+    @Test
+    public void burstIsCappedAtCapacity() {
+        // one permit a second, so none come back during the test
+        TokenBucket bucket = new TokenBucket(1, 5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(bucket.tryAcquire(1));
+        }
+        assertFalse(bucket.tryAcquire(1));
+        assertTrue(bucket.reserve(1) > 0);
+    }
+
+    @Test
+    public void refillsAtTheSteadyRate() throws Exception {
+        TokenBucket bucket = new TokenBucket(100, 1);
+        assertTrue(bucket.tryAcquire(1));
+        assertFalse(bucket.tryAcquire(1));
+
+        Thread.sleep(30);
+        assertTrue(bucket.tryAcquire(1));
+        assertFalse(bucket.tryAcquire(1));
+    }
+
+    @Test
+    public void idleBucketDoesNotSaveUpPastCapacity() throws Exception {
+        TokenBucket bucket = new TokenBucket(1000, 2);
+        Thread.sleep(50);
+        assertTrue(bucket.tryAcquire(2));
+        assertFalse(bucket.tryAcquire(1));
+    }
+
+    @Test
+    public void releaseGivesPermitsBack() {
+        TokenBucket bucket = new TokenBucket(1, 2);
+        assertTrue(bucket.tryAcquire(2));
+        assertFalse(bucket.tryAcquire(1));
+
+        bucket.release(1);
+        assertTrue(bucket.tryAcquire(1));
+        assertFalse(bucket.tryAcquire(1));
+
+        // never past full
+        bucket.release(10);
+        assertTrue(bucket.tryAcquire(2));
+        assertFalse(bucket.tryAcquire(1));
+    }
+
+    @Test
+    public void concurrentTryAcquireNeverHandsOutMoreThanTheBurst() throws Exception {
+        // effectively no refill, so exactly the burst can be taken
+        final TokenBucket bucket = new TokenBucket(0.001, 50);
+        final AtomicInteger acquired = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 100; i++) {
+                        if (bucket.tryAcquire(1)) {
+                            acquired.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join(5000);
+        }
+        assertEquals(50, acquired.get());
+    }
+}
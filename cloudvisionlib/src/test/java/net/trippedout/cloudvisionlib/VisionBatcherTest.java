@@ -0,0 +1,49 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import retrofit2.Retrofit;
+
+import static org.junit.Assert.*;
+
+public class VisionBatcherTest {
+
+    private static final Retrofit RETROFIT = new Retrofit.Builder().baseUrl("http://localhost/").build();
+
+    private static CloudVisionApi.Request request() {
+        return TestAnnotations.request(new byte[]{1, 2, 3}, CloudVisionApi.FEATURE_TYPE_FACE_DETECTION);
+    }
+
+    @Test
+    public void fullBatchesGoOutTogether() throws Exception {
+        FakeVisionService api = new FakeVisionService(TestAnnotations.faces(TestAnnotations.face(10, 20)));
+        VisionBatcher batcher = new VisionBatcher(api, RETROFIT, "key", 2, 1024 * 1024, 10000);
+
+        VisionFuture<CloudVisionApi.AnnotateImageResponse> first = batcher.submit(request());
+        VisionFuture<CloudVisionApi.AnnotateImageResponse> second = batcher.submit(request());
+
+        assertNotNull(first.get(5, TimeUnit.SECONDS));
+        assertNotNull(second.get(5, TimeUnit.SECONDS));
+        assertEquals(1, api.sent.size());
+        assertEquals(2, api.sent.get(0).requests.size());
+        batcher.shutdown();
+    }
+
+    @Test
+    public void submitAfterShutdownFailsTheFuture() throws Exception {
+        VisionBatcher batcher = new VisionBatcher(new FakeVisionService(TestAnnotations.faces()), RETROFIT, "key",
+                2, 1024 * 1024, 10000);
+        batcher.shutdown();
+
+        VisionFuture<CloudVisionApi.AnnotateImageResponse> future = batcher.submit(request());
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class VisionJournalTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private static final List<CloudVisionApi.Feature> FEATURES = Arrays.asList(
+            new CloudVisionApi.Feature(CloudVisionApi.FEATURE_TYPE_FACE_DETECTION, 10),
+            new CloudVisionApi.Feature(CloudVisionApi.FEATURE_TYPE_LABEL_DETECTION, 5));
+
+    private static List<Long> ids(List<VisionJournal.Entry> entries) {
+        List<Long> ids = new ArrayList<>(entries.size());
+        for (VisionJournal.Entry entry : entries) {
+            ids.add(entry.id);
+        }
+        return ids;
+    }
+
+    @Test
+    public void replaysPendingJobsOnReopen() throws Exception {
+        File file = mFolder.newFile("vision.journal");
+        VisionJournal journal = new VisionJournal(file);
+        long first = journal.append("/photos/1.jpg", FEATURES);
+        long second = journal.append("/photos/2.jpg", FEATURES);
+        long third = journal.append("/photos/3.jpg", FEATURES);
+        journal.ack(second);
+        journal.close();
+
+        VisionJournal reopened = new VisionJournal(file);
+        List<VisionJournal.Entry> pending = reopened.peek(10);
+        assertEquals(Arrays.asList(first, third), ids(pending));
+        assertEquals("/photos/1.jpg", pending.get(0).imagePath);
+        assertEquals(2, pending.get(0).features.size());
+        assertEquals(CloudVisionApi.FEATURE_TYPE_LABEL_DETECTION, pending.get(0).features.get(1).type);
+        assertEquals(5, pending.get(0).features.get(1).maxResults);
+
+        // ids keep counting up from the replayed ones
+        assertTrue(reopened.append("/photos/4.jpg", FEATURES) > third);
+        reopened.close();
+    }
+
+    @Test
+    public void tornTailIsDroppedAndLaterAppendsSurvive() throws Exception {
+        File file = mFolder.newFile("vision.journal");
+        VisionJournal journal = new VisionJournal(file);
+        journal.append("/photos/1.jpg", FEATURES);
+        journal.append("/photos/2.jpg", FEATURES);
+        journal.close();
+        long intact = file.length();
+
+        // a crash partway through the next record: a length and half a checksum
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(new byte[]{0, 0, 0, 40, 1, 2, 3});
+        } finally {
+            out.close();
+        }
+
+        VisionJournal reopened = new VisionJournal(file);
+        assertEquals(2, reopened.size());
+        assertEquals(intact, file.length());
+        long third = reopened.append("/photos/3.jpg", FEATURES);
+        reopened.close();
+
+        VisionJournal again = new VisionJournal(file);
+        assertEquals(3, again.size());
+        assertEquals(third, again.peek(3).get(2).id);
+        again.close();
+    }
+
+    @Test
+    public void corruptRecordEndsReplay() throws Exception {
+        File file = mFolder.newFile("vision.journal");
+        VisionJournal journal = new VisionJournal(file);
+        journal.append("/photos/1.jpg", FEATURES);
+        journal.close();
+        long intact = file.length();
+
+        journal = new VisionJournal(file);
+        journal.append("/photos/2.jpg", FEATURES);
+        journal.close();
+
+        // flip the last byte of the second record's payload so its checksum no longer matches
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(raf.length() - 1);
+            int b = raf.read();
+            raf.seek(raf.length() - 1);
+            raf.write(b ^ 0xff);
+        } finally {
+            raf.close();
+        }
+
+        VisionJournal reopened = new VisionJournal(file);
+        assertEquals(1, reopened.size());
+        assertEquals(intact, file.length());
+        reopened.close();
+    }
+
+    @Test
+    public void compactionKeepsOnlyPendingJobs() throws Exception {
+        File file = mFolder.newFile("vision.journal");
+        VisionJournal journal = new VisionJournal(file);
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(journal.append("/photos/" + i + ".jpg", FEATURES));
+        }
+        long full = file.length();
+
+        // 180 dead records against 10 pending, well past the compaction threshold
+        journal.ack(ids.subList(0, 90));
+        assertTrue(file.length() < full / 5);
+        assertFalse(new File(file.getPath() + ".compacting").exists());
+
+        long next = journal.append("/photos/100.jpg", FEATURES);
+        journal.close();
+
+        VisionJournal reopened = new VisionJournal(file);
+        List<Long> expected = new ArrayList<>(ids.subList(90, 100));
+        expected.add(next);
+        assertEquals(expected, ids(reopened.peek(20)));
+        reopened.close();
+    }
+
+    @Test
+    public void leftoverCompactionFileIsIgnored() throws Exception {
+        File file = mFolder.newFile("vision.journal");
+        VisionJournal journal = new VisionJournal(file);
+        journal.append("/photos/1.jpg", FEATURES);
+        journal.close();
+
+        // a compaction that crashed before its rename
+        File compacting = new File(file.getPath() + ".compacting");
+        FileOutputStream out = new FileOutputStream(compacting);
+        try {
+            out.write(new byte[]{1, 2, 3});
+        } finally {
+            out.close();
+        }
+
+        VisionJournal reopened = new VisionJournal(file);
+        assertEquals(1, reopened.size());
+        assertFalse(compacting.exists());
+        reopened.close();
+    }
+}
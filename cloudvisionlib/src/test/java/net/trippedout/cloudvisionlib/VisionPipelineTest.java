@@ -0,0 +1,117 @@
+package net.trippedout.cloudvisionlib;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Interceptor;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import retrofit2.Retrofit;
+
+import static org.junit.Assert.*;
+
+public class VisionPipelineTest {
+
+    /**
+     * Retrofit whose every call is answered with the given code and json, without touching the network
+     */
+    private static Retrofit retrofit(final int code, final String json) {
+        OkHttpClient client = new OkHttpClient.Builder()
+                .addInterceptor(new Interceptor() {
+                    @Override
+                    public Response intercept(Chain chain) throws IOException {
+                        return new Response.Builder()
+                                .request(chain.request())
+                                .protocol(Protocol.HTTP_1_1)
+                                .code(code)
+                                .body(ResponseBody.create(MediaType.parse("application/json"), json))
+                                .build();
+                    }
+                })
+                .build();
+        return CloudVisionApi.buildRetrofit("http://localhost/", client);
+    }
+
+    private static VisionPipeline.Encoder encoder() {
+        return new VisionPipeline.Encoder() {
+            @Override
+            public CloudVisionApi.Request encode() {
+                return TestAnnotations.request(new byte[]{1, 2, 3}, CloudVisionApi.FEATURE_TYPE_FACE_DETECTION);
+            }
+        };
+    }
+
+    @Test
+    public void parseStageDecodesTheBody() throws Exception {
+        VisionPipeline pipeline = new VisionPipeline(
+                retrofit(200, "{\"responses\":[{\"faceAnnotations\":[{\"rollAngle\":12.5}]}]}"), "key", 1, 1, 1, 2);
+
+        CloudVisionApi.AnnotateImageResponse response = pipeline.submit(encoder()).get(5, TimeUnit.SECONDS);
+        assertEquals(12.5f, TestAnnotations.firstFace(response).rollAngle, 0);
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void errorsFailTheFuture() throws Exception {
+        VisionPipeline pipeline = new VisionPipeline(
+                retrofit(403, "{\"error\":{\"code\":403,\"message\":\"no\"}}"), "key", 1, 1, 1, 2);
+
+        try {
+            pipeline.submit(encoder()).get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof VisionException);
+        }
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void shutdownCancelsQueuedJobs() throws Exception {
+        VisionPipeline pipeline = new VisionPipeline(retrofit(200, "{\"responses\":[{}]}"), "key", 1, 1, 1, 2);
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        VisionFuture<CloudVisionApi.AnnotateImageResponse> running = pipeline.submit(new VisionPipeline.Encoder() {
+            @Override
+            public CloudVisionApi.Request encode() throws Exception {
+                started.countDown();
+                release.await();
+                return TestAnnotations.request(new byte[]{1, 2, 3}, CloudVisionApi.FEATURE_TYPE_FACE_DETECTION);
+            }
+        });
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        List<VisionFuture<CloudVisionApi.AnnotateImageResponse>> queued = new ArrayList<>();
+        queued.add(pipeline.submit(encoder()));
+        queued.add(pipeline.submit(encoder()));
+
+        pipeline.shutdown();
+        for (VisionFuture<CloudVisionApi.AnnotateImageResponse> future : queued) {
+            assertTrue(future.isCancelled());
+        }
+
+        // the one being encoded can't move on to the upload stage anymore
+        release.countDown();
+        try {
+            running.get(5, TimeUnit.SECONDS);
+        } catch (CancellationException | ExecutionException ignored) {
+        }
+        assertTrue(running.isDone());
+
+        try {
+            pipeline.submit(encoder());
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}